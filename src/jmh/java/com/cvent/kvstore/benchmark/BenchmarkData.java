@@ -0,0 +1,112 @@
+package com.cvent.kvstore.benchmark;
+
+import com.cvent.kvstore.KVStore;
+import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.KeyValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Synthetic documents shaped like service configuration: sections of groups of fields, with an array
+ * in every group and a mix of strings, numbers and booleans.
+ *    section3/group7/hosts/...2 = "host-1262"
+ *    section3/group7/f5 = 1265
+ */
+final class BenchmarkData {
+   static final String AUTHOR = "benchmark";
+   private static final int FIELDS_PER_GROUP = 20;
+   private static final int GROUPS_PER_SECTION = 20;
+   private static final int HOSTS_PER_GROUP = 4;
+   private static final ObjectMapper MAPPER = new ObjectMapper();
+
+   private BenchmarkData() {
+   }
+
+   /**
+    * @param keys how many keys the document has
+    * @return the value literals by key
+    */
+   static Map<String, String> values(int keys) {
+      Map<String, String> values = new TreeMap<>();
+      for (int n = 0; n < keys; n++) {
+         String group = "section" + n / (FIELDS_PER_GROUP * GROUPS_PER_SECTION) + KVStore.HIERARCHY_SEPARATOR
+               + "group" + (n / FIELDS_PER_GROUP) % GROUPS_PER_SECTION + KVStore.HIERARCHY_SEPARATOR;
+         int field = n % FIELDS_PER_GROUP;
+         if (field < HOSTS_PER_GROUP) {
+            values.put(group + "hosts" + KVStore.HIERARCHY_SEPARATOR + KVStore.ARRAY_PREFIX + field, "\"host-" + n + "\"");
+         } else {
+            values.put(group + "f" + field, literal(n, ""));
+         }
+      }
+      return values;
+   }
+
+   /**
+    * Overrides a share of the keys with values of their own
+    * @param values the default values
+    * @param ratio  the share of keys to override, from 0 to 1
+    */
+   static List<KeyValue> overrides(Map<String, String> values, double ratio) {
+      int every = Math.max(1, (int) Math.round(1 / ratio));
+      List<KeyValue> overrides = new ArrayList<>();
+      int n = 0;
+      for (String key : values.keySet()) {
+         if (n++ % every == 0) {
+            overrides.add(KeyValue.from(key, literal(n, "region-")));
+         }
+      }
+      return overrides;
+   }
+
+   private static String literal(int n, String prefix) {
+      switch (n % 3) {
+         case 0: return Integer.toString(n);
+         case 1: return "\"" + prefix + "s-" + n + "\"";
+         default: return n % 2 == 0 ? KVStore.TRUE : KVStore.FALSE;
+      }
+   }
+
+   /**
+    * The JSON template the values would have been loaded from
+    */
+   static byte[] template(Map<String, String> values) throws Exception {
+      ObjectNode root = MAPPER.createObjectNode();
+      for (Map.Entry<String, String> value : values.entrySet()) {
+         String[] path = value.getKey().split(KVStore.HIERARCHY_SEPARATOR);
+         JsonNode parent = root;
+         for (int n = 0; n < path.length - 1; n++) {
+            boolean array = path[n + 1].startsWith(KVStore.ARRAY_PREFIX);
+            JsonNode child = parent.get(path[n]);
+            if (child == null) {
+               child = array ? ((ObjectNode) parent).putArray(path[n]) : ((ObjectNode) parent).putObject(path[n]);
+            }
+            parent = child;
+         }
+         JsonNode leaf = MAPPER.readTree(value.getValue());
+         if (parent.isArray()) {
+            ((ArrayNode) parent).add(leaf);
+         } else {
+            ((ObjectNode) parent).set(path[path.length - 1], leaf);
+         }
+      }
+      return MAPPER.writeValueAsBytes(root);
+   }
+
+   /**
+    * Loads a document into the default region and a share of overrides into a region
+    */
+   static void load(KVStore defaultRegion, KVStore region, Map<String, String> values, double overrideRatio)
+         throws KVStoreException {
+      List<KeyValue> defaults = new ArrayList<>();
+      values.forEach((k, v) -> defaults.add(KeyValue.from(k, v)));
+      defaultRegion.putAll(defaults, AUTHOR, true);
+      region.putAll(overrides(values, overrideRatio), AUTHOR, true);
+   }
+}
@@ -0,0 +1,64 @@
+package com.cvent.kvstore.benchmark;
+
+import com.cvent.kvstore.Document;
+import com.cvent.kvstore.DocumentType;
+import com.cvent.kvstore.TemplateToDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Loading documents from templates and moving them in and out of the store
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DocumentBenchmark {
+
+   @Param({"100", "1000", "10000", "50000"})
+   public int keys;
+
+   private byte[] template;
+   private Document document;
+   private String serialized;
+   private Set<String> unsortedKeys;
+
+   @Setup
+   public void setup() throws Exception {
+      template = BenchmarkData.template(BenchmarkData.values(keys));
+      document = TemplateToDocument.from(new ByteArrayInputStream(template), DocumentType.JSON);
+      serialized = document.serialize();
+      unsortedKeys = new HashSet<>(document.keys());
+   }
+
+   @Benchmark
+   public Document templateToDocument() throws Exception {
+      return TemplateToDocument.from(new ByteArrayInputStream(template), DocumentType.JSON);
+   }
+
+   @Benchmark
+   public String serialize() {
+      return document.serialize();
+   }
+
+   @Benchmark
+   public Document deserialize() {
+      return Document.deserialize(serialized);
+   }
+
+   @Benchmark
+   public Set<String> sortKeys() {
+      // Document.sort orders with Document.keySortComparator
+      return Document.sort(unsortedKeys);
+   }
+}
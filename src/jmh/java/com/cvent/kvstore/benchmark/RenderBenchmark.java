@@ -0,0 +1,68 @@
+package com.cvent.kvstore.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.ConfigGenerator;
+import com.cvent.kvstore.Document;
+import com.cvent.kvstore.DocumentType;
+import com.cvent.kvstore.InMemoryKVDao;
+import com.cvent.kvstore.KVSStoreDao;
+import com.cvent.kvstore.KVStore;
+import com.cvent.kvstore.SimpleKVStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Rendering a region of a document, from reading the store to writing the output
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RenderBenchmark {
+
+   @Param({"100", "1000", "10000", "50000"})
+   public int keys;
+
+   @Param({"0.01", "0.1", "0.5"})
+   public double overrideRatio;
+
+   private Document document;
+   private ConfigGenerator generator;
+   // Reused so that the benchmark measures the render rather than growing a buffer
+   private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+
+   @Setup
+   public void setup() throws Exception {
+      KVSStoreDao dao = new InMemoryKVDao();
+      MetricRegistry metrics = new MetricRegistry();
+      Map<String, String> values = BenchmarkData.values(keys);
+      KVStore region = SimpleKVStore.forRegion("bench", "alpha", dao, metrics);
+      BenchmarkData.load(SimpleKVStore.forDefaultRegion("bench", dao, metrics), region, values, overrideRatio);
+      document = Document.from(values.keySet());
+      generator = new ConfigGenerator(region, metrics);
+   }
+
+   @Benchmark
+   public int renderJson() throws IOException {
+      out.reset();
+      generator.generate(document, DocumentType.JSON, out);
+      return out.size();
+   }
+
+   @Benchmark
+   public int renderYaml() throws IOException {
+      out.reset();
+      generator.generate(document, DocumentType.YAML, out);
+      return out.size();
+   }
+}
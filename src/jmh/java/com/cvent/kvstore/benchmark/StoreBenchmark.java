@@ -0,0 +1,81 @@
+package com.cvent.kvstore.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.InMemoryKVDao;
+import com.cvent.kvstore.KVSStoreDao;
+import com.cvent.kvstore.KVScan;
+import com.cvent.kvstore.KVStore;
+import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.SimpleKVStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writing and reading a region through SimpleKVStore against the in-memory store, which leaves the cost
+ * of the store itself: validation, auditing, indexing and merging the region with the default region
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StoreBenchmark {
+
+   @Param({"100", "1000", "10000", "50000"})
+   public int keys;
+
+   @Param({"0.01", "0.1", "0.5"})
+   public double overrideRatio;
+
+   private KVStore region;
+   private List<String> keyList;
+   private int next;
+
+   @Setup
+   public void setup() throws Exception {
+      KVSStoreDao dao = new InMemoryKVDao();
+      MetricRegistry metrics = new MetricRegistry();
+      Map<String, String> values = BenchmarkData.values(keys);
+      region = SimpleKVStore.forRegion("bench", "alpha", dao, metrics);
+      BenchmarkData.load(SimpleKVStore.forDefaultRegion("bench", dao, metrics), region, values, overrideRatio);
+      keyList = new ArrayList<>(values.keySet());
+   }
+
+   @Benchmark
+   public boolean put() throws KVStoreException {
+      // A new value every time, so that every put writes
+      int n = next++;
+      return region.put(keyList.get(n % keyList.size()), "\"value-" + n + "\"", BenchmarkData.AUTHOR, false);
+   }
+
+   @Benchmark
+   public Map<String, String> getHierarchyAt() {
+      return region.getHierarchyAt("section0");
+   }
+
+   @Benchmark
+   public Map<String, String> getEntireRegion() {
+      return region.getEntireRegion();
+   }
+
+   @Benchmark
+   public int scanEntireRegion() {
+      int count = 0;
+      try (KVScan scan = region.scanEntireRegion()) {
+         while (scan.hasNext()) {
+            scan.next();
+            count++;
+         }
+      }
+      return count;
+   }
+}
@@ -0,0 +1,30 @@
+package com.cvent.kvstore;
+
+import com.google.common.base.Optional;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * A KVSStoreDao that can also read without blocking the caller, so that independent reads
+ * (say, of a region and of the default region) can be in flight at the same time.
+ */
+public interface AsyncKVSStoreDao extends KVSStoreDao {
+
+   /**
+    * Gets a single value at a key
+    * @param key the key to get
+    * @return completes with the value for the given key
+    */
+   CompletableFuture<Optional<String>> getValueAtAsync(String key);
+
+   /**
+    * Retrieves a tree of key-value pair at a given key
+    * @param key          the key
+    * @param keyTransform transforms keys when creating the return value map, if not null
+    * @return completes with a map of key-value pairs
+    */
+   CompletableFuture<Map<String, String>> getHierarchyAsMapAsync(String key, Function<String, String> keyTransform);
+
+}
@@ -0,0 +1,205 @@
+package com.cvent.kvstore;
+
+import com.cvent.JsonSerializer;
+import com.cvent.kvstore.dw.AuditCompactionConfig;
+import com.cvent.kvstore.model.AuditLog;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.cvent.kvstore.KVStore.HIERARCHY_SEPARATOR;
+
+/**
+ * Folds old audit records and old audit index buckets into segments (see AuditSegments) and drops them once
+ * they are past retention.
+ *
+ * Every step writes the segment before deleting the records it holds, so a pass that is interrupted leaves
+ * records both live and compacted; readers merge the two and the next pass writes the same segment again.
+ * A document or bucket that fails to compact is logged and left for the next pass; the rest of the pass goes on.
+ */
+public class AuditCompactor implements Managed {
+   private static final Logger LOG = LoggerFactory.getLogger(AuditCompactor.class);
+
+   private final KVSStoreDao dao;
+   private final AuditCompactionConfig config;
+   private ScheduledExecutorService scheduler;
+
+   public AuditCompactor(KVSStoreDao dao, AuditCompactionConfig config) {
+      this.dao = dao;
+      this.config = config;
+   }
+
+   @Override
+   public void start() {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("audit-compactor").setDaemon(true).build());
+      scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            compact(System.currentTimeMillis());
+         } catch (Exception e) {
+            // The next pass picks up where this one failed
+            LOG.warn("Audit compaction failed", e);
+         }
+      }, config.getIntervalMinutes(), config.getIntervalMinutes(), TimeUnit.MINUTES);
+   }
+
+   @Override
+   public void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+      }
+   }
+
+   /**
+    * Runs one pass of compaction and retention
+    * @param now the time to measure the age of records from
+    */
+   public void compact(long now) throws IOException, KVStoreException {
+      long compactBefore = now - TimeUnit.DAYS.toMillis(config.getCompactAfterDays());
+      long dropBefore = config.getRetentionDays() > 0 ? now - TimeUnit.DAYS.toMillis(config.getRetentionDays()) : 0;
+
+      for (String document : auditedDocuments()) {
+         try {
+            compactDocument(document, compactBefore);
+         } catch (Exception e) {
+            LOG.warn("Could not compact the audit trail of " + document, e);
+         }
+      }
+      if (dropBefore > 0) {
+         dropSegments(dropBefore);
+      }
+      compactIndexes(compactBefore, dropBefore);
+   }
+
+   private Collection<String> auditedDocuments() {
+      String auditRegion = KVStore.AUDIT_REGION + HIERARCHY_SEPARATOR;
+      Collection<String> documents = new TreeSet<>();
+      for (String key : dao.getKeysAt(auditRegion).or(Collections.emptyList())) {
+         int end = key.indexOf(HIERARCHY_SEPARATOR, auditRegion.length());
+         if (end > auditRegion.length()) {
+            documents.add(key.substring(auditRegion.length(), end));
+         }
+      }
+      return documents;
+   }
+
+   private void compactDocument(String document, long compactBefore) throws IOException, KVStoreException {
+      // audit/doc/ holds every revision of every key of the document
+      String auditHierarchy = KVStore.AUDIT_REGION + HIERARCHY_SEPARATOR + document + HIERARCHY_SEPARATOR;
+      Map<String, List<AuditLog>> logsByKey = new HashMap<>();
+      for (String record : dao.getHierarchyAsMap(auditHierarchy, null).values()) {
+         AuditLog log = JsonSerializer.fromJson(record, AuditLog.class);
+         logsByKey.computeIfAbsent(log.getRegion() + HIERARCHY_SEPARATOR + log.getKey(), k -> new ArrayList<>()).add(log);
+      }
+
+      for (List<AuditLog> logs : logsByKey.values()) {
+         logs.sort((l1, l2) -> Integer.compare(l1.getVersion(), l2.getVersion()));
+         // The latest revision stays live: writes read it to tell whether a value changed
+         List<AuditLog> old = new ArrayList<>();
+         for (AuditLog log : logs.subList(0, logs.size() - 1)) {
+            if (log.getTimestamp() < compactBefore) {
+               old.add(log);
+            }
+         }
+         writeSegments(old, AuditSegments::segmentKeyFor, AuditSegments::encode,
+               log -> KeyProvider.auditKeyForRevision(log.getDocument(), log.getRegion(), log.getKey(), log.getVersion()));
+      }
+   }
+
+   private void dropSegments(long dropBefore) throws KVStoreException {
+      String segments = KVStore.AUDIT_SEGMENT_REGION + HIERARCHY_SEPARATOR;
+      for (String segmentKey : dao.getKeysAt(segments).or(Collections.emptyList())) {
+         if (AuditSegments.lastTimestampOf(segmentKey) < dropBefore) {
+            dao.deleteKey(segmentKey);
+         }
+      }
+   }
+
+   private void compactIndexes(long compactBefore, long dropBefore) throws KVStoreException {
+      // Buckets with entries that are still live, by whether they have any
+      Map<String, Boolean> buckets = new TreeMap<>();
+      for (String indexKey : dao.getKeysAt(AuditIndex.allIndexes()).or(Collections.emptyList())) {
+         String bucketPrefix = AuditIndex.bucketPrefixOf(indexKey);
+         buckets.merge(bucketPrefix, !AuditIndex.isSegment(bucketPrefix, indexKey), Boolean::logicalOr);
+      }
+
+      for (Map.Entry<String, Boolean> bucket : buckets.entrySet()) {
+         String bucketPrefix = bucket.getKey();
+         long bucketEnd = AuditIndex.bucketStart(bucketPrefix) + AuditIndex.bucketMillis();
+         if (bucketEnd <= dropBefore) {
+            dao.deleteHierarchyAt(bucketPrefix);
+         } else if (bucketEnd <= compactBefore && bucket.getValue()) {
+            try {
+               compactBucket(bucketPrefix);
+            } catch (Exception e) {
+               LOG.warn("Could not compact the audit index bucket " + bucketPrefix, e);
+            }
+         }
+      }
+   }
+
+   private void compactBucket(String bucketPrefix) throws KVStoreException {
+      SortedMap<String, String> live = new TreeMap<>();
+      for (Map.Entry<String, String> entry : dao.getHierarchyAsMap(bucketPrefix, null).entrySet()) {
+         if (!AuditIndex.isSegment(bucketPrefix, entry.getKey())) {
+            live.put(entry.getKey().substring(bucketPrefix.length()), entry.getValue());
+         }
+      }
+      Function<List<String>, SortedMap<String, String>> entriesOf = chunk -> {
+         SortedMap<String, String> entries = new TreeMap<>();
+         chunk.forEach(suffix -> entries.put(suffix, live.get(suffix)));
+         return entries;
+      };
+      writeSegments(new ArrayList<>(live.keySet()),
+            chunk -> AuditIndex.segmentKeyFor(bucketPrefix, entriesOf.apply(chunk)),
+            chunk -> AuditSegments.encodeEntries(entriesOf.apply(chunk)),
+            suffix -> bucketPrefix + suffix);
+   }
+
+   /**
+    * Writes records as segments of at most MAX_RECORDS_PER_SEGMENT records and MAX_SEGMENT_BYTES, halving any that
+    * encodes too large, and deletes each segment's live records once it is written. A record too large for a
+    * segment of its own stays live.
+    */
+   private <T> void writeSegments(List<T> records, Function<List<T>, String> keyFor, Function<List<T>, String> encode,
+                                  Function<T, String> liveKeyOf) throws KVStoreException {
+      for (List<T> chunk : Lists.partition(records, AuditSegments.MAX_RECORDS_PER_SEGMENT)) {
+         writeSegment(chunk, keyFor, encode, liveKeyOf);
+      }
+   }
+
+   private <T> void writeSegment(List<T> chunk, Function<List<T>, String> keyFor, Function<List<T>, String> encode,
+                                 Function<T, String> liveKeyOf) throws KVStoreException {
+      String segment = encode.apply(chunk);
+      // Segments are Base64, so their length is their size in bytes
+      if (segment.length() <= AuditSegments.MAX_SEGMENT_BYTES) {
+         dao.put(keyFor.apply(chunk), segment);
+         for (T record : chunk) {
+            dao.deleteKey(liveKeyOf.apply(record));
+         }
+      } else if (chunk.size() == 1) {
+         LOG.warn("The audit record for " + keyFor.apply(chunk) + " is too large to compact; it stays live");
+      } else {
+         int half = chunk.size() / 2;
+         writeSegment(chunk.subList(0, half), keyFor, encode, liveKeyOf);
+         writeSegment(chunk.subList(half, chunk.size()), keyFor, encode, liveKeyOf);
+      }
+   }
+}
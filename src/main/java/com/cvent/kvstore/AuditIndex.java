@@ -0,0 +1,317 @@
+package com.cvent.kvstore;
+
+import com.cvent.JsonSerializer;
+import com.cvent.kvstore.model.AuditLog;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.cvent.kvstore.KVStore.AUDIT_INDEX_REGION;
+import static com.cvent.kvstore.KVStore.HIERARCHY_SEPARATOR;
+
+/**
+ * Secondary indexes of the audit trail, by document/region, by author and by time.
+ *
+ * Each audit record is also written, in the same transaction, under one key per index. The keys are grouped
+ * into hourly buckets and ordered by time within a bucket, so a time range is read one bucket at a time:
+ *    auditindex/region/auth/alpha/2016021513/1455543012345/server/port/3
+ *    auditindex/author/c2FiYXJp/2016021513/1455543012345/auth/alpha/server/port/3
+ *    auditindex/time/2016021513/1455543012345/auth/alpha/server/port/3
+ * Index entries hold the whole record, so a query reads nothing but the buckets in its range. The buckets an index
+ * has are listed with one keys-only read first, so that a query over a long range reads only the hours that had
+ * changes and stops at the bucket where its page fills up.
+ * Authors are matched ignoring case, as everywhere in the audit trail, and are lower-cased and base64url encoded in
+ * the author index, so that their keys need no escaping in a Consul URL (which would be decoded once too often).
+ * Old buckets are compacted into segments within the bucket (auditindex/time/2016021513/segment-...),
+ * which queries read along with any entries still live.
+ */
+public class AuditIndex {
+   public static final int ENTRIES_PER_RECORD = 3;
+
+   private static final String BY_REGION = "region";
+   private static final String BY_AUTHOR = "author";
+   private static final String BY_TIME = "time";
+   private static final long BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+   private static final DateTimeFormatter BUCKET_FORMAT = DateTimeFormat.forPattern("yyyyMMddHH").withZone(DateTimeZone.UTC);
+   // Timestamps are zero padded so that they sort by time
+   private static final int TIMESTAMP_DIGITS = 13;
+   private static final BaseEncoding AUTHOR_ENCODING = BaseEncoding.base64Url().omitPadding();
+   private static final BaseEncoding CURSOR_ENCODING = BaseEncoding.base64Url().omitPadding();
+   private static final String SEGMENT_PREFIX = "segment-";
+
+   private final KVSStoreDao dao;
+
+   public AuditIndex(KVSStoreDao dao) {
+      this.dao = dao;
+   }
+
+   /**
+    * Gets the index entries for an audit record
+    * @param log     the audit record
+    * @param record  the serialized audit record
+    * @return the keys and values to write along with the record
+    */
+   public static List<KeyValue> entriesFor(AuditLog log, String record) {
+      String entry = bucket(log.getTimestamp()) + HIERARCHY_SEPARATOR + timestamp(log.getTimestamp());
+      String revision = log.getKey() + HIERARCHY_SEPARATOR + log.getVersion();
+      String documentRegion = log.getDocument() + HIERARCHY_SEPARATOR + log.getRegion();
+      List<KeyValue> entries = new ArrayList<>(ENTRIES_PER_RECORD);
+      entries.add(KeyValue.from(regionIndexFor(log.getDocument(), log.getRegion()) + entry + HIERARCHY_SEPARATOR
+            + revision, record));
+      entries.add(KeyValue.from(authorIndexFor(log.getAuthor()) + entry + HIERARCHY_SEPARATOR + documentRegion
+            + HIERARCHY_SEPARATOR + revision, record));
+      entries.add(KeyValue.from(timeIndex() + entry + HIERARCHY_SEPARATOR + documentRegion + HIERARCHY_SEPARATOR
+            + revision, record));
+      return entries;
+   }
+
+   /**
+    * The key for the index of a document for a region
+    * auditindex/region/auth/alpha/
+    */
+   public static String regionIndexFor(String document, String region) {
+      return AUDIT_INDEX_REGION + HIERARCHY_SEPARATOR + BY_REGION + HIERARCHY_SEPARATOR + document + HIERARCHY_SEPARATOR
+            + region + HIERARCHY_SEPARATOR;
+   }
+
+   private static String authorIndexFor(String author) {
+      return AUDIT_INDEX_REGION + HIERARCHY_SEPARATOR + BY_AUTHOR + HIERARCHY_SEPARATOR
+            + AUTHOR_ENCODING.encode(author.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8))
+            + HIERARCHY_SEPARATOR;
+   }
+
+   private static String timeIndex() {
+      return AUDIT_INDEX_REGION + HIERARCHY_SEPARATOR + BY_TIME + HIERARCHY_SEPARATOR;
+   }
+
+   private static String bucket(long timestamp) {
+      return BUCKET_FORMAT.print(timestamp);
+   }
+
+   private static String timestamp(long timestamp) {
+      return Strings.padStart(Long.toString(timestamp), TIMESTAMP_DIGITS, '0');
+   }
+
+   /**
+    * Finds audit records, oldest first, using the most selective index for the query
+    * @param query    what to look for
+    * @param limit    the most records to return
+    * @param consumer receives each serialized record
+    * @return the cursor to pass back for the next page, or null if there are no more records
+    */
+   public String find(AuditQuery query, int limit, RecordConsumer consumer) throws IOException {
+      String index = query.index;
+      String after = query.after;
+      long firstBucket = after != null ? bucketStartOf(after.substring(index.length()))
+            : query.since() - query.since() % BUCKET_MILLIS;
+
+      int found = 0;
+      String last = null;
+      // Bucket names sort by time
+      for (String bucketPrefix : dao.getChildKeysAt(index)) {
+         if (!bucketPrefix.endsWith(HIERARCHY_SEPARATOR)) {
+            continue;
+         }
+         long bucketStart = bucketStart(bucketPrefix);
+         if (bucketStart < firstBucket) {
+            continue;
+         } else if (bucketStart >= query.until()) {
+            break;
+         }
+         // Keys within a bucket sort by time
+         Map<String, String> entries = new TreeMap<>();
+         for (Map.Entry<String, String> entry : dao.getHierarchyAsMap(bucketPrefix, null).entrySet()) {
+            if (isSegment(bucketPrefix, entry.getKey())) {
+               for (Map.Entry<String, String> compacted : AuditSegments.decodeEntries(entry.getValue()).entrySet()) {
+                  entries.put(bucketPrefix + compacted.getKey(), compacted.getValue());
+               }
+            } else {
+               entries.put(entry.getKey(), entry.getValue());
+            }
+         }
+         for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            if (after != null && key.compareTo(after) <= 0) {
+               continue;
+            }
+            long timestamp = Long.parseLong(key.substring(bucketPrefix.length(),
+                  key.indexOf(HIERARCHY_SEPARATOR, bucketPrefix.length())));
+            if (timestamp < query.since() || timestamp >= query.until() || !query.matches(key.substring(index.length()))
+                  || !query.matchesRecord(entry.getValue())) {
+               continue;
+            }
+            if (found == limit) {
+               return CURSOR_ENCODING.encode(last.getBytes(StandardCharsets.UTF_8));
+            }
+            consumer.accept(entry.getValue());
+            last = key;
+            found++;
+         }
+      }
+      return null;
+   }
+
+   // The start of the bucket of an index entry: the entry starts with its bucket
+   private static long bucketStartOf(String entry) {
+      return BUCKET_FORMAT.parseMillis(entry.substring(0, entry.indexOf(HIERARCHY_SEPARATOR)));
+   }
+
+   /**
+    * The key of all the indexes
+    * auditindex/
+    */
+   public static String allIndexes() {
+      return AUDIT_INDEX_REGION + HIERARCHY_SEPARATOR;
+   }
+
+   /**
+    * Gets the bucket an index key is in
+    * @param indexKey an entry or segment of any of the indexes
+    * @return the key of the bucket (auditindex/time/2016021513/)
+    */
+   public static String bucketPrefixOf(String indexKey) {
+      // auditindex/<index>/<the index's own parts>/<bucket>/...
+      int start = allIndexes().length();
+      int end = indexKey.indexOf(HIERARCHY_SEPARATOR, start);
+      String index = indexKey.substring(start, end);
+      int parts = BY_REGION.equals(index) ? 3 : BY_AUTHOR.equals(index) ? 2 : 1;
+      for (int n = 0; n < parts; n++) {
+         end = indexKey.indexOf(HIERARCHY_SEPARATOR, end + 1);
+      }
+      return indexKey.substring(0, end + 1);
+   }
+
+   /**
+    * @param bucketPrefix the key of a bucket
+    * @return when the bucket's hour starts
+    */
+   public static long bucketStart(String bucketPrefix) {
+      int end = bucketPrefix.length() - 1;
+      return BUCKET_FORMAT.parseMillis(bucketPrefix.substring(bucketPrefix.lastIndexOf(HIERARCHY_SEPARATOR, end - 1) + 1, end));
+   }
+
+   public static long bucketMillis() {
+      return BUCKET_MILLIS;
+   }
+
+   public static boolean isSegment(String bucketPrefix, String indexKey) {
+      return indexKey.startsWith(SEGMENT_PREFIX, bucketPrefix.length());
+   }
+
+   /**
+    * The key of a segment of a bucket holding the given entries
+    * @param bucketPrefix the key of the bucket
+    * @param entries      the entries, by their key past the bucket, in index order
+    */
+   public static String segmentKeyFor(String bucketPrefix, SortedMap<String, String> entries) {
+      String first = entries.firstKey();
+      String last = entries.lastKey();
+      return bucketPrefix + SEGMENT_PREFIX + first.substring(0, first.indexOf(HIERARCHY_SEPARATOR)) + "-"
+            + last.substring(0, last.indexOf(HIERARCHY_SEPARATOR)) + "-" + entries.size();
+   }
+
+   /**
+    * Receives audit records as they are found
+    */
+   public interface RecordConsumer {
+      void accept(String record) throws IOException;
+   }
+
+   /**
+    * What to look for in the audit trail: records between since (inclusive) and until (exclusive) for any
+    * combination of document, region and author
+    */
+   public static class AuditQuery {
+      private final String document;
+      private final String region;
+      private final String author;
+      private final long since;
+      private final long until;
+      private final String cursor;
+      // The index to read and the index entry the cursor points at
+      private final String index;
+      private final String after;
+
+      private AuditQuery(String document, String region, String author, long since, long until, String cursor) {
+         this.document = document;
+         this.region = region;
+         this.author = author;
+         this.since = since;
+         this.until = until;
+         this.cursor = cursor;
+         if (document != null && region != null) {
+            index = regionIndexFor(document, region);
+         } else if (author != null) {
+            index = authorIndexFor(author);
+         } else {
+            index = timeIndex();
+         }
+         after = cursor != null ? new String(CURSOR_ENCODING.decode(cursor), StandardCharsets.UTF_8) : null;
+         if (after != null && (!after.startsWith(index) || after.indexOf(HIERARCHY_SEPARATOR, index.length()) < 0)) {
+            throw new IllegalArgumentException("The cursor is not from this query");
+         }
+      }
+
+      /**
+       * @throws IllegalArgumentException if the cursor is not from the same query
+       */
+      public static AuditQuery from(String document, String region, String author, long since, long until,
+                                    String cursor) {
+         return new AuditQuery(document, region, author, since, until, cursor);
+      }
+
+      public String document() {
+         return document;
+      }
+
+      public String region() {
+         return region;
+      }
+
+      public String author() {
+         return author;
+      }
+
+      public long since() {
+         return since;
+      }
+
+      public long until() {
+         return until;
+      }
+
+      public String cursor() {
+         return cursor;
+      }
+
+      // Whether an index entry (past the index prefix) matches the parts of the query the index does not cover
+      private boolean matches(String entry) {
+         if (document != null && region != null) {
+            // The region index; the author is only in the record
+            return true;
+         }
+         // bucket/timestamp/document/region/key/revision
+         String[] parts = entry.split(HIERARCHY_SEPARATOR, 5);
+         return parts.length == 5 && (document == null || document.equals(parts[2]))
+               && (region == null || region.equals(parts[3]));
+      }
+
+      // Whether a record matches the author when the region index, which does not cover authors, was used
+      private boolean matchesRecord(String record) throws IOException {
+         return author == null || document == null || region == null
+               || author.equalsIgnoreCase(JsonSerializer.fromJson(record, AuditLog.class).getAuthor());
+      }
+   }
+}
@@ -0,0 +1,215 @@
+package com.cvent.kvstore;
+
+import com.cvent.JsonSerializer;
+import com.cvent.kvstore.model.AuditLog;
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.cvent.kvstore.KVStore.AUDIT_SEGMENT_REGION;
+import static com.cvent.kvstore.KVStore.HIERARCHY_SEPARATOR;
+
+/**
+ * Compacted audit records.
+ *
+ * Old revisions of a key are folded into segments: one key holding many records, gzipped, in a binary encoding that
+ * leaves out the document, region and key they share. Segments are named after the revisions and the last
+ * timestamp they hold, so retention can be applied from a key listing alone:
+ *    auditsegment/auth/alpha/server/port/1-250-1455543012345
+ * Old buckets of the audit indexes are folded the same way into one segment per bucket (see AuditIndex).
+ */
+public class AuditSegments {
+   // Bounds the work of decoding a segment
+   public static final int MAX_RECORDS_PER_SEGMENT = 500;
+   // Keeps segments under Consul's 512KB limit on the size of a value, with room to spare
+   public static final int MAX_SEGMENT_BYTES = 256 * 1024;
+
+   private static final byte FORMAT = 1;
+   private static final String RANGE_SEPARATOR = "-";
+   private static final BaseEncoding ENCODING = BaseEncoding.base64();
+
+   private AuditSegments() {
+   }
+
+   /**
+    * The key for the segments of a document for a region for a key
+    * auditsegment/auth/alpha/server/port/
+    */
+   public static String segmentHierarchyFor(String document, String region, String key) {
+      return segmentHierarchyForEntireDocument(document) + region + HIERARCHY_SEPARATOR + key + HIERARCHY_SEPARATOR;
+   }
+
+   /**
+    * The key for the segments of a document across all regions
+    * auditsegment/auth/
+    */
+   public static String segmentHierarchyForEntireDocument(String document) {
+      return AUDIT_SEGMENT_REGION + HIERARCHY_SEPARATOR + document + HIERARCHY_SEPARATOR;
+   }
+
+   /**
+    * The key of a segment holding revisions of a key, in revision order
+    */
+   public static String segmentKeyFor(List<AuditLog> logs) {
+      AuditLog first = logs.get(0);
+      AuditLog last = logs.get(logs.size() - 1);
+      return segmentHierarchyFor(first.getDocument(), first.getRegion(), first.getKey()) + first.getVersion()
+            + RANGE_SEPARATOR + last.getVersion() + RANGE_SEPARATOR + last.getTimestamp();
+   }
+
+   /**
+    * The timestamp of the newest record of a segment, from its key
+    */
+   public static long lastTimestampOf(String segmentKey) {
+      return Long.parseLong(segmentKey.substring(segmentKey.lastIndexOf(RANGE_SEPARATOR) + 1));
+   }
+
+   /**
+    * Checks if a key under segmentHierarchyFor(...) is a segment of that very key rather than of a key under it
+    */
+   public static boolean isSegmentOf(String segmentHierarchy, String segmentKey) {
+      return segmentKey.indexOf(HIERARCHY_SEPARATOR, segmentHierarchy.length()) < 0;
+   }
+
+   /**
+    * Encodes revisions of one key
+    * @param logs the revisions, all of the same document, region and key
+    * @return the segment
+    */
+   public static String encode(List<AuditLog> logs) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+         out.writeByte(FORMAT);
+         out.writeInt(logs.size());
+         for (AuditLog log : logs) {
+            out.writeInt(log.getVersion());
+            out.writeLong(log.getTimestamp());
+            writeString(out, log.getAuthor());
+            writeString(out, log.getOldValue());
+            writeString(out, log.getNewValue());
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Could not write audit segment", e);
+      }
+      return ENCODING.encode(bytes.toByteArray());
+   }
+
+   /**
+    * Decodes a segment written by encode
+    * @return the revisions
+    */
+   public static List<AuditLog> decode(String segment, String document, String region, String key) throws IOException {
+      try (DataInputStream in = open(segment)) {
+         int count = in.readInt();
+         List<AuditLog> logs = new ArrayList<>(count);
+         for (int n = 0; n < count; n++) {
+            int version = in.readInt();
+            long timestamp = in.readLong();
+            AuditLog log = new AuditLog(document, readString(in), region, key, readString(in), readString(in), version);
+            log.setTimestamp(timestamp);
+            logs.add(log);
+         }
+         return logs;
+      }
+   }
+
+   /**
+    * Encodes entries of an index bucket
+    * @param entries serialized records by their index key past the bucket
+    * @return the segment
+    */
+   public static String encodeEntries(Map<String, String> entries) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+         out.writeByte(FORMAT);
+         out.writeInt(entries.size());
+         for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Could not write audit index segment", e);
+      }
+      return ENCODING.encode(bytes.toByteArray());
+   }
+
+   /**
+    * Decodes a segment written by encodeEntries
+    * @return serialized records by their index key past the bucket, in index order
+    */
+   public static SortedMap<String, String> decodeEntries(String segment) throws IOException {
+      try (DataInputStream in = open(segment)) {
+         int count = in.readInt();
+         SortedMap<String, String> entries = new TreeMap<>();
+         for (int n = 0; n < count; n++) {
+            entries.put(readString(in), readString(in));
+         }
+         return entries;
+      }
+   }
+
+   /**
+    * Reads every revision of a key, live or compacted, in revision order
+    */
+   public static List<AuditLog> readAll(KVSStoreDao dao, String document, String region, String key) throws IOException {
+      TreeMap<Integer, AuditLog> logs = new TreeMap<>();
+      String segmentHierarchy = segmentHierarchyFor(document, region, key);
+      for (Map.Entry<String, String> segment : dao.getHierarchyAsMap(segmentHierarchy, null).entrySet()) {
+         if (isSegmentOf(segmentHierarchy, segment.getKey())) {
+            decode(segment.getValue(), document, region, key).forEach(log -> logs.put(log.getVersion(), log));
+         }
+      }
+      String auditHierarchy = KeyProvider.auditHierarchyFor(document, region, key) + HIERARCHY_SEPARATOR;
+      // A record may be both live and in a segment if compaction was interrupted; they are the same record
+      for (Map.Entry<String, String> live : dao.getHierarchyAsMap(auditHierarchy, null).entrySet()) {
+         if (live.getKey().indexOf(HIERARCHY_SEPARATOR, auditHierarchy.length()) < 0) {
+            AuditLog log = JsonSerializer.fromJson(live.getValue(), AuditLog.class);
+            logs.put(log.getVersion(), log);
+         }
+      }
+      return new ArrayList<>(logs.values());
+   }
+
+   private static DataInputStream open(String segment) throws IOException {
+      DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(ENCODING.decode(segment))));
+      byte format = in.readByte();
+      if (format != FORMAT) {
+         in.close();
+         throw new IOException("Unknown audit segment format " + format);
+      }
+      return in;
+   }
+
+   // Strings are written as their length in bytes, or -1 for null, and their UTF-8 bytes
+   private static void writeString(DataOutputStream out, String s) throws IOException {
+      if (s == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
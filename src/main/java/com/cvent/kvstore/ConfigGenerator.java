@@ -1,20 +1,16 @@
 package com.cvent.kvstore;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * Generates a config for a region in either YAML/JSON based on a set of keys.
@@ -24,158 +20,143 @@ import java.util.Set;
  * Created by sviswanathan on 2/14/16.
  */
 public class ConfigGenerator {
+   // Factories are thread-safe and expensive to create
+   private static final JsonFactory JSON_FACTORY = new JsonFactory();
+   private static final JsonFactory YAML_FACTORY = new YAMLFactory();
+
    private KVStore kvStore;
+   // String values are copied out of their literals into this rather than into a String each
+   private char[] chars = new char[256];
 
-   public ConfigGenerator(KVStore kvStore) {
-      this.kvStore = kvStore;
-   }
+   // The phases of a render: reading the region, putting its keys in document order and writing them out
+   private final Timer fetch;
+   private final Timer sort;
+   private final Timer serialize;
+   private final Histogram keys;
 
-   public File generateToTmpFile(Document document, DocumentType docType) throws IOException {
-      File tmp = File.createTempFile("out", docType.name());
-      try (FileOutputStream os = new FileOutputStream(tmp)) {
-          generate(document, docType, os);
-          os.write("\n".getBytes());
-      }
-      return tmp;
+   public ConfigGenerator(KVStore kvStore, MetricRegistry metrics) {
+      this.kvStore = kvStore;
+      fetch = metrics.timer(MetricRegistry.name(ConfigGenerator.class, "fetch"));
+      sort = metrics.timer(MetricRegistry.name(ConfigGenerator.class, "sort"));
+      serialize = metrics.timer(MetricRegistry.name(ConfigGenerator.class, "serialize"));
+      keys = metrics.histogram(MetricRegistry.name(ConfigGenerator.class, "keys"));
    }
 
    public void generate(Document document, DocumentType docType, OutputStream os) throws IOException {
-      Iterator<String> it = document.iterateKeys();
-      Map<String, String> keyValuesFromDb = new HashMap<>();
-
-      // Since KeySet need not have all leaf nodes, defined, first, retrieve the hierarchies that we need.
-      // At the end of this loop, we will have a map containing all leaf nodes
-      while (it.hasNext()) {
-         String key = it.next();
-         if (!keyValuesFromDb.containsKey(key)) {
-            keyValuesFromDb.putAll(kvStore.getHierarchyAt(key));
+      // Since KeySet need not have all leaf nodes defined, scan the whole region once and keep the
+      // hierarchies under the document's keys. Only the pairs kept are held, not the region
+      Timer.Context phase = fetch.time();
+      List<KeyValue> keyValues = new ArrayList<>();
+      try (KVScan region = kvStore.scanEntireRegion()) {
+         while (region.hasNext()) {
+            KeyValue keyValue = region.next();
+            if (document.covers(keyValue.key())) {
+               keyValues.add(keyValue);
+            }
          }
       }
-
-      // Generate a tree representation of the set of keys requested
-      TreeNode root = TreeNode.generateTree(keyValuesFromDb);
-
-      // Traverse the tree from left to right of each node to generate the config
-      JsonFactory factory = DocumentType.YAML == docType ? new YAMLFactory() : new JsonFactory();
+      phase.stop();
+      keys.update(keyValues.size());
+
+      // Sort the keys so they are in document order: the keys of each object or array are then contiguous.
+      // The scan is in String order, which only differs where a segment is a prefix of a sibling ("db" and
+      // "db-pool"), so there is little left to sort
+      phase = sort.time();
+      keyValues.sort((kv1, kv2) -> KeyPath.compare(kv1.key(), kv2.key()));
+      phase.stop();
+
+      // The generator buffers its output and is flushed to the stream just once at the end.
+      // It is not closed since the caller owns the stream (and YAMLGenerator always closes its target)
+      phase = serialize.time();
+      JsonFactory factory = DocumentType.YAML == docType ? YAML_FACTORY : JSON_FACTORY;
       JsonGenerator jg = factory.createGenerator(os);
-      traverseTree(root, jg);
+      emit(keyValues, jg);
+      jg.flush();
+      phase.stop();
    }
 
-   private void traverseTree(TreeNode node, JsonGenerator jg) throws IOException {
-      if (node.key.length() > 0 && node.parent.dataType != JsonNodeType.ARRAY) {
-         jg.writeFieldName(node.propertyName);
-      }
-      switch (node.dataType) {
-         case OBJECT: jg.writeStartObject(); break;
-         case ARRAY: jg.writeStartArray(); break;
-         case STRING: jg.writeString((String) node.value); break;
-         case BOOLEAN: jg.writeBoolean((Boolean) node.value);  break;
-         case NUMBER: jg.writeNumber((Float) node.value); break;
+   // Walks the sorted keys once, closing the objects/arrays the previous key was in and opening the ones
+   // the next key is in by comparing the two paths. The generator keeps track of what is open, so nothing
+   // here grows with the size of the document.
+   private void emit(List<KeyValue> sortedKeyValues, JsonGenerator jg) throws IOException {
+      if (sortedKeyValues.isEmpty()) {
+         jg.writeStartObject();
+         jg.writeEndObject();
+         return;
       }
 
-      jg.flush();
-      for (TreeNode child: node.children) {
-         traverseTree(child, jg);
+      KeyPath prev = null;
+      for (KeyValue keyValue : sortedKeyValues) {
+         KeyPath path = KeyPath.from(keyValue.key());
+         int common;
+         if (prev == null) {
+            startContainer(path, 0, jg);
+            common = 0;
+         } else {
+            common = path.commonSegments(prev);
+            if (common == prev.segmentCount()) {
+               // A key under a value: there is nowhere to put it
+               continue;
+            }
+            // prev is a value within prev.segmentCount() - 1 objects/arrays below the root
+            for (int n = prev.segmentCount() - 1; n > common; n--) {
+               endContainer(jg);
+            }
+         }
+         for (int n = common; n < path.segmentCount() - 1; n++) {
+            writeName(path, n, jg);
+            startContainer(path, n + 1, jg);
+         }
+         writeName(path, path.segmentCount() - 1, jg);
+         writeValue(keyValue.value(), jg);
+         prev = path;
       }
-
-      switch (node.dataType) {
-         case OBJECT: jg.writeEndObject(); break;
-         case ARRAY: jg.writeEndArray(); break;
+      for (int n = prev.segmentCount() - 1; n >= 0; n--) {
+         endContainer(jg);
       }
-      jg.flush();
    }
 
-   // A tree representation of a Json/Yaml document with:
-   // - Leaves and only leaves representing values in the form of primitive values
-   // - All intermediate nodes are parents of hierarchies
-   // - Each node has a data type
-   // - The children of a node are ordered from left to right (does this matter (apart from for arrays)?)
-   private static class TreeNode {
-      private String propertyName; // Represents the property name of parent
-      private String key;
-      private JsonNodeType dataType;
-      private Object value;
-      private TreeNode parent;
-      private List<TreeNode> children = new LinkedList<>();
-
-      private TreeNode(String key, JsonNodeType dataType, String propertyName) {
-         this(key, dataType, propertyName, null);
+   // Array elements are keyed ...0, ...1 and have no name
+   private static void writeName(KeyPath path, int segment, JsonGenerator jg) throws IOException {
+      if (!jg.getOutputContext().inArray()) {
+         jg.writeFieldName(path.segment(segment));
       }
+   }
 
-      private TreeNode(String key, JsonNodeType dataType, String propertyName, Object value) {
-         this.propertyName = propertyName;
-         this.key = key;
-         this.dataType = dataType;
-         this.value = value;
+   // Starts the object or array holding the given segment of the path
+   private static void startContainer(KeyPath path, int segment, JsonGenerator jg) throws IOException {
+      if (path.segmentStartsWith(segment, KVStore.ARRAY_PREFIX)) {
+         jg.writeStartArray();
+      } else {
+         jg.writeStartObject();
       }
+   }
 
-      private static TreeNode generateTree(Map<String, String> keyValues) {
-         // Sort the keys so they are in document order.
-         Set<String> sortedKeys = Document.sort(keyValues.keySet());
-
-         TreeNode root = createRootNode(sortedKeys);
-         Map<String, TreeNode> nodesByKey = new HashMap<>();
-         StringBuilder sb = new StringBuilder(64);
-         for (String key : sortedKeys) {
-//            List<String> parts = Arrays.asList(key.split(KVStore.HIERARCHY_SEPARATOR));
-            String[] parts = key.split(KVStore.HIERARCHY_SEPARATOR);
-            sb.setLength(0);
-            TreeNode prev = root;
-            for (int n = 0; n < parts.length; n++) {
-               if (n > 0) sb.append(KVStore.HIERARCHY_SEPARATOR);
-               sb.append(parts[n]);
-               String nodePath = sb.toString();
-
-
-               TreeNode node = nodesByKey.get(nodePath);
-               if (node == null) {
-                  if (n < parts.length - 1) {
-                     node = new TreeNode(nodePath,
-                           parts[n + 1].startsWith(KVStore.ARRAY_PREFIX) ? JsonNodeType.ARRAY : JsonNodeType.OBJECT,
-                           parts[n]);
-                  } else {
-                     String val = keyValues.get(nodePath);
-                     if (val.startsWith("\"")) {
-                        node = new TreeNode(nodePath, JsonNodeType.STRING, parts[n], val.substring(1, val.length() - 1));
-                     } else if (KVStore.BOOLEAN_VALUES.contains(val)) {
-                        node = new TreeNode(nodePath, JsonNodeType.BOOLEAN, parts[n], Boolean.valueOf(val));
-                     } else {
-                        node = new TreeNode(nodePath, JsonNodeType.NUMBER, parts[n], Float.parseFloat(val));
-                     }
-
-                  }
-                  nodesByKey.put(nodePath, node);
-                  node.setParent(prev);
-                  prev.addChild(node);
-               }
-               prev = node;
-            }
-         }
-         return root;
-      }
-
-      private static TreeNode createRootNode(Set<String> sortedKeys) {
-         String[] parts = sortedKeys.iterator().next().split(KVStore.HIERARCHY_SEPARATOR);
-         if (parts[0].startsWith(KVStore.ARRAY_PREFIX)) {
-            return new TreeNode("", JsonNodeType.ARRAY, null);
-         } else {
-            return new TreeNode("", JsonNodeType.OBJECT, null);
-         }
+   private static void endContainer(JsonGenerator jg) throws IOException {
+      if (jg.getOutputContext().inArray()) {
+         jg.writeEndArray();
+      } else {
+         jg.writeEndObject();
       }
+   }
 
-      public void setParent(TreeNode parent) {
-         this.parent = parent;
+   // The type was checked when the value was written, so the literal is written out as is
+   private void writeValue(String val, JsonGenerator jg) throws IOException {
+      switch (ValueType.of(val)) {
+         case STRING: writeString(val, jg); break;
+         case BOOLEAN: jg.writeBoolean(KVStore.TRUE.equals(val)); break;
+         case NUMBER: jg.writeNumber(val); break;
+         case NULL: jg.writeNull(); break;
       }
+   }
 
-      private void addChild(TreeNode node) {
-         // Check to see if this child already exists
-         for (TreeNode child: children) {
-            if (node.key.equals(child.key)) {
-               return;
-            }
-         }
-         children.add(node);
+   // Writes the contents of a string literal
+   private void writeString(String literal, JsonGenerator jg) throws IOException {
+      int length = literal.length() - 2;
+      if (chars.length < length) {
+         chars = new char[Math.max(length, chars.length * 2)];
       }
-
+      literal.getChars(1, literal.length() - 1, chars, 0);
+      jg.writeString(chars, 0, length);
    }
 }
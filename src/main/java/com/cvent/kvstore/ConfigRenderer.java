@@ -0,0 +1,148 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Renders the config of a document for a region, going through the render cache when there is one.
+ * Renders are versioned by the store indexes of the document and of the document's regions.
+ * With a watch hub, those are the indexes its watches last read, and a render that is cached is served
+ * without reading the store at all; otherwise each render reads them first.
+ */
+public class ConfigRenderer {
+   private final KVSStoreDao dao;
+   private final KVStore docKVStore;
+   private final RenderCache renderCache;
+   private final ConfigWatchHub watchHub;
+   private final MetricRegistry metrics;
+
+   /**
+    * @param dao          the store
+    * @param renderCache  cache for rendered configs; may be null
+    * @param watchHub     where to get the indexes of documents from, rather than reading them for each render;
+    *                     may be null
+    * @param metrics      the registry renders are measured in
+    */
+   public ConfigRenderer(KVSStoreDao dao, RenderCache renderCache, ConfigWatchHub watchHub, MetricRegistry metrics) {
+      this.dao = dao;
+      this.renderCache = renderCache;
+      this.watchHub = watchHub;
+      this.metrics = metrics;
+      docKVStore = SimpleKVStore.documentStoreFor(dao, metrics);
+   }
+
+   /**
+    * Gets a generator that renders a document for a region straight from the store
+    */
+   public ConfigGenerator generatorFor(String documentName, String region) {
+      return new ConfigGenerator(SimpleKVStore.forRegion(documentName, region, dao, metrics), metrics);
+   }
+
+   public boolean isCaching() {
+      return renderCache != null;
+   }
+
+   /**
+    * Gets a document
+    * @param documentName the name of the document
+    * @return the document if it exists
+    */
+   public Optional<Document> document(String documentName) {
+      Optional<String> serializedDoc = docKVStore.getValueAt(documentName);
+      return serializedDoc.isPresent() ? Optional.of(Document.deserialize(serializedDoc.get())) : Optional.absent();
+   }
+
+   /**
+    * How far behind the store renders of a document may be
+    * @param documentName the name of the document
+    * @return how long ago the data renders are made from was last known to be current, or 0 if it is current
+    */
+   public long stalenessMillis(String documentName) {
+      return Math.max(dao.stalenessMillis(KeyProvider.documentKeyFor(documentName)),
+            dao.stalenessMillis(KeyProvider.keyForEntireDocument(documentName)));
+   }
+
+   /**
+    * Renders a document for a region
+    * @param documentName the name of the document
+    * @param region       the region
+    * @param docType      the output format
+    * @return the rendered config if the document exists
+    */
+   public Optional<RenderedConfig> render(String documentName, String region, DocumentType docType) throws IOException {
+      Optional<ConfigWatchHub.Indexes> watched = watchHub != null ? watchHub.indexesOf(documentName)
+            : Optional.absent();
+      if (watched.isPresent() && renderCache != null) {
+         Optional<RenderedConfig> cached = renderCache.getIfPresent(RenderCache.Key.from(documentName, region, docType,
+               watched.get().documentIndex, watched.get().regionIndex));
+         if (cached.isPresent()) {
+            return cached;
+         }
+      }
+
+      // Only documents that exist are watched, and have their hierarchy read (which the replica keeps a partition
+      // for), so that requests for any other name cost nothing after this
+      Optional<String> serializedDoc = docKVStore.getValueAt(documentName);
+      if (!serializedDoc.isPresent()) {
+         return Optional.absent();
+      }
+      long documentIndex;
+      long regionIndex;
+      if (watched.isPresent()) {
+         documentIndex = watched.get().documentIndex;
+         regionIndex = watched.get().regionIndex;
+      } else {
+         if (watchHub != null) {
+            watchHub.watch(documentName);
+         }
+         documentIndex = dao.modifyIndexAt(KeyProvider.documentKeyFor(documentName));
+         regionIndex = dao.modifyIndexAt(KeyProvider.keyForEntireDocument(documentName));
+      }
+      RenderCache.Key key = RenderCache.Key.from(documentName, region, docType, documentIndex, regionIndex);
+      if (renderCache != null && !watched.isPresent()) {
+         Optional<RenderedConfig> cached = renderCache.getIfPresent(key);
+         if (cached.isPresent()) {
+            return cached;
+         }
+      }
+      if (!watched.isPresent()) {
+         // Read again after the indexes, so that a render is never taken to be newer than it is
+         serializedDoc = docKVStore.getValueAt(documentName);
+         if (!serializedDoc.isPresent()) {
+            return Optional.absent();
+         }
+      }
+
+      String definition = serializedDoc.get();
+      long index = Math.max(documentIndex, regionIndex);
+      if (renderCache == null) {
+         return Optional.of(render(documentName, definition, region, docType, index));
+      }
+      try {
+         return Optional.of(renderCache.get(key, () -> render(documentName, definition, region, docType, index)));
+      } catch (ExecutionException e) {
+         Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+         throw Throwables.propagate(e.getCause());
+      }
+   }
+
+   private RenderedConfig render(String documentName, String serializedDoc, String region, DocumentType docType,
+                                 long index) throws IOException {
+      // What a render costs, by document; renders served from the cache are not counted
+      Timer.Context timer = metrics.timer(MetricRegistry.name(ConfigRenderer.class, "render", documentName)).time();
+      try {
+         ByteArrayOutputStream os = new ByteArrayOutputStream(4096);
+         generatorFor(documentName, region).generate(Document.deserialize(serializedDoc), docType, os);
+         os.write('\n');
+         return RenderedConfig.from(os.toByteArray(), index);
+      } finally {
+         timer.stop();
+      }
+   }
+}
@@ -0,0 +1,213 @@
+package com.cvent.kvstore;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+
+/**
+ * Tells interested parties when a document changes: its definition (the keys it renders) or any of its regions.
+ * A document's index is the greater of the two, as it is for renders (see ConfigRenderer).
+ *
+ * Each document that is being watched gets two threads issuing blocking queries, one for the definition and one
+ * for the document's hierarchy, however many parties are waiting on it, so thousands of waiters cost a handful
+ * of threads. Callbacks run on a small pool of notifier threads.
+ *
+ * The indexes the watches have read are also served to renders (see indexesOf), so that without a replica a
+ * render that is cached costs no reads of the store.
+ *
+ * Only documents that exist should be watched. A watch that finds its document gone, when it starts or later,
+ * is dropped, and its waiters are called back so that they can tell.
+ */
+public class ConfigWatchHub implements Managed {
+   private static final Logger LOG = LoggerFactory.getLogger(ConfigWatchHub.class);
+   private static final long WATCH_ERROR_BACKOFF_MILLIS = 1000;
+   private static final int NOTIFIER_THREADS = 4;
+
+   private final KVSStoreDao dao;
+   private final long waitSeconds;
+   private final ConcurrentMap<String, DocumentWatch> watches = new ConcurrentHashMap<>();
+   private final ExecutorService watchThreads = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("config-watch-%d").setDaemon(true).build());
+   private final ExecutorService notifiers = Executors.newFixedThreadPool(NOTIFIER_THREADS,
+         new ThreadFactoryBuilder().setNameFormat("config-watch-notify-%d").setDaemon(true).build());
+   private volatile boolean running = true;
+
+   public ConfigWatchHub(KVSStoreDao dao, long waitSeconds) {
+      this.dao = dao;
+      this.waitSeconds = waitSeconds;
+   }
+
+   @Override
+   public void start() {
+   }
+
+   @Override
+   public void stop() {
+      running = false;
+      watchThreads.shutdownNow();
+      notifiers.shutdownNow();
+   }
+
+   /**
+    * Calls back, once, when the index of a document moves past the given index.
+    * @param document  the document
+    * @param index     the index the caller last saw
+    * @param callback  receives the new index
+    * @return cancels the callback if it has not been called yet
+    */
+   public Runnable onChangeAfter(String document, long index, LongConsumer callback) {
+      DocumentWatch watch = watches.computeIfAbsent(document, DocumentWatch::new);
+      Waiter waiter = new Waiter(index, callback);
+      watch.waiters.add(waiter);
+      // The watch may have moved past the index, or been dropped, before the waiter was added
+      long current = watch.index();
+      if ((current > index || watch.dropped) && watch.waiters.remove(waiter)) {
+         notifyWaiter(waiter, current);
+      }
+      return () -> watch.waiters.remove(waiter);
+   }
+
+   /**
+    * Watches a document, if it is not watched already
+    * @param document a document that exists
+    */
+   public void watch(String document) {
+      watches.computeIfAbsent(document, DocumentWatch::new);
+   }
+
+   /**
+    * Gets the indexes of a document as its watch last read them.
+    * They are as current as blocking queries at the store's consistency, less the time it takes to hear of a change.
+    * @param document the document
+    * @return the indexes, or absent if the document is not watched, until both keys of the document have been read
+    *         and while either watch is failing
+    */
+   public Optional<Indexes> indexesOf(String document) {
+      DocumentWatch watch = watches.get(document);
+      return watch != null && watch.definition.current && watch.regions.current
+            ? Optional.of(Indexes.from(watch.definition.index, watch.regions.index)) : Optional.absent();
+   }
+
+   private void notifyWaiter(Waiter waiter, long index) {
+      notifiers.submit(() -> {
+         try {
+            waiter.callback.accept(index);
+         } catch (RuntimeException e) {
+            LOG.warn("Config watch callback failed", e);
+         }
+      });
+   }
+
+   /**
+    * The indexes of a document's definition and of its regions
+    */
+   public static class Indexes {
+      public final long documentIndex;
+      public final long regionIndex;
+
+      private Indexes(long documentIndex, long regionIndex) {
+         this.documentIndex = documentIndex;
+         this.regionIndex = regionIndex;
+      }
+
+      public static Indexes from(long documentIndex, long regionIndex) {
+         return new Indexes(documentIndex, regionIndex);
+      }
+   }
+
+   private static class Waiter {
+      private final long index;
+      private final LongConsumer callback;
+
+      private Waiter(long index, LongConsumer callback) {
+         this.index = index;
+         this.callback = callback;
+      }
+   }
+
+   private class DocumentWatch {
+      private final String document;
+      private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+      private final KeyWatch definition;
+      private final KeyWatch regions;
+      private volatile boolean dropped;
+
+      private DocumentWatch(String document) {
+         this.document = document;
+         definition = new KeyWatch(KeyProvider.documentKeyFor(document), this);
+         regions = new KeyWatch(KeyProvider.keyForEntireDocument(document), this);
+         watchThreads.submit(definition::run);
+         watchThreads.submit(regions::run);
+      }
+
+      private long index() {
+         return Math.max(definition.index, regions.index);
+      }
+
+      private void changed() {
+         long index = index();
+         for (Waiter waiter : waiters) {
+            if (index > waiter.index && waiters.remove(waiter)) {
+               notifyWaiter(waiter, index);
+            }
+         }
+      }
+
+      // Stops watching a document that has been deleted, calling back every waiter
+      private void drop() {
+         dropped = true;
+         watches.remove(document, this);
+         long index = index();
+         for (Waiter waiter : waiters) {
+            if (waiters.remove(waiter)) {
+               notifyWaiter(waiter, index);
+            }
+         }
+      }
+   }
+
+   private class KeyWatch {
+      private final String prefix;
+      private final DocumentWatch document;
+      private volatile long index;
+      // Whether the last read succeeded
+      private volatile boolean current;
+
+      private KeyWatch(String prefix, DocumentWatch document) {
+         this.prefix = prefix;
+         this.document = document;
+      }
+
+      private void run() {
+         while (running && !document.dropped) {
+            try {
+               VersionedHierarchy read = dao.getHierarchyAfter(prefix, index, waitSeconds);
+               index = read.index();
+               current = true;
+               if (this == document.definition && !read.values().containsKey(prefix)) {
+                  document.drop();
+                  return;
+               }
+               document.changed();
+            } catch (RuntimeException e) {
+               current = false;
+               LOG.warn("Watch on {} failed, retrying", prefix, e);
+               try {
+                  Thread.sleep(WATCH_ERROR_BACKOFF_MILLIS);
+               } catch (InterruptedException ie) {
+                  return;
+               }
+            }
+         }
+      }
+   }
+}
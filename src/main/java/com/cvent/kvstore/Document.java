@@ -3,9 +3,11 @@ package com.cvent.kvstore;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -22,19 +24,9 @@ public class Document {
       this.keys.addAll(keys);
    }
 
+   // Compares segment by segment without splitting the keys
    public static Comparator<String> keySortComparator() {
-      return (k1, k2) -> {
-         String[] parts1 = k1.split(KVStore.HIERARCHY_SEPARATOR);
-         String[] parts2 = k2.split(KVStore.HIERARCHY_SEPARATOR);
-         int n = -1;
-         while (++n < parts1.length && n < parts2.length) {
-            int c = parts1[n].compareTo(parts2[n]);
-            if (c != 0) {
-               return c;
-            }
-         }
-         return Integer.compare(parts1.length, parts2.length);
-      };
+      return KeyPath.KEY_ORDER;
    }
 
    public Iterator<String> iterateKeys() {
@@ -45,6 +37,35 @@ public class Document {
       return keys;
    }
 
+   /**
+    * Checks if a key is one of the keys of this document or is in the hierarchy under one of them
+    * @param key  the key
+    * @return true if the key is part of this document
+    */
+   public boolean covers(String key) {
+      int end = key.length();
+      while (end > 0) {
+         if (keys.contains(key.substring(0, end))) {
+            return true;
+         }
+         end = key.lastIndexOf(KVStore.HIERARCHY_SEPARATOR, end - 1);
+      }
+      return false;
+   }
+
+   /**
+    * Picks the key-value pairs that are part of this document
+    * @param keyValues  key-value pairs, say, of an entire region
+    * @return the key-value pairs whose keys this document covers
+    */
+   public Map<String, String> project(Map<String, String> keyValues) {
+      Map<String, String> projected = new HashMap<>();
+      keyValues.forEach((k, v) -> {
+         if (covers(k)) projected.put(k, v);
+      });
+      return projected;
+   }
+
    public List<String> sortedKeys() {
       List<String> sorted = new ArrayList<>(keys.size());
       sorted.addAll(keys);
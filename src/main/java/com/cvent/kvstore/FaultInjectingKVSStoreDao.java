@@ -0,0 +1,150 @@
+package com.cvent.kvstore;
+
+import com.ecwid.consul.transport.TransportException;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Makes a KVSStoreDao behave like one across a network: each call waits for a latency and fails at a rate.
+ * Failed reads throw the TransportException a Consul agent that cannot be reached does; failed writes
+ * fail the way a rejected Consul write does. Used to exercise the store and the generator with a local DAO.
+ */
+public class FaultInjectingKVSStoreDao implements KVSStoreDao {
+   private final KVSStoreDao dao;
+   private final long latencyMicros;
+   private final long jitterMicros;
+   private final double failureRate;
+
+   /**
+    * @param dao            the DAO to call
+    * @param latencyMicros  how long each call waits before it is made
+    * @param jitterMicros   up to how much longer, uniformly
+    * @param failureRate    the fraction of calls that fail, between 0 and 1
+    */
+   public FaultInjectingKVSStoreDao(KVSStoreDao dao, long latencyMicros, long jitterMicros, double failureRate) {
+      this.dao = dao;
+      this.latencyMicros = latencyMicros;
+      this.jitterMicros = jitterMicros;
+      this.failureRate = failureRate;
+   }
+
+   // Waits for the latency, then decides whether the call fails
+   private boolean fails() {
+      long micros = latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(jitterMicros + 1) : 0);
+      if (micros > 0) {
+         LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+      }
+      return failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate;
+   }
+
+   private void callOrFail() {
+      if (fails()) {
+         throw new TransportException(new IOException("Injected failure"));
+      }
+   }
+
+   private void writeOrFail(String key) throws KVStoreException {
+      if (fails()) {
+         throw KVStoreException.writeFailed(key, "injected failure");
+      }
+   }
+
+   @Override
+   public void put(String key, String value) throws KVStoreException {
+      writeOrFail(key);
+      dao.put(key, value);
+   }
+
+   @Override
+   public boolean putIfIndex(String key, String value, long index) throws KVStoreException {
+      writeOrFail(key);
+      return dao.putIfIndex(key, value, index);
+   }
+
+   @Override
+   public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+      // One call per transaction, as with Consul
+      for (List<KeyValue> txn : Lists.partition(keyValues, MAX_ATOMIC_PUTS)) {
+         writeOrFail(txn.get(0).key());
+         if (!dao.putAll(txn, expectedIndexes)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public Optional<String> getValueAt(String key) {
+      callOrFail();
+      return dao.getValueAt(key);
+   }
+
+   @Override
+   public Optional<VersionedValue> getVersionedValueAt(String key) {
+      callOrFail();
+      return dao.getVersionedValueAt(key);
+   }
+
+   @Override
+   public Map<String, VersionedValue> getVersionedHierarchy(String key) {
+      callOrFail();
+      return dao.getVersionedHierarchy(key);
+   }
+
+   @Override
+   public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+      callOrFail();
+      return dao.getHierarchyAsMap(key, keyTransform);
+   }
+
+   @Override
+   public KVScan scan(String prefix) {
+      callOrFail();
+      return dao.scan(prefix);
+   }
+
+   @Override
+   public VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds) {
+      callOrFail();
+      return dao.getHierarchyAfter(key, index, waitSeconds);
+   }
+
+   @Override
+   public Optional<Collection<String>> getKeysAt(String key) {
+      callOrFail();
+      return dao.getKeysAt(key);
+   }
+
+   @Override
+   public List<String> getChildKeysAt(String prefix) {
+      callOrFail();
+      return dao.getChildKeysAt(prefix);
+   }
+
+   @Override
+   public long modifyIndexAt(String key) {
+      callOrFail();
+      return dao.modifyIndexAt(key);
+   }
+
+   @Override
+   public void deleteKey(String key) throws KVStoreException {
+      writeOrFail(key);
+      dao.deleteKey(key);
+   }
+
+   @Override
+   public void deleteHierarchyAt(String key) throws KVStoreException {
+      writeOrFail(key);
+      dao.deleteHierarchyAt(key);
+   }
+}
@@ -0,0 +1,28 @@
+package com.cvent.kvstore;
+
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A KVSStoreDao held in a concurrent sorted map, for tests and benchmarks that should not need a Consul.
+ * Reads never block, and a hierarchy is a range of the map, found in O(log n).
+ * Deleted keys stay in the map as tombstones, so that the index of a hierarchy moves when keys are deleted from it.
+ */
+public class InMemoryKVDao extends SortedKVSStoreDao {
+   private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+   @Override
+   protected Entry entryAt(String key) {
+      return entries.get(key);
+   }
+
+   @Override
+   protected SortedMap<String, Entry> entriesUnder(String prefix) {
+      return entries.subMap(prefix, hierarchyEnd(prefix));
+   }
+
+   @Override
+   protected void store(SortedMap<String, Entry> written) {
+      entries.putAll(written);
+   }
+}
@@ -2,8 +2,13 @@ package com.cvent.kvstore;
 
 import com.google.common.base.Optional;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.function.Function;
 
 /**
@@ -16,6 +21,8 @@ import java.util.function.Function;
  * Created by sviswanathan on 2/11/16.
  */
 public interface KVSStoreDao {
+   // The most operations Consul accepts in one transaction
+   int MAX_ATOMIC_PUTS = 64;
 
    /**
     * The key includes region
@@ -25,6 +32,29 @@ public interface KVSStoreDao {
     */
    void put(String key, String value) throws KVStoreException;
 
+   /**
+    * Writes a value only if the key has not been modified since it was read (check-and-set)
+    * @param key     the key to store
+    * @param value   the value to store
+    * @param index   the modify index the value was read at; 0 to write only if the key does not exist
+    * @return false if the key was modified in the meantime and nothing was written
+    * @throws KVStoreException  if something else went wrong
+    */
+   boolean putIfIndex(String key, String value, long index) throws KVStoreException;
+
+   /**
+    * Writes a set of key-value pairs, in order, in as few calls as the store allows.
+    * Each run of up to MAX_ATOMIC_PUTS pairs is written atomically (a Consul transaction), so
+    * pairs that must be written together should not straddle a multiple of MAX_ATOMIC_PUTS.
+    * @param keyValues       the keys (including region) and values to store
+    * @param expectedIndexes the keys to check-and-set, with the modify index each was read at
+    *                        (0 for keys that must not exist yet); the other keys are written unconditionally
+    * @return false if a run was rolled back because one of its keys had been modified; runs before it have
+    *         been written
+    * @throws KVStoreException  if something else went wrong; runs before the failed one have been written
+    */
+   boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException;
+
    /**
     * Gets a single value at a key
     * @param key the key to get
@@ -32,6 +62,20 @@ public interface KVSStoreDao {
     */
    Optional<String> getValueAt(String key);
 
+   /**
+    * Gets a single value at a key along with its modify index, for a later check-and-set
+    * @param key the key to get
+    * @return the value and index for the given key
+    */
+   Optional<VersionedValue> getVersionedValueAt(String key);
+
+   /**
+    * Retrieves a tree of key-value pairs at a given key along with each value's modify index
+    * @param key the key
+    * @return the values and indexes, keyed by the full key
+    */
+   Map<String, VersionedValue> getVersionedHierarchy(String key);
+
    /**
     * Retrieves a tree of key-value pair at a given key
     * @param key the key
@@ -40,11 +84,92 @@ public interface KVSStoreDao {
     */
    Map<String, String> getHierarchyAsMap(String key, Function<String, String> stripFirstPartOfKey);
 
+   /**
+    * Retrieves a tree of key-value pairs at a given key along with the index the store was at.
+    * If index is greater than zero, the call blocks until the store's index for the key moves past it
+    * or until waitSeconds elapse, whichever comes first (a Consul blocking query).
+    * @param key          the key
+    * @param index        the index returned by the previous call; 0 to return immediately
+    * @param waitSeconds  the longest time to block for
+    * @return the key-value pairs (keyed by the full key) and the index they were read at
+    */
+   VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds);
+
+   /**
+    * Reads the key-value pairs under a prefix in key order, as they are iterated. Unlike getHierarchyAsMap, the
+    * pairs need not all be held at once.
+    * @param prefix the prefix, which as with hierarchies is a plain key prefix
+    * @return the pairs, keyed by the full key; to be closed if not iterated to the end
+    */
+   default KVScan scan(String prefix) {
+      return KVScan.of(new TreeMap<>(getHierarchyAsMap(prefix, null)));
+   }
 
    Optional<Collection<String>> getKeysAt(String key);
 
-   void deleteKey(String key);
+   /**
+    * Lists the children of a hierarchy, as Consul's keys read with a separator does: each key under the prefix
+    * up to and including the next separator, once. A hierarchy's children are listed without reading its
+    * descendants.
+    * @param prefix the prefix, ending in the separator
+    * @return the child keys in key order: folders end in the separator; empty if there are none
+    */
+   default List<String> getChildKeysAt(String prefix) {
+      List<String> children = new ArrayList<>();
+      for (String key : new TreeSet<>(getKeysAt(prefix).or(Collections.emptyList()))) {
+         String child = childKey(prefix, key);
+         if (children.isEmpty() || !children.get(children.size() - 1).equals(child)) {
+            children.add(child);
+         }
+      }
+      return children;
+   }
+
+   /**
+    * The child of a hierarchy that a key under it is in
+    * @return the key up to and including the first separator past the prefix, or the key if there is none
+    */
+   static String childKey(String prefix, String key) {
+      int end = key.indexOf(KVStore.HIERARCHY_SEPARATOR, prefix.length());
+      return end < 0 ? key : key.substring(0, end + 1);
+   }
+
+   /**
+    * Gets the index the store is at for the hierarchy at a key. The index moves whenever
+    * anything in the hierarchy changes, so it can be used to version data derived from it.
+    * @param key the key
+    * @return the index (X-Consul-Index for Consul)
+    */
+   long modifyIndexAt(String key);
+
+   /**
+    * Deletes a key; deleting a key that does not exist does nothing
+    * @throws KVStoreException  if something went wrong
+    */
+   void deleteKey(String key) throws KVStoreException;
+
+   /**
+    * Deletes every key that starts with a prefix
+    * @throws KVStoreException  if something went wrong
+    */
+   void deleteHierarchyAt(String key) throws KVStoreException;
 
-   void deleteHierarchyAt(String key);
+   /**
+    * Gets a view of this DAO whose reads use a consistency mode. Writes are the same in every view.
+    * @param consistency how current the view's reads must be
+    * @return the view, or this DAO if the store reads the same way in every mode
+    */
+   default KVSStoreDao withConsistency(ReadConsistency consistency) {
+      return this;
+   }
+
+   /**
+    * How far behind the store reads at a key are, for stores that serve reads from a copy
+    * @param key the key
+    * @return how long ago the copy was last known to be current if it is further behind than it should be, else 0
+    */
+   default long stalenessMillis(String key) {
+      return 0;
+   }
 
 }
@@ -0,0 +1,51 @@
+package com.cvent.kvstore;
+
+import com.google.common.collect.Iterators;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The key-value pairs under a prefix in key order, read from the store as they are iterated.
+ * A scan may hold on to a response, and so to a connection, until it has been iterated to the end or closed.
+ */
+public interface KVScan extends Iterator<KeyValue>, AutoCloseable {
+
+   /**
+    * Stops reading. Closing a scan that has been iterated to the end does nothing.
+    */
+   @Override
+   void close();
+
+   /**
+    * A scan of pairs already in memory
+    * @param keyValues the pairs, in key order
+    */
+   static KVScan of(Iterator<KeyValue> keyValues) {
+      return new KVScan() {
+         @Override
+         public boolean hasNext() {
+            return keyValues.hasNext();
+         }
+
+         @Override
+         public KeyValue next() {
+            return keyValues.next();
+         }
+
+         @Override
+         public void close() {
+         }
+      };
+   }
+
+   /**
+    * A scan of values already in memory
+    * @param values the values; iterated as the scan is, so a concurrent map's view is read as it changes
+    */
+   static KVScan of(SortedMap<String, String> values) {
+      return of(Iterators.transform(values.entrySet().iterator(),
+            (Map.Entry<String, String> entry) -> KeyValue.from(entry.getKey(), entry.getValue())));
+   }
+}
@@ -2,6 +2,7 @@ package com.cvent.kvstore;
 
 import com.google.common.base.Optional;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -23,6 +24,10 @@ public interface KVStore {
    String DEFAULT_REGION = "default";
    String AUDIT_REGION = "audit";
    String DOCUMENT_REGION = "document";
+   String REVISION_REGION = "revision";
+   String AUDIT_INDEX_REGION = "auditindex";
+   String AUDIT_SEGMENT_REGION = "auditsegment";
+
    String NO_VALUE = "<None>";
 
    // Care should be taken to ensure that this separator is neutral to any key-value store
@@ -49,7 +54,7 @@ public interface KVStore {
     * Note that if the force flag is not set and the default value for the key changes
     * at a future time, you may "lose" this put.
     * @param key        the key (without the region)
-    * @param value      the value
+    * @param value      the value: a quoted string, true, false, null or a number (see ValueType)
     * @param force      put value irrespective of value for key in default region
     * @return true if a change was made to the store
     * @throws KVStoreException
@@ -63,13 +68,30 @@ public interface KVStore {
     * from the value for the same key the default region.
     * Note that if the force flag is not set and the default value for the key changes
     * at a future time, you may "lose" this put.
-    * @param keyValue   the key-value pair
+    * @param keyValue   the key-value pair; the value as for put(key, value, ...)
     * @param force      put value irrespective of value for key in default region
     * @return true if a change was made to the store
     * @throws KVStoreException
     */
    boolean put(KeyValue keyValue, String author, boolean force) throws KVStoreException;
 
+   /**
+    * Adds a set of key-value entries to the store, each with its audit record.
+    * Each value is treated as in put(). Every key is checked against the default region before
+    * anything is written, so one key absent from the default region fails the whole set.
+    * The store is read once per transaction rather than once per key and the values are written
+    * in as few transactions as the store allows, each value together with its audit record.
+    *
+    * A set is atomic only if it fits in one transaction (see SimpleKVStore). A larger set is written in
+    * consecutive transactions: if one fails, the ones before it stay written, nothing is rolled back and the
+    * exception's getWrittenKeys() lists the keys that were written.
+    * @param keyValues  the key-value pairs; for repeated keys the last one wins
+    * @param force      put values irrespective of values for keys in default region
+    * @return the number of keys changed in the store
+    * @throws KVStoreException
+    */
+   int putAll(Collection<KeyValue> keyValues, String author, boolean force) throws KVStoreException;
+
    /**
     * Gets the primitive value for a given key.
     * @param key key to get value for
@@ -79,8 +101,29 @@ public interface KVStore {
 
    Map<String, String> getHierarchyAt(String key);
 
+   /**
+    * Gets every key-value pair of the region, with values in the region overriding those in the default region.
+    * Unlike calling getHierarchyAt for a number of keys, this reads each region from the store just once.
+    * @return a map of key-value pairs
+    */
+   Map<String, String> getEntireRegion();
+
+   /**
+    * Scans the key-value pairs at a key in key order, overlaying the region onto the default region in one pass
+    * over the two (see RegionOverlay), so that they need not all be held at once
+    * @param key the key
+    * @return the pairs, keyed like getHierarchyAt; to be closed if not iterated to the end
+    */
+   KVScan scanHierarchyAt(String key);
+
+   /**
+    * Scans every key-value pair of the region in key order, like scanHierarchyAt
+    */
+   KVScan scanEntireRegion();
+
    /**
     * Delete all keys
+    * @throws KVStoreException
     */
-   void destroy();
+   void destroy() throws KVStoreException;
 }
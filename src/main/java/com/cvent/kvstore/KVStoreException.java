@@ -1,5 +1,9 @@
 package com.cvent.kvstore;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Custom exception class for our KVStore
  *
@@ -9,18 +13,25 @@ public class KVStoreException extends Exception {
    public static enum Reason {
       KEY_ABSENT_IN_DEFAULT,
       WRITE_FAILED,
+      WRITE_CONFLICT,
    }
 
    public final Reason reason;
+   // Keys of a changeset that were written before the write failed
+   private final List<String> writtenKeys;
 
    private KVStoreException(Reason reason, String message) {
-      super(message);
-      this.reason = reason;
+      this(reason, message, null, Collections.emptyList());
    }
 
    private KVStoreException(Reason reason, String message, Throwable cause) {
+      this(reason, message, cause, Collections.emptyList());
+   }
+
+   private KVStoreException(Reason reason, String message, Throwable cause, List<String> writtenKeys) {
       super(message, cause);
       this.reason = reason;
+      this.writtenKeys = writtenKeys;
    }
 
    public static KVStoreException keyAbsentInDefault(String key) {
@@ -33,8 +44,38 @@ public class KVStoreException extends Exception {
             String.format("Write failed for key %s", key));
    }
 
+   public static KVStoreException writeFailed(String key, String detail) {
+      return new KVStoreException(Reason.WRITE_FAILED,
+            String.format("Write failed for key %s: %s", key, detail));
+   }
+
+   public static KVStoreException writeConflict(String key) {
+      return new KVStoreException(Reason.WRITE_CONFLICT,
+            String.format("Gave up writing key %s after repeated concurrent changes", key));
+   }
+
+   /**
+    * A changeset that was partly written: its earlier transactions committed and a later one failed
+    * @param failure     why the later transaction failed; its reason is kept
+    * @param writtenKeys the keys written by the earlier transactions
+    */
+   public static KVStoreException partlyWritten(Exception failure, List<String> writtenKeys) {
+      Reason reason = failure instanceof KVStoreException ? ((KVStoreException) failure).reason : Reason.WRITE_FAILED;
+      return new KVStoreException(reason,
+            String.format("%s; %d keys were written before the failure and were not rolled back: %s",
+                  failure.getMessage(), writtenKeys.size(), writtenKeys),
+            failure, Collections.unmodifiableList(new ArrayList<>(writtenKeys)));
+   }
+
    public Reason getReason() {
       return reason;
    }
 
+   /**
+    * The keys of a changeset that stayed written when a later part of it failed; empty if nothing was written
+    */
+   public List<String> getWrittenKeys() {
+      return writtenKeys;
+   }
+
 }
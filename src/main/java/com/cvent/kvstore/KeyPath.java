@@ -0,0 +1,170 @@
+package com.cvent.kvstore;
+
+import java.util.Comparator;
+
+import static com.cvent.kvstore.KVStore.HIERARCHY_SEPARATOR;
+
+/**
+ * A key split into its hierarchy segments (server/applicationConnectors/...0/port).
+ * The key is parsed once into segment offsets, so segments can be compared and prefixes taken
+ * without splitting the key again. Like String.split, trailing separators are ignored.
+ *
+ * Keys are ordered segment by segment, and a key comes before the keys under it.
+ */
+public final class KeyPath implements Comparable<KeyPath> {
+   private static final char SEPARATOR = HIERARCHY_SEPARATOR.charAt(0);
+
+   /**
+    * Orders keys like KeyPath does, straight off the strings and without allocating
+    */
+   public static final Comparator<String> KEY_ORDER = KeyPath::compare;
+
+   private final String key;
+   // ends[n] is the offset just past segment n; segment n starts at ends[n - 1] + 1
+   private final int[] ends;
+
+   private KeyPath(String key, int[] ends) {
+      this.key = key;
+      this.ends = ends;
+   }
+
+   public static KeyPath from(String key) {
+      int length = effectiveLength(key);
+      int count = 1;
+      for (int i = key.indexOf(SEPARATOR); i >= 0 && i < length; i = key.indexOf(SEPARATOR, i + 1)) {
+         count++;
+      }
+      int[] ends = new int[count];
+      int start = 0;
+      for (int n = 0; n < count - 1; n++) {
+         ends[n] = key.indexOf(SEPARATOR, start);
+         start = ends[n] + 1;
+      }
+      ends[count - 1] = length;
+      return new KeyPath(key, ends);
+   }
+
+   public String key() {
+      return key;
+   }
+
+   public int segmentCount() {
+      return ends.length;
+   }
+
+   public String segment(int n) {
+      return key.substring(start(n), ends[n]);
+   }
+
+   public boolean segmentStartsWith(int n, String prefix) {
+      return ends[n] - start(n) >= prefix.length() && key.startsWith(prefix, start(n));
+   }
+
+   /**
+    * @param count the number of segments
+    * @return the key made of the first count segments
+    */
+   public String prefix(int count) {
+      return count == ends.length ? key : key.substring(0, count == 0 ? 0 : ends[count - 1]);
+   }
+
+   /**
+    * @param other another path
+    * @return the number of leading segments the two paths have in common
+    */
+   public int commonSegments(KeyPath other) {
+      int n = 0;
+      while (n < ends.length && n < other.ends.length
+            && compareRange(key, start(n), ends[n], other.key, other.start(n), other.ends[n]) == 0) {
+         n++;
+      }
+      return n;
+   }
+
+   @Override
+   public int compareTo(KeyPath other) {
+      int n = 0;
+      while (n < ends.length && n < other.ends.length) {
+         int c = compareRange(key, start(n), ends[n], other.key, other.start(n), other.ends[n]);
+         if (c != 0) {
+            return c;
+         }
+         n++;
+      }
+      return Integer.compare(ends.length, other.ends.length);
+   }
+
+   /**
+    * Compares two keys segment by segment, as KeyPath does, without parsing them
+    */
+   public static int compare(String k1, String k2) {
+      int length1 = effectiveLength(k1);
+      int length2 = effectiveLength(k2);
+      int start1 = 0;
+      int start2 = 0;
+      while (true) {
+         int end1 = segmentEnd(k1, start1, length1);
+         int end2 = segmentEnd(k2, start2, length2);
+         int c = compareRange(k1, start1, end1, k2, start2, end2);
+         if (c != 0) {
+            return c;
+         }
+         boolean last1 = end1 >= length1;
+         boolean last2 = end2 >= length2;
+         if (last1 || last2) {
+            // The key with fewer segments comes first
+            return Boolean.compare(!last1, !last2);
+         }
+         start1 = end1 + 1;
+         start2 = end2 + 1;
+      }
+   }
+
+   private int start(int n) {
+      return n == 0 ? 0 : ends[n - 1] + 1;
+   }
+
+   private static int segmentEnd(String key, int start, int length) {
+      int end = key.indexOf(SEPARATOR, start);
+      return end < 0 || end > length ? length : end;
+   }
+
+   // The length of the key without trailing separators
+   private static int effectiveLength(String key) {
+      int length = key.length();
+      while (length > 0 && key.charAt(length - 1) == SEPARATOR) {
+         length--;
+      }
+      return length;
+   }
+
+   // String.compareTo on key1[start1, end1) and key2[start2, end2)
+   private static int compareRange(String key1, int start1, int end1, String key2, int start2, int end2) {
+      int length1 = end1 - start1;
+      int length2 = end2 - start2;
+      int limit = Math.min(length1, length2);
+      for (int i = 0; i < limit; i++) {
+         char c1 = key1.charAt(start1 + i);
+         char c2 = key2.charAt(start2 + i);
+         if (c1 != c2) {
+            return c1 - c2;
+         }
+      }
+      return length1 - length2;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      return this == o || o instanceof KeyPath && key.equals(((KeyPath) o).key);
+   }
+
+   @Override
+   public int hashCode() {
+      return key.hashCode();
+   }
+
+   @Override
+   public String toString() {
+      return key;
+   }
+}
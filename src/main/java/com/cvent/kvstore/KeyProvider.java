@@ -4,7 +4,9 @@ import org.apache.commons.lang3.StringUtils;
 
 import static com.cvent.kvstore.KVStore.AUDIT_REGION;
 import static com.cvent.kvstore.KVStore.DEFAULT_REGION;
+import static com.cvent.kvstore.KVStore.DOCUMENT_REGION;
 import static com.cvent.kvstore.KVStore.HIERARCHY_SEPARATOR;
+import static com.cvent.kvstore.KVStore.REVISION_REGION;
 
 /**
  * Utility class for constructing keys
@@ -37,6 +39,18 @@ public class KeyProvider {
     }
 
 
+    // The key for the entire hierarchy for a document across all regions
+    // auth/
+    public static String keyForEntireDocument(String document) {
+        return document + HIERARCHY_SEPARATOR;
+    }
+
+    // The key at which a document (its set of keys) is stored
+    // document/default/auth
+    public static String documentKeyFor(String document) {
+        return defaultRegionKeyFor(DOCUMENT_REGION, document);
+    }
+
     // The key for the entire hierarchy for a document for a region
     // auth/alpha
     public static String keyForEntireRegion(String document, String region) {
@@ -65,6 +79,18 @@ public class KeyProvider {
               + HIERARCHY_SEPARATOR + revision;
     }
 
+    // The key of the counter holding the latest audit revision for a document for a region for a key
+    // revision/auth/alpha/server/applicationConnectors
+    public static String revisionCounterKeyFor(String document, String region, String key) {
+        return REVISION_REGION + HIERARCHY_SEPARATOR + document + HIERARCHY_SEPARATOR + region + HIERARCHY_SEPARATOR + key;
+    }
+
+    // The key for the revision counters of a document for a region
+    // revision/auth/alpha/
+    public static String revisionCounterKeyForEntireRegion(String document, String region) {
+        return REVISION_REGION + HIERARCHY_SEPARATOR + document + HIERARCHY_SEPARATOR + region + HIERARCHY_SEPARATOR;
+    }
+
     // The portion of a key after the last "/"
     public static String auditRevisionFromAuditKey(String key) {
        return key.substring(key.lastIndexOf(HIERARCHY_SEPARATOR) + 1);
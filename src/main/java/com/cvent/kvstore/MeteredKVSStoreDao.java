@@ -0,0 +1,382 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.math.IntMath;
+
+import java.math.RoundingMode;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Measures each call to a KVSStoreDao: a timer per method and, for the methods that move more than one key,
+ * histograms of the keys and bytes (UTF-16 characters, which for the ASCII the store mostly holds is the same)
+ * per call. Each call is also counted as a round trip of the calling thread (see RoundTrips), so the DAO to
+ * wrap is the one that goes to the store, below any replica or cache.
+ *    com.cvent.kvstore.KVSStoreDao.getHierarchyAsMap
+ *    com.cvent.kvstore.KVSStoreDao.getHierarchyAsMap.keys
+ *    com.cvent.kvstore.KVSStoreDao.getHierarchyAsMap.bytes
+ */
+public class MeteredKVSStoreDao implements KVSStoreDao {
+   private final KVSStoreDao dao;
+   private final Operation put;
+   private final Operation putIfIndex;
+   private final Operation putAll;
+   private final Operation getValueAt;
+   private final Operation getVersionedValueAt;
+   private final Operation getVersionedHierarchy;
+   private final Operation getHierarchyAsMap;
+   private final Operation getHierarchyAfter;
+   private final Operation scan;
+   private final Operation getKeysAt;
+   private final Operation getChildKeysAt;
+   private final Operation modifyIndexAt;
+   private final Operation deleteKey;
+   private final Operation deleteHierarchyAt;
+
+   private MeteredKVSStoreDao(KVSStoreDao dao, MetricRegistry metrics) {
+      this.dao = dao;
+      put = new Operation(metrics, "put");
+      putIfIndex = new Operation(metrics, "putIfIndex");
+      putAll = new Operation(metrics, "putAll");
+      getValueAt = new Operation(metrics, "getValueAt");
+      getVersionedValueAt = new Operation(metrics, "getVersionedValueAt");
+      getVersionedHierarchy = new Operation(metrics, "getVersionedHierarchy");
+      getHierarchyAsMap = new Operation(metrics, "getHierarchyAsMap");
+      getHierarchyAfter = new Operation(metrics, "getHierarchyAfter");
+      scan = new Operation(metrics, "scan");
+      getKeysAt = new Operation(metrics, "getKeysAt");
+      getChildKeysAt = new Operation(metrics, "getChildKeysAt");
+      modifyIndexAt = new Operation(metrics, "modifyIndexAt");
+      deleteKey = new Operation(metrics, "deleteKey");
+      deleteHierarchyAt = new Operation(metrics, "deleteHierarchyAt");
+   }
+
+   // A view of the DAO in another consistency mode, counted with the DAO
+   private MeteredKVSStoreDao(KVSStoreDao dao, MeteredKVSStoreDao metered) {
+      this.dao = dao;
+      put = metered.put;
+      putIfIndex = metered.putIfIndex;
+      putAll = metered.putAll;
+      getValueAt = metered.getValueAt;
+      getVersionedValueAt = metered.getVersionedValueAt;
+      getVersionedHierarchy = metered.getVersionedHierarchy;
+      getHierarchyAsMap = metered.getHierarchyAsMap;
+      getHierarchyAfter = metered.getHierarchyAfter;
+      scan = metered.scan;
+      getKeysAt = metered.getKeysAt;
+      getChildKeysAt = metered.getChildKeysAt;
+      modifyIndexAt = metered.modifyIndexAt;
+      deleteKey = metered.deleteKey;
+      deleteHierarchyAt = metered.deleteHierarchyAt;
+   }
+
+   /**
+    * Measures a DAO, keeping it asynchronous if it is
+    * @param dao     the DAO that goes to the store
+    * @param metrics the registry to register with
+    */
+   public static KVSStoreDao from(KVSStoreDao dao, MetricRegistry metrics) {
+      return dao instanceof AsyncKVSStoreDao ? new Async((AsyncKVSStoreDao) dao, metrics)
+            : new MeteredKVSStoreDao(dao, metrics);
+   }
+
+   @Override
+   public void put(String key, String value) throws KVStoreException {
+      Timer.Context timer = put.start(1);
+      try {
+         dao.put(key, value);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public boolean putIfIndex(String key, String value, long index) throws KVStoreException {
+      Timer.Context timer = putIfIndex.start(1);
+      try {
+         return dao.putIfIndex(key, value, index);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+      // One transaction per run of MAX_ATOMIC_PUTS
+      Timer.Context timer = putAll.start(IntMath.divide(keyValues.size(), MAX_ATOMIC_PUTS, RoundingMode.CEILING));
+      try {
+         long bytes = 0;
+         for (KeyValue keyValue : keyValues) {
+            bytes += keyValue.key().length() + keyValue.value().length();
+         }
+         putAll.record(keyValues.size(), bytes);
+         return dao.putAll(keyValues, expectedIndexes);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public Optional<String> getValueAt(String key) {
+      Timer.Context timer = getValueAt.start(1);
+      try {
+         return dao.getValueAt(key);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public Optional<VersionedValue> getVersionedValueAt(String key) {
+      Timer.Context timer = getVersionedValueAt.start(1);
+      try {
+         return dao.getVersionedValueAt(key);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public Map<String, VersionedValue> getVersionedHierarchy(String key) {
+      Timer.Context timer = getVersionedHierarchy.start(1);
+      try {
+         Map<String, VersionedValue> values = dao.getVersionedHierarchy(key);
+         long bytes = 0;
+         for (Map.Entry<String, VersionedValue> value : values.entrySet()) {
+            bytes += value.getKey().length() + value.getValue().value().length();
+         }
+         getVersionedHierarchy.record(values.size(), bytes);
+         return values;
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+      Timer.Context timer = getHierarchyAsMap.start(1);
+      try {
+         Map<String, String> values = dao.getHierarchyAsMap(key, keyTransform);
+         getHierarchyAsMap.record(values);
+         return values;
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds) {
+      Timer.Context timer = getHierarchyAfter.start(1);
+      try {
+         VersionedHierarchy hierarchy = dao.getHierarchyAfter(key, index, waitSeconds);
+         getHierarchyAfter.record(hierarchy.values());
+         return hierarchy;
+      } finally {
+         timer.stop();
+      }
+   }
+
+   // Timed until the scan is done with, like an asynchronous read
+   @Override
+   public KVScan scan(String prefix) {
+      Timer.Context timer = scan.start(1);
+      KVScan keyValues;
+      try {
+         keyValues = dao.scan(prefix);
+      } catch (RuntimeException e) {
+         timer.stop();
+         throw e;
+      }
+      return new KVScan() {
+         private int keyCount;
+         private long byteCount;
+         private boolean done;
+
+         @Override
+         public boolean hasNext() {
+            if (keyValues.hasNext()) {
+               return true;
+            }
+            close();
+            return false;
+         }
+
+         @Override
+         public KeyValue next() {
+            KeyValue keyValue = keyValues.next();
+            keyCount++;
+            byteCount += keyValue.key().length() + keyValue.value().length();
+            return keyValue;
+         }
+
+         @Override
+         public void close() {
+            if (!done) {
+               done = true;
+               keyValues.close();
+               timer.stop();
+               scan.record(keyCount, byteCount);
+            }
+         }
+      };
+   }
+
+   @Override
+   public Optional<Collection<String>> getKeysAt(String key) {
+      Timer.Context timer = getKeysAt.start(1);
+      try {
+         Optional<Collection<String>> keys = dao.getKeysAt(key);
+         long bytes = 0;
+         for (String k : keys.or(Collections.emptyList())) {
+            bytes += k.length();
+         }
+         getKeysAt.record(keys.isPresent() ? keys.get().size() : 0, bytes);
+         return keys;
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public List<String> getChildKeysAt(String prefix) {
+      Timer.Context timer = getChildKeysAt.start(1);
+      try {
+         List<String> keys = dao.getChildKeysAt(prefix);
+         long bytes = 0;
+         for (String k : keys) {
+            bytes += k.length();
+         }
+         getChildKeysAt.record(keys.size(), bytes);
+         return keys;
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public long modifyIndexAt(String key) {
+      Timer.Context timer = modifyIndexAt.start(1);
+      try {
+         return dao.modifyIndexAt(key);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public void deleteKey(String key) throws KVStoreException {
+      Timer.Context timer = deleteKey.start(1);
+      try {
+         dao.deleteKey(key);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public void deleteHierarchyAt(String key) throws KVStoreException {
+      Timer.Context timer = deleteHierarchyAt.start(1);
+      try {
+         dao.deleteHierarchyAt(key);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   @Override
+   public KVSStoreDao withConsistency(ReadConsistency consistency) {
+      KVSStoreDao view = dao.withConsistency(consistency);
+      return view == dao ? this : new MeteredKVSStoreDao(view, this);
+   }
+
+   /**
+    * The measurements of one method
+    */
+   private static class Operation {
+      private final Timer timer;
+      private final Histogram keys;
+      private final Histogram bytes;
+
+      private Operation(MetricRegistry metrics, String method) {
+         timer = metrics.timer(MetricRegistry.name(KVSStoreDao.class, method));
+         keys = metrics.histogram(MetricRegistry.name(KVSStoreDao.class, method, "keys"));
+         bytes = metrics.histogram(MetricRegistry.name(KVSStoreDao.class, method, "bytes"));
+      }
+
+      private Timer.Context start(int roundTrips) {
+         RoundTrips.add(roundTrips);
+         return timer.time();
+      }
+
+      private void record(int keyCount, long byteCount) {
+         keys.update(keyCount);
+         bytes.update(byteCount);
+      }
+
+      private void record(Map<String, String> values) {
+         long byteCount = 0;
+         for (Map.Entry<String, String> value : values.entrySet()) {
+            byteCount += value.getKey().length() + value.getValue().length();
+         }
+         record(values.size(), byteCount);
+      }
+   }
+
+   /**
+    * Measures an asynchronous DAO; an asynchronous read is timed until it completes
+    */
+   private static class Async extends MeteredKVSStoreDao implements AsyncKVSStoreDao {
+      private final AsyncKVSStoreDao asyncDao;
+      private final Operation getValueAtAsync;
+      private final Operation getHierarchyAsMapAsync;
+
+      private Async(AsyncKVSStoreDao dao, MetricRegistry metrics) {
+         super(dao, metrics);
+         asyncDao = dao;
+         getValueAtAsync = new Operation(metrics, "getValueAtAsync");
+         getHierarchyAsMapAsync = new Operation(metrics, "getHierarchyAsMapAsync");
+      }
+
+      private Async(AsyncKVSStoreDao dao, Async metered) {
+         super(dao, metered);
+         asyncDao = dao;
+         getValueAtAsync = metered.getValueAtAsync;
+         getHierarchyAsMapAsync = metered.getHierarchyAsMapAsync;
+      }
+
+      @Override
+      public KVSStoreDao withConsistency(ReadConsistency consistency) {
+         KVSStoreDao view = asyncDao.withConsistency(consistency);
+         if (view == asyncDao) {
+            return this;
+         }
+         return view instanceof AsyncKVSStoreDao ? new Async((AsyncKVSStoreDao) view, this)
+               : super.withConsistency(consistency);
+      }
+
+      @Override
+      public CompletableFuture<Optional<String>> getValueAtAsync(String key) {
+         Timer.Context timer = getValueAtAsync.start(1);
+         return asyncDao.getValueAtAsync(key).whenComplete((value, e) -> timer.stop());
+      }
+
+      @Override
+      public CompletableFuture<Map<String, String>> getHierarchyAsMapAsync(String key,
+                                                                            Function<String, String> keyTransform) {
+         Timer.Context timer = getHierarchyAsMapAsync.start(1);
+         return asyncDao.getHierarchyAsMapAsync(key, keyTransform).whenComplete((values, e) -> {
+            timer.stop();
+            if (values != null) {
+               getHierarchyAsMapAsync.record(values);
+            }
+         });
+      }
+   }
+}
@@ -0,0 +1,14 @@
+package com.cvent.kvstore;
+
+/**
+ * How current a read must be, as Consul's consistency modes put it:
+ *    STALE       any server may answer, however far behind the leader it is
+ *    DEFAULT     the leader answers, which is current unless a new leader was elected moments ago
+ *    CONSISTENT  the leader answers once a quorum confirms it still is the leader
+ * Stores that keep one copy of the data read the same way in every mode.
+ */
+public enum ReadConsistency {
+   STALE,
+   DEFAULT,
+   CONSISTENT
+}
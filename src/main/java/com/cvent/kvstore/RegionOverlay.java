@@ -0,0 +1,88 @@
+package com.cvent.kvstore;
+
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Overlays the scan of a region onto the scan of the default region in one pass, a merge join: each key comes
+ * out once, with the region's value if the region has one. Only the current pair of each scan is held, so
+ * memory does not grow with the size of the regions.
+ *
+ * Keys are compared after the key transform, which must strip the region prefix from both scans' keys; stripping
+ * a common prefix keeps them in key order.
+ */
+public final class RegionOverlay implements KVScan {
+   private final KVScan region;
+   private final KVScan defaults;
+   private final Function<String, String> keyTransform;
+   private KeyValue nextRegion;
+   private KeyValue nextDefault;
+
+   private RegionOverlay(KVScan region, KVScan defaults, Function<String, String> keyTransform) {
+      this.region = region;
+      this.defaults = defaults;
+      this.keyTransform = keyTransform;
+   }
+
+   /**
+    * @param region       the region's pairs
+    * @param defaults     the default region's pairs
+    * @param keyTransform strips the region prefix off the keys of either scan
+    * @return the pairs of both, keyed by the transformed keys
+    */
+   public static KVScan of(KVScan region, KVScan defaults, Function<String, String> keyTransform) {
+      return new RegionOverlay(region, defaults, keyTransform);
+   }
+
+   @Override
+   public boolean hasNext() {
+      return peekRegion() != null || peekDefault() != null;
+   }
+
+   @Override
+   public KeyValue next() {
+      KeyValue r = peekRegion();
+      KeyValue d = peekDefault();
+      if (r == null && d == null) {
+         throw new NoSuchElementException();
+      }
+      int c = r == null ? 1 : d == null ? -1 : r.key().compareTo(d.key());
+      if (c <= 0) {
+         nextRegion = null;
+         if (c == 0) {
+            // Overridden
+            nextDefault = null;
+         }
+         return r;
+      }
+      nextDefault = null;
+      return d;
+   }
+
+   @Override
+   public void close() {
+      try {
+         region.close();
+      } finally {
+         defaults.close();
+      }
+   }
+
+   private KeyValue peekRegion() {
+      if (nextRegion == null && region.hasNext()) {
+         nextRegion = transform(region.next());
+      }
+      return nextRegion;
+   }
+
+   private KeyValue peekDefault() {
+      if (nextDefault == null && defaults.hasNext()) {
+         nextDefault = transform(defaults.next());
+      }
+      return nextDefault;
+   }
+
+   private KeyValue transform(KeyValue keyValue) {
+      return KeyValue.from(keyTransform.apply(keyValue.key()), keyValue.value());
+   }
+}
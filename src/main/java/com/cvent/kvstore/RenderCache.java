@@ -0,0 +1,140 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * A bounded cache of rendered configs.
+ * Entries are keyed by document, region, format and the store indexes the render was based on,
+ * so a change to the document or any of its regions simply makes new requests miss.
+ * Eviction is by total size of the rendered bytes rather than by number of entries.
+ */
+public class RenderCache {
+   // Rough per-entry overhead of the key, the entry and the cache's bookkeeping
+   private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+   private final Cache<Key, RenderedConfig> cache;
+   private final Meter hits;
+   private final Meter misses;
+
+   public RenderCache(long maxBytes, MetricRegistry metrics) {
+      cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((Key key, RenderedConfig rendered) -> rendered.bytes.length + ENTRY_OVERHEAD_BYTES)
+            .build();
+      hits = metrics.meter(MetricRegistry.name(RenderCache.class, "hits"));
+      misses = metrics.meter(MetricRegistry.name(RenderCache.class, "misses"));
+      metrics.register(MetricRegistry.name(RenderCache.class, "entries"), (Gauge<Long>) cache::size);
+   }
+
+   /**
+    * Gets a rendered config, rendering it if it is not cached
+    * @param key      identifies the render
+    * @param renderer renders the config if it is not cached
+    * @return the rendered config
+    */
+   public RenderedConfig get(Key key, Callable<RenderedConfig> renderer) throws ExecutionException {
+      RenderedConfig rendered = cache.getIfPresent(key);
+      if (rendered != null) {
+         hits.mark();
+         return rendered;
+      }
+      return cache.get(key, () -> {
+         misses.mark();
+         return renderer.call();
+      });
+   }
+
+   /**
+    * Gets a rendered config if it is cached
+    * @param key identifies the render
+    * @return the rendered config, or absent if it is not cached
+    */
+   public Optional<RenderedConfig> getIfPresent(Key key) {
+      RenderedConfig rendered = cache.getIfPresent(key);
+      if (rendered != null) {
+         hits.mark();
+      }
+      return Optional.fromNullable(rendered);
+   }
+
+   /**
+    * Visits the cached renders
+    */
+   public void forEach(BiConsumer<Key, RenderedConfig> consumer) {
+      cache.asMap().forEach(consumer);
+   }
+
+   /**
+    * Caches a render made elsewhere, such as one restored from a snapshot
+    */
+   public void put(Key key, RenderedConfig rendered) {
+      cache.put(key, rendered);
+   }
+
+   /**
+    * Identifies a render of a document for a region in a format as of the given store indexes
+    */
+   public static class Key {
+      private final String document;
+      private final String region;
+      private final DocumentType docType;
+      private final long documentIndex;
+      private final long regionIndex;
+
+      private Key(String document, String region, DocumentType docType, long documentIndex, long regionIndex) {
+         this.document = document;
+         this.region = region;
+         this.docType = docType;
+         this.documentIndex = documentIndex;
+         this.regionIndex = regionIndex;
+      }
+
+      public static Key from(String document, String region, DocumentType docType, long documentIndex, long regionIndex) {
+         return new Key(document, region, docType, documentIndex, regionIndex);
+      }
+
+      public String document() {
+         return document;
+      }
+
+      public String region() {
+         return region;
+      }
+
+      public DocumentType docType() {
+         return docType;
+      }
+
+      public long documentIndex() {
+         return documentIndex;
+      }
+
+      public long regionIndex() {
+         return regionIndex;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) return true;
+         if (!(o instanceof Key)) return false;
+         Key key = (Key) o;
+         return documentIndex == key.documentIndex && regionIndex == key.regionIndex && docType == key.docType
+               && document.equals(key.document) && region.equals(key.region);
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(document, region, docType, documentIndex, regionIndex);
+      }
+   }
+}
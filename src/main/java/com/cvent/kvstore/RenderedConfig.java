@@ -0,0 +1,35 @@
+package com.cvent.kvstore;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Immutable class representing a rendered config along with its (strong) entity tag
+ * and the store index it was rendered at
+ */
+public class RenderedConfig {
+   public final byte[] bytes;
+   public final String etag;
+   public final long index;
+
+   private RenderedConfig(byte[] bytes, long index) {
+      this.bytes = bytes;
+      this.etag = Hashing.sha1().hashBytes(bytes).toString();
+      this.index = index;
+   }
+
+   public byte[] bytes() {
+      return bytes;
+   }
+
+   public String etag() {
+      return etag;
+   }
+
+   public long index() {
+      return index;
+   }
+
+   public static RenderedConfig from(byte[] bytes, long index) {
+      return new RenderedConfig(bytes, index);
+   }
+}
@@ -0,0 +1,202 @@
+package com.cvent.kvstore;
+
+import com.cvent.kvstore.ReplicatedKVSStoreDao.PartitionSnapshot;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A last-known-good copy of the replica's partitions and of the render cache on local disk.
+ *
+ * A restarted service restores it before the replica starts, so that it serves straight away and its watchers
+ * catch up from the snapshot's indexes instead of the whole fleet's first requests loading everything from the
+ * store together. It also lets the service start and serve while the store is unreachable; responses made from
+ * data older than the replica should lag carry a staleness header.
+ *
+ * The file is written every interval and on stop, to a temporary file that is moved into place, and is
+ * memory-mapped to be read:
+ *    header:     [magic][written at]
+ *    partitions: [count] then [prefix][index][current as of][entry count][key][value]... per partition
+ *    renders:    [count] then [document][region][format][document index][region index][index][bytes] per render
+ * The audit trail is not replicated (see ReplicatedKVSStoreDao), so it is not saved either.
+ */
+public class ReplicaSnapshot implements Managed {
+   private static final Logger LOG = LoggerFactory.getLogger(ReplicaSnapshot.class);
+   private static final int MAGIC = 0x4b565352;
+
+   private final Path path;
+   private final long intervalSeconds;
+   private final ReplicatedKVSStoreDao replica;
+   private final RenderCache renderCache;
+   private ScheduledExecutorService scheduler;
+
+   /**
+    * @param path            the snapshot file
+    * @param intervalSeconds how often to write it
+    * @param replica         the replica to save and restore
+    * @param renderCache     the render cache to save and restore; may be null
+    */
+   public ReplicaSnapshot(Path path, long intervalSeconds, ReplicatedKVSStoreDao replica, RenderCache renderCache) {
+      this.path = path;
+      this.intervalSeconds = intervalSeconds;
+      this.replica = replica;
+      this.renderCache = renderCache;
+   }
+
+   @Override
+   public void start() {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("replica-snapshot").setDaemon(true).build());
+      scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            write();
+         } catch (Exception e) {
+            // The last snapshot written stays in place
+            LOG.warn("Could not write snapshot {}", path, e);
+         }
+      }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+   }
+
+   @Override
+   public void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+      }
+      try {
+         write();
+      } catch (IOException e) {
+         LOG.warn("Could not write snapshot {}", path, e);
+      }
+   }
+
+   /**
+    * Restores the replica and the render cache from the snapshot file, if there is a readable one
+    * @return whether anything was restored
+    */
+   public boolean restore() {
+      if (!Files.exists(path)) {
+         return false;
+      }
+      List<PartitionSnapshot> partitions = new ArrayList<>();
+      Map<RenderCache.Key, RenderedConfig> renders = new HashMap<>();
+      long writtenAt;
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+         ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buffer.capacity() < 12 || buffer.getInt() != MAGIC) {
+            throw new IOException(path + " is not a snapshot");
+         }
+         writtenAt = buffer.getLong();
+         for (int n = buffer.getInt(); n > 0; n--) {
+            String prefix = readString(buffer);
+            long index = buffer.getLong();
+            long currentAsOf = buffer.getLong();
+            Map<String, String> values = new HashMap<>();
+            for (int count = buffer.getInt(); count > 0; count--) {
+               values.put(readString(buffer), readString(buffer));
+            }
+            partitions.add(PartitionSnapshot.from(prefix, index, currentAsOf, values));
+         }
+         for (int n = buffer.getInt(); n > 0; n--) {
+            RenderCache.Key key = RenderCache.Key.from(readString(buffer), readString(buffer),
+                  DocumentType.valueOf(readString(buffer)), buffer.getLong(), buffer.getLong());
+            long index = buffer.getLong();
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            renders.put(key, RenderedConfig.from(bytes, index));
+         }
+      } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+         // A truncated or foreign file: start from the store as if there were none
+         LOG.warn("Could not read snapshot {}, starting without it", path, e);
+         return false;
+      }
+
+      replica.restore(partitions);
+      if (renderCache != null) {
+         renders.forEach(renderCache::put);
+      }
+      LOG.info("Restored {} partitions and {} renders from {}, written {}s ago", partitions.size(), renders.size(),
+            path, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - writtenAt));
+      return true;
+   }
+
+   /**
+    * Writes the snapshot file
+    */
+   public synchronized void write() throws IOException {
+      Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+      List<PartitionSnapshot> partitions = replica.snapshot(prefix -> true);
+      Map<RenderCache.Key, RenderedConfig> renders = new HashMap<>();
+      if (renderCache != null) {
+         renderCache.forEach(renders::put);
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+         out.writeInt(MAGIC);
+         out.writeLong(System.currentTimeMillis());
+         out.writeInt(partitions.size());
+         for (PartitionSnapshot partition : partitions) {
+            writeString(out, partition.prefix);
+            out.writeLong(partition.index);
+            out.writeLong(partition.currentAsOfMillis);
+            out.writeInt(partition.values.size());
+            for (Map.Entry<String, String> entry : partition.values.entrySet()) {
+               writeString(out, entry.getKey());
+               writeString(out, entry.getValue());
+            }
+         }
+         out.writeInt(renders.size());
+         for (Map.Entry<RenderCache.Key, RenderedConfig> render : renders.entrySet()) {
+            RenderCache.Key key = render.getKey();
+            writeString(out, key.document());
+            writeString(out, key.region());
+            writeString(out, key.docType().name());
+            out.writeLong(key.documentIndex());
+            out.writeLong(key.regionIndex());
+            out.writeLong(render.getValue().index());
+            out.writeInt(render.getValue().bytes().length);
+            out.write(render.getValue().bytes());
+         }
+         if (out.size() < 0) {
+            // DataOutputStream counts in an int, and a mapping is at most 2GB
+            throw new IOException("Snapshot " + path + " is larger than 2GB");
+         }
+      }
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+         channel.force(true);
+      }
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   // Strings are written as their length in bytes and their UTF-8 bytes
+   private static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(ByteBuffer buffer) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,624 @@
+package com.cvent.kvstore;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.cvent.kvstore.KVStore.HIERARCHY_SEPARATOR;
+
+/**
+ * A KVSStoreDao decorator that serves reads from an in-memory replica of the store.
+ *
+ * The replica is partitioned by the first part of the key (document/ and one per config document, which holds
+ * all its regions). Each partition is loaded on first use and then kept current by a watcher thread issuing
+ * blocking queries (X-Consul-Index) against the underlying DAO. The audit trail, its index and its segments are
+ * not replicated: they are large, only read to answer audit queries, and written with every change, so a watch
+ * on them would read them all again for each write. Reads and writes of them go straight to the underlying DAO.
+ * Writes go to the underlying DAO. The next read of the partition written to first waits (up to
+ * maxStalenessMillis) for the watcher to bring it up to the index of the last write made to it, read from the
+ * store consistently, so that writers read their own writes, and a changeset written in many transactions waits
+ * once rather than once for each.
+ * Responses from before a write made here, such as stale reads from a follower that has not caught up, are not
+ * applied: the watcher and refreshes block until the store has the write. The partition index only ever moves
+ * with values read from the store, so renders cached by it are never of values the store did not hold.
+ *
+ * If a partition has not heard from the store for longer than the blocking query wait plus
+ * maxStalenessMillis (the watcher is failing or hung), the next read refreshes it synchronously. If that fails
+ * too, the partition keeps serving the values it has, and stalenessMillis says how old they are.
+ *
+ * Partitions can be restored from a snapshot (see ReplicaSnapshot) before the replica starts; they are served
+ * as they are while their watchers catch up from the snapshot's indexes.
+ *
+ * The replica lags the store, so its CONSISTENT view reads from the store instead.
+ */
+public class ReplicatedKVSStoreDao implements KVSStoreDao, Managed {
+   private static final Logger LOG = LoggerFactory.getLogger(ReplicatedKVSStoreDao.class);
+   private static final long WATCH_ERROR_BACKOFF_MILLIS = 1000;
+   // How long a refresh waits for the store to catch up with a write made here
+   private static final long CATCH_UP_WAIT_SECONDS = 1;
+   private static final Set<String> UNREPLICATED = ImmutableSet.of(KVStore.AUDIT_REGION + HIERARCHY_SEPARATOR,
+         KVStore.AUDIT_INDEX_REGION + HIERARCHY_SEPARATOR, KVStore.AUDIT_SEGMENT_REGION + HIERARCHY_SEPARATOR);
+
+   private final KVSStoreDao dao;
+   // Reads the index of a write made here
+   private final KVSStoreDao consistent;
+   private final long waitSeconds;
+   private final long maxStalenessMillis;
+   private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+   private final ExecutorService watchers = Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setNameFormat("kv-replica-watch-%d").setDaemon(true).build());
+   private volatile boolean running;
+
+   public ReplicatedKVSStoreDao(KVSStoreDao dao, long waitSeconds, long maxStalenessMillis) {
+      this.dao = dao;
+      consistent = dao.withConsistency(ReadConsistency.CONSISTENT);
+      this.waitSeconds = waitSeconds;
+      this.maxStalenessMillis = maxStalenessMillis;
+   }
+
+   /**
+    * Starts watching the documents partition along with any partition read so far
+    */
+   @Override
+   public void start() {
+      running = true;
+      // Partitions loaded from now on start their own watch; watch() starts each one once either way
+      partitions.values().forEach(this::watch);
+      String documents = KVStore.DOCUMENT_REGION + HIERARCHY_SEPARATOR;
+      try {
+         partitionFor(documents);
+      } catch (RuntimeException e) {
+         // Start anyway so that restored partitions are served while the store is unreachable
+         LOG.warn("Could not load {}, loading it on first read", documents, e);
+      }
+   }
+
+   @Override
+   public void stop() {
+      running = false;
+      watchers.shutdownNow();
+   }
+
+   @Override
+   public void put(String key, String value) throws KVStoreException {
+      dao.put(key, value);
+      written(existingPartitionFor(key), key);
+   }
+
+   @Override
+   public boolean putIfIndex(String key, String value, long index) throws KVStoreException {
+      if (!dao.putIfIndex(key, value, index)) {
+         return false;
+      }
+      written(existingPartitionFor(key), key);
+      return true;
+   }
+
+   @Override
+   public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+      boolean written = false;
+      try {
+         written = dao.putAll(keyValues, expectedIndexes);
+      } finally {
+         // The last key written to a partition was written in the last run that wrote to it
+         Map<Partition, String> lastKeys = new HashMap<>();
+         for (KeyValue keyValue : keyValues) {
+            Partition partition = existingPartitionFor(keyValue.key());
+            if (partition != null) {
+               lastKeys.put(partition, keyValue.key());
+            }
+         }
+         if (written) {
+            lastKeys.forEach(this::written);
+         } else {
+            // Some runs may have been written: have the next read refresh rather than wait for the watcher
+            lastKeys.keySet().forEach(partition -> partition.lastContactMillis = 0);
+         }
+      }
+      return written;
+   }
+
+   // Check-and-set needs each value's own modify index, which the replica does not keep
+   @Override
+   public Optional<VersionedValue> getVersionedValueAt(String key) {
+      return dao.getVersionedValueAt(key);
+   }
+
+   @Override
+   public Map<String, VersionedValue> getVersionedHierarchy(String key) {
+      return dao.getVersionedHierarchy(key);
+   }
+
+   @Override
+   public Optional<String> getValueAt(String key) {
+      Partition partition = partitionFor(key);
+      return partition != null ? Optional.fromNullable(partition.read().get(key)) : dao.getValueAt(key);
+   }
+
+   @Override
+   public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+      Partition partition = partitionFor(key);
+      if (partition == null) {
+         return dao.getHierarchyAsMap(key, keyTransform);
+      }
+      Map<String, String> ret = new HashMap<>();
+      subtree(partition.read(), key).forEach((k, v) -> ret.put(keyTransform != null ? keyTransform.apply(k) : k, v));
+      return ret;
+   }
+
+   @Override
+   public KVScan scan(String prefix) {
+      Partition partition = partitionFor(prefix);
+      return partition != null ? KVScan.of(subtree(partition.read(), prefix)) : dao.scan(prefix);
+   }
+
+   @Override
+   public VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds) {
+      Partition partition = partitionFor(key);
+      if (partition == null) {
+         return dao.getHierarchyAfter(key, index, waitSeconds);
+      }
+      // The partition index moves whenever anything in the partition changes, so it is a safe
+      // (if conservative) index for any key within it
+      partition.settle();
+      partition.awaitIndexAfter(index, TimeUnit.SECONDS.toMillis(waitSeconds));
+      synchronized (partition) {
+         return VersionedHierarchy.from(partition.index, new HashMap<>(subtree(partition.read(), key)));
+      }
+   }
+
+   @Override
+   public Optional<Collection<String>> getKeysAt(String key) {
+      Partition partition = partitionFor(key);
+      if (partition == null) {
+         return dao.getKeysAt(key);
+      }
+      NavigableMap<String, String> subtree = subtree(partition.read(), key);
+      return subtree.isEmpty() ? Optional.absent() : Optional.of(subtree.keySet());
+   }
+
+   @Override
+   public List<String> getChildKeysAt(String prefix) {
+      Partition partition = partitionFor(prefix);
+      if (partition == null) {
+         return dao.getChildKeysAt(prefix);
+      }
+      // Skips from one child to the next rather than reading everything under each
+      List<String> children = new ArrayList<>();
+      NavigableMap<String, String> values = subtree(partition.read(), prefix);
+      for (String key = values.isEmpty() ? null : values.firstKey(); key != null; ) {
+         String child = KVSStoreDao.childKey(prefix, key);
+         children.add(child);
+         key = child.endsWith(HIERARCHY_SEPARATOR) ? values.ceilingKey(child + Character.MAX_VALUE)
+               : values.higherKey(child);
+      }
+      return children;
+   }
+
+   @Override
+   public long modifyIndexAt(String key) {
+      Partition partition = partitionFor(key);
+      if (partition == null) {
+         return dao.modifyIndexAt(key);
+      }
+      partition.read();
+      return partition.index;
+   }
+
+   @Override
+   public void deleteKey(String key) throws KVStoreException {
+      dao.deleteKey(key);
+      written(existingPartitionFor(key), key);
+   }
+
+   @Override
+   public void deleteHierarchyAt(String key) throws KVStoreException {
+      dao.deleteHierarchyAt(key);
+      partitions.values().forEach(partition -> {
+         if (partition.loaded && partition.prefix.startsWith(key)) {
+            written(partition, partition.prefix);
+         } else if (partition.loaded && key.startsWith(partition.prefix)) {
+            written(partition, key);
+         }
+      });
+   }
+
+   @Override
+   public KVSStoreDao withConsistency(ReadConsistency consistency) {
+      return consistency == ReadConsistency.CONSISTENT ? new Consistent(dao.withConsistency(consistency)) : this;
+   }
+
+   @Override
+   public long stalenessMillis(String key) {
+      Partition partition = existingPartitionFor(key);
+      return partition != null ? partition.stalenessMillis() : 0;
+   }
+
+   /**
+    * Copies the partitions loaded so far
+    * @param prefixes which partitions to copy, by prefix
+    * @return the copies
+    */
+   public List<PartitionSnapshot> snapshot(Predicate<String> prefixes) {
+      List<PartitionSnapshot> ret = new ArrayList<>();
+      for (Partition partition : partitions.values()) {
+         if (partition.loaded && prefixes.test(partition.prefix)) {
+            synchronized (partition) {
+               ret.add(PartitionSnapshot.from(partition.prefix, partition.index, partition.currentAsOfMillis,
+                     new TreeMap<>(partition.values)));
+            }
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * Restores partitions from a snapshot. Partitions already loaded are left alone.
+    * Must be called before the replica starts.
+    * @param snapshots the partitions
+    */
+   public void restore(Collection<PartitionSnapshot> snapshots) {
+      long now = System.currentTimeMillis();
+      for (PartitionSnapshot snapshot : snapshots) {
+         partitions.computeIfAbsent(snapshot.prefix, p -> {
+            Partition partition = new Partition(p);
+            partition.values.putAll(snapshot.values);
+            partition.index = snapshot.index;
+            partition.currentAsOfMillis = snapshot.currentAsOfMillis;
+            partition.loaded = true;
+            // Not refreshed on read until the watcher has had time to catch up
+            partition.lastContactMillis = now;
+            return partition;
+         });
+      }
+   }
+
+   // Like Consul, hierarchies are plain key prefixes
+   private static NavigableMap<String, String> subtree(NavigableMap<String, String> values, String key) {
+      return values.subMap(key, true, key + Character.MAX_VALUE, false);
+   }
+
+   // Null for keys that are not replicated
+   private static String partitionKey(String key) {
+      int ind = key.indexOf(HIERARCHY_SEPARATOR);
+      String partitionKey = ind < 0 ? null : key.substring(0, ind + 1);
+      return partitionKey != null && !UNREPLICATED.contains(partitionKey) ? partitionKey : null;
+   }
+
+   private Partition existingPartitionFor(String key) {
+      String partitionKey = partitionKey(key);
+      Partition partition = partitionKey != null ? partitions.get(partitionKey) : null;
+      return partition != null && partition.loaded ? partition : null;
+   }
+
+   // Returns null for keys that do not fall within a single partition or are not replicated
+   private Partition partitionFor(String key) {
+      String partitionKey = partitionKey(key);
+      if (partitionKey == null) {
+         return null;
+      }
+      // Loaded outside the map, so that a slow load holds up no other partition; a failed one is tried again
+      Partition partition = partitions.computeIfAbsent(partitionKey, Partition::new);
+      partition.load();
+      return partition;
+   }
+
+   // Has the next read of the partition wait for a write made here to the key
+   private void written(Partition partition, String key) {
+      if (partition != null) {
+         partition.unsettledWrite.set(key);
+      }
+   }
+
+   // Waits for a write made here to reach the partition holding the key
+   private void awaitWrite(Partition partition, String key) {
+      long writeIndex;
+      try {
+         writeIndex = consistent.modifyIndexAt(key);
+      } catch (RuntimeException e) {
+         // The write is in the store; have the next read refresh rather than wait for the watcher
+         LOG.warn("Could not read the index of a write to {}", key, e);
+         partition.lastContactMillis = 0;
+         return;
+      }
+      partition.awaitWrite(writeIndex);
+   }
+
+   // Starts the partition's watcher, once, when the replica is running and the partition is loaded
+   private void watch(Partition partition) {
+      if (!running || !partition.loaded || !partition.watching.compareAndSet(false, true)) {
+         return;
+      }
+      watchers.submit(() -> {
+         while (running) {
+            try {
+               partition.apply(dao.getHierarchyAfter(partition.prefix, partition.watchIndex(), waitSeconds));
+            } catch (RuntimeException e) {
+               LOG.warn("Watch on {} failed, retrying", partition.prefix, e);
+               try {
+                  Thread.sleep(WATCH_ERROR_BACKOFF_MILLIS);
+               } catch (InterruptedException ie) {
+                  return;
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * Reads from the store and writes through the replica, so that the replica still sees the writes
+    */
+   private class Consistent implements KVSStoreDao {
+      private final KVSStoreDao reads;
+
+      private Consistent(KVSStoreDao reads) {
+         this.reads = reads;
+      }
+
+      @Override
+      public void put(String key, String value) throws KVStoreException {
+         ReplicatedKVSStoreDao.this.put(key, value);
+      }
+
+      @Override
+      public boolean putIfIndex(String key, String value, long index) throws KVStoreException {
+         return ReplicatedKVSStoreDao.this.putIfIndex(key, value, index);
+      }
+
+      @Override
+      public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+         return ReplicatedKVSStoreDao.this.putAll(keyValues, expectedIndexes);
+      }
+
+      @Override
+      public Optional<String> getValueAt(String key) {
+         return reads.getValueAt(key);
+      }
+
+      @Override
+      public Optional<VersionedValue> getVersionedValueAt(String key) {
+         return reads.getVersionedValueAt(key);
+      }
+
+      @Override
+      public Map<String, VersionedValue> getVersionedHierarchy(String key) {
+         return reads.getVersionedHierarchy(key);
+      }
+
+      @Override
+      public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+         return reads.getHierarchyAsMap(key, keyTransform);
+      }
+
+      @Override
+      public KVScan scan(String prefix) {
+         return reads.scan(prefix);
+      }
+
+      @Override
+      public VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds) {
+         return reads.getHierarchyAfter(key, index, waitSeconds);
+      }
+
+      @Override
+      public Optional<Collection<String>> getKeysAt(String key) {
+         return reads.getKeysAt(key);
+      }
+
+      @Override
+      public List<String> getChildKeysAt(String prefix) {
+         return reads.getChildKeysAt(prefix);
+      }
+
+      @Override
+      public long modifyIndexAt(String key) {
+         return reads.modifyIndexAt(key);
+      }
+
+      @Override
+      public void deleteKey(String key) throws KVStoreException {
+         ReplicatedKVSStoreDao.this.deleteKey(key);
+      }
+
+      @Override
+      public void deleteHierarchyAt(String key) throws KVStoreException {
+         ReplicatedKVSStoreDao.this.deleteHierarchyAt(key);
+      }
+
+      @Override
+      public KVSStoreDao withConsistency(ReadConsistency consistency) {
+         return ReplicatedKVSStoreDao.this.withConsistency(consistency);
+      }
+   }
+
+   /**
+    * Immutable copy of a partition: its values, the index they were read at and when they were last known to be
+    * current
+    */
+   public static class PartitionSnapshot {
+      public final String prefix;
+      public final long index;
+      public final long currentAsOfMillis;
+      public final Map<String, String> values;
+
+      private PartitionSnapshot(String prefix, long index, long currentAsOfMillis, Map<String, String> values) {
+         this.prefix = prefix;
+         this.index = index;
+         this.currentAsOfMillis = currentAsOfMillis;
+         this.values = values;
+      }
+
+      public static PartitionSnapshot from(String prefix, long index, long currentAsOfMillis,
+                                           Map<String, String> values) {
+         return new PartitionSnapshot(prefix, index, currentAsOfMillis, values);
+      }
+   }
+
+   private class Partition {
+      private final String prefix;
+      private final ConcurrentSkipListMap<String, String> values = new ConcurrentSkipListMap<>();
+      private final AtomicBoolean watching = new AtomicBoolean();
+      // The last key written here that reads have yet to wait for; a later write of the partition covers
+      // earlier ones
+      private final AtomicReference<String> unsettledWrite = new AtomicReference<>();
+      private volatile boolean loaded;
+      private volatile long index;
+      // The highest index of a write made here; responses from before it are not applied
+      private volatile long writtenIndex;
+      private volatile long lastContactMillis;
+      // When the values were last known to be current; older than lastContactMillis for restored partitions
+      private volatile long currentAsOfMillis;
+      private volatile long refreshFailedAtMillis;
+
+      private Partition(String prefix) {
+         this.prefix = prefix;
+      }
+
+      private void load() {
+         if (!loaded) {
+            synchronized (this) {
+               if (!loaded) {
+                  refresh();
+               }
+            }
+            watch(this);
+         }
+      }
+
+      // Waits for the last write made here, if reads have yet to
+      private void settle() {
+         String key = unsettledWrite.getAndSet(null);
+         if (key != null) {
+            ReplicatedKVSStoreDao.this.awaitWrite(this, key);
+         }
+      }
+
+      // The values, once they hold the writes made here, refreshed first if the watcher has fallen behind
+      private NavigableMap<String, String> read() {
+         settle();
+         if (isStale() && !refreshFailedRecently()) {
+            synchronized (this) {
+               if (isStale() && !refreshFailedRecently()) {
+                  try {
+                     if (!refresh()) {
+                        // The store has yet to catch up with a write made here
+                        refreshFailedAtMillis = System.currentTimeMillis();
+                     }
+                  } catch (RuntimeException e) {
+                     // The last known values beat no values
+                     refreshFailedAtMillis = System.currentTimeMillis();
+                     LOG.warn("Could not refresh {}, serving it as of {}ms ago", prefix,
+                           refreshFailedAtMillis - currentAsOfMillis, e);
+                  }
+               }
+            }
+         }
+         return values;
+      }
+
+      private boolean isStale() {
+         return System.currentTimeMillis() - lastContactMillis > maxLagMillis();
+      }
+
+      // Reads do not each wait on a store that is down
+      private boolean refreshFailedRecently() {
+         return System.currentTimeMillis() - refreshFailedAtMillis < WATCH_ERROR_BACKOFF_MILLIS;
+      }
+
+      private long maxLagMillis() {
+         return TimeUnit.SECONDS.toMillis(waitSeconds) + maxStalenessMillis;
+      }
+
+      private long stalenessMillis() {
+         long age = System.currentTimeMillis() - currentAsOfMillis;
+         return age > maxLagMillis() ? age : 0;
+      }
+
+      // Returns whether the store had caught up with the writes made here
+      private boolean refresh() {
+         boolean catchUp = writtenIndex > index;
+         return apply(dao.getHierarchyAfter(prefix, catchUp ? watchIndex() : 0, catchUp ? CATCH_UP_WAIT_SECONDS : 0));
+      }
+
+      // Blocking reads return once the store has moved past this index, so past any write made here
+      private long watchIndex() {
+         return Math.max(index, writtenIndex - 1);
+      }
+
+      private synchronized boolean apply(VersionedHierarchy hierarchy) {
+         if (hierarchy.index() < writtenIndex) {
+            // From before a write made here: applying it would undo the write
+            return false;
+         }
+         loaded = true;
+         lastContactMillis = System.currentTimeMillis();
+         currentAsOfMillis = lastContactMillis;
+         if (hierarchy.index() == index) {
+            // The blocking query timed out without a change
+            return true;
+         }
+         values.keySet().retainAll(hierarchy.values().keySet());
+         values.putAll(hierarchy.values());
+         index = hierarchy.index();
+         notifyAll();
+         return true;
+      }
+
+      // Waits for the watcher to apply a response at or after a write made here
+      private synchronized void awaitWrite(long writeIndex) {
+         writtenIndex = Math.max(writtenIndex, writeIndex);
+         long deadline = System.currentTimeMillis() + maxStalenessMillis;
+         long remaining = maxStalenessMillis;
+         while (watching.get() && index < writeIndex && remaining > 0) {
+            try {
+               wait(remaining);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            }
+            remaining = deadline - System.currentTimeMillis();
+         }
+         if (index < writeIndex) {
+            // The next read refreshes, waiting for the store to catch up with the write
+            lastContactMillis = 0;
+         }
+      }
+
+      private synchronized void awaitIndexAfter(long lastIndex, long waitMillis) {
+         long deadline = System.currentTimeMillis() + waitMillis;
+         long remaining = waitMillis;
+         while (lastIndex > 0 && index == lastIndex && remaining > 0) {
+            try {
+               wait(remaining);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+            remaining = deadline - System.currentTimeMillis();
+         }
+      }
+   }
+
+}
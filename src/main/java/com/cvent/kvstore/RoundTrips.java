@@ -0,0 +1,30 @@
+package com.cvent.kvstore;
+
+/**
+ * Counts the calls made to the store on the current thread, so that the round trips it takes to serve
+ * a request can be measured. MeteredKVSStoreDao counts; RoundTripFilter resets and reads the count per request.
+ */
+public final class RoundTrips {
+   private static final ThreadLocal<int[]> COUNT = ThreadLocal.withInitial(() -> new int[1]);
+
+   private RoundTrips() {
+   }
+
+   static void add(int roundTrips) {
+      COUNT.get()[0] += roundTrips;
+   }
+
+   /**
+    * Starts counting from zero
+    */
+   public static void reset() {
+      COUNT.get()[0] = 0;
+   }
+
+   /**
+    * @return the round trips made on this thread since the last reset
+    */
+   public static int count() {
+      return COUNT.get()[0];
+   }
+}
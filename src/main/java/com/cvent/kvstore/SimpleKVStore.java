@@ -1,15 +1,26 @@
 package com.cvent.kvstore;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.cvent.JsonSerializer;
 import com.cvent.kvstore.model.AuditLog;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
@@ -18,15 +29,40 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
  * Created by sviswanathan on 2/10/16.
  */
 public class SimpleKVStore implements KVStore {
+   // A revision counter, an audit record, its index entries and a value per key
+   private static final int PUTS_PER_KEY = 3 + AuditIndex.ENTRIES_PER_RECORD;
+   /**
+    * The most keys putAll writes in one transaction, and so atomically
+    */
+   public static final int KEYS_PER_TRANSACTION = KVSStoreDao.MAX_ATOMIC_PUTS / PUTS_PER_KEY;
+   private static final int MAX_WRITE_ATTEMPTS = 10;
+   private static final long BASE_BACKOFF_MILLIS = 10;
+   private static final long MAX_BACKOFF_MILLIS = 1000;
 
    private final String document;
    private final String region;
    private final KVSStoreDao dao;
+   // Reads that a write is decided on must see the latest writes, wherever the other reads come from
+   private final KVSStoreDao consistentDao;
 
-   SimpleKVStore(String document, String region, KVSStoreDao dao) {
+   // Writes rolled back by a concurrent write, and writes tried again because of that
+   private final Meter writeConflicts;
+   private final Meter writeRetries;
+   // The phases of a put: checking the value, reading the default region and the audited write
+   private final Timer putValidate;
+   private final Timer putCheckDefault;
+   private final Timer putWrite;
+
+   SimpleKVStore(String document, String region, KVSStoreDao dao, MetricRegistry metrics) {
       this.document = document;
       this.region = region;
       this.dao = dao;
+      consistentDao = dao.withConsistency(ReadConsistency.CONSISTENT);
+      writeConflicts = metrics.meter(MetricRegistry.name(SimpleKVStore.class, "writeConflicts"));
+      writeRetries = metrics.meter(MetricRegistry.name(SimpleKVStore.class, "writeRetries"));
+      putValidate = metrics.timer(MetricRegistry.name(SimpleKVStore.class, "put", "validate"));
+      putCheckDefault = metrics.timer(MetricRegistry.name(SimpleKVStore.class, "put", "checkDefault"));
+      putWrite = metrics.timer(MetricRegistry.name(SimpleKVStore.class, "put", "write"));
    }
 
    @Override
@@ -34,21 +70,21 @@ public class SimpleKVStore implements KVStore {
       return document;
    }
 
-   public static KVStore forDefaultRegion(String documentName, KVSStoreDao dao) {
-      return new SimpleKVStore(documentName, DEFAULT_REGION, dao);
+   public static KVStore forDefaultRegion(String documentName, KVSStoreDao dao, MetricRegistry metrics) {
+      return new SimpleKVStore(documentName, DEFAULT_REGION, dao, metrics);
    }
 
-   public static KVStore forAuditRegion(String documentName, KVSStoreDao dao) {
-      return new SimpleKVStore(documentName, AUDIT_REGION, dao);
+   public static KVStore forAuditRegion(String documentName, KVSStoreDao dao, MetricRegistry metrics) {
+      return new SimpleKVStore(documentName, AUDIT_REGION, dao, metrics);
    }
 
-   public static KVStore forRegion(String documentName, String region, KVSStoreDao dao) {
-      return new SimpleKVStore(documentName, region, dao);
+   public static KVStore forRegion(String documentName, String region, KVSStoreDao dao, MetricRegistry metrics) {
+      return new SimpleKVStore(documentName, region, dao, metrics);
    }
 
    // Documents will be stored in the default region of the special "document" document
-   public static KVStore documentStoreFor(KVSStoreDao dao) {
-      return new SimpleKVStore(DOCUMENT_REGION, DEFAULT_REGION, dao);
+   public static KVStore documentStoreFor(KVSStoreDao dao, MetricRegistry metrics) {
+      return new SimpleKVStore(DOCUMENT_REGION, DEFAULT_REGION, dao, metrics);
    }
 
    private boolean isDefaultRegion() {
@@ -65,45 +101,215 @@ public class SimpleKVStore implements KVStore {
    }
 
    public boolean put(String key, String value, String author, boolean force) throws KVStoreException {
-      Preconditions.checkArgument(isNotBlank(key) && isNotBlank(value) && isNotBlank(author), "key, value and author are required");
+      Timer.Context phase = putValidate.time();
+      try {
+         Preconditions.checkArgument(isNotBlank(key) && isNotBlank(value) && isNotBlank(author), "key, value and author are required");
+         if (!DOCUMENT_REGION.equals(document)) {
+            // Typed here, once, so that rendering never has to parse values
+            ValueType.check(value);
+         }
+      } finally {
+         phase.stop();
+      }
       if (!force && !isDefaultRegion()) {
-         Optional<String> val = dao.getValueAt(KeyProvider.defaultRegionKeyFor(document, key));
-         if (!val.isPresent()) {
-            throw KVStoreException.keyAbsentInDefault(key);
-         } else if (val.get().equals(value)) {
-            // If the value in the default region matches
-            return false;
+         phase = putCheckDefault.time();
+         try {
+            Optional<String> val = consistentDao.getValueAt(KeyProvider.defaultRegionKeyFor(document, key));
+            if (!val.isPresent()) {
+               throw KVStoreException.keyAbsentInDefault(key);
+            } else if (val.get().equals(value)) {
+               // If the value in the default region matches
+               return false;
+            }
+         } finally {
+            phase.stop();
          }
       }
 
-      String keyToUpsert = KeyProvider.keyFor(document, region, key);
-      Optional<String> val = dao.getValueAt(keyToUpsert);
-      String oldVal = val.or(NO_VALUE);
-      if (!value.equals(oldVal)) {
-         // Audit trail: Create an entry in audit region for the same key with an incremented revision number at the end
-         Optional<Collection<String>> keys = dao.getKeysAt(KeyProvider.auditHierarchyFor(document, region, key));
-         int newRevision = 1 + keys.or(Collections.emptyList()).stream().map(
-               k -> Integer.valueOf(KeyProvider.auditRevisionFromAuditKey(k))).max(Comparator.naturalOrder()).orElse(0);
-         String auditKey = KeyProvider.auditKeyForRevision(document, region, key, newRevision);
+      phase = putWrite.time();
+      try {
+         return writeAudited(Collections.singletonMap(key, value), author) > 0;
+      } finally {
+         phase.stop();
+      }
+   }
 
-         AuditLog auditLog = new AuditLog(document, author, region, key, oldVal, value, newRevision);
+   public boolean put(KeyValue keyValue, String author, boolean force) throws KVStoreException {
+      return put(keyValue.key(), keyValue.value(), author, force);
+   }
 
-         // Create the audit trail entry
-         dao.put(auditKey, auditRecord(auditLog));
+   public int putAll(Collection<KeyValue> keyValues, String author, boolean force) throws KVStoreException {
+      Preconditions.checkArgument(isNotBlank(author), "author is required");
+      Map<String, String> changes = new LinkedHashMap<>();
+      for (KeyValue keyValue : keyValues) {
+         Preconditions.checkArgument(isNotBlank(keyValue.key()) && isNotBlank(keyValue.value()),
+               "key and value are required");
+         if (!DOCUMENT_REGION.equals(document)) {
+            ValueType.check(keyValue.value());
+         }
+         changes.put(keyValue.key(), keyValue.value());
+      }
 
-         // Create the actual entry
-         dao.put(keyToUpsert, value);
-         return true;
-      } else {
-         return false;
+      if (!force && !isDefaultRegion()) {
+         // One read of the default region instead of one per key
+         Map<String, String> defaultVals = consistentDao.getHierarchyAsMap(
+               KeyProvider.keyForEntireRegion(document, DEFAULT_REGION) + HIERARCHY_SEPARATOR,
+               KeyProvider::keyFromDocumentRegionDbKey);
+         for (String key : changes.keySet()) {
+            if (!defaultVals.containsKey(key)) {
+               throw KVStoreException.keyAbsentInDefault(key);
+            }
+         }
+         // Values that match the default region are left alone
+         changes.entrySet().removeIf(e -> e.getValue().equals(defaultVals.get(e.getKey())));
       }
+      return writeAudited(changes, author);
    }
 
-   public boolean put(KeyValue keyValue, String author, boolean force) throws KVStoreException {
-      return put(keyValue.key(), keyValue.value(), author, force);
+   // Writes values that differ from the current ones along with their audit records, returning how many were written.
+   // Batches commit one at a time: if one fails, the exception lists the keys the batches before it wrote.
+   // Writes are optimistic: the value and the key's revision counter are written with check-and-set in the same
+   // transaction as the audit record. If another writer changed either since they were read, the transaction is
+   // rolled back and the batch is read and tried again after a backoff, so the audit record's old value is always
+   // the value that was replaced and concurrent writers of a key get distinct revisions.
+   private int writeAudited(Map<String, String> changes, String author) throws KVStoreException {
+      List<String> written = new ArrayList<>();
+      for (List<String> batch : Lists.partition(new ArrayList<>(changes.keySet()), KEYS_PER_TRANSACTION)) {
+         try {
+            written.addAll(writeAuditedBatch(batch, changes, author));
+         } catch (KVStoreException | RuntimeException e) {
+            if (written.isEmpty()) {
+               throw e;
+            }
+            throw KVStoreException.partlyWritten(e, written);
+         }
+      }
+      return written.size();
+   }
+
+   // Writes a batch in one transaction, trying again after a backoff while concurrent writes roll it back
+   private List<String> writeAuditedBatch(List<String> batch, Map<String, String> changes, String author)
+         throws KVStoreException {
+      int attempt = 0;
+      List<String> written;
+      while ((written = tryWriteAudited(batch, changes, author)) == null) {
+         writeConflicts.mark();
+         if (++attempt >= MAX_WRITE_ATTEMPTS) {
+            throw KVStoreException.writeConflict(batch.get(0));
+         }
+         writeRetries.mark();
+         backoff(attempt, batch.get(0));
+      }
+      return written;
+   }
+
+   // Returns the keys written, or null if the transaction was rolled back by a concurrent write
+   private List<String> tryWriteAudited(List<String> keys, Map<String, String> changes, String author) throws KVStoreException {
+      Map<String, VersionedValue> currentVals = versionedValues(keys);
+      Map<String, VersionedValue> counters = revisionCounters(keys);
+      Map<String, Integer> legacyRevisions = null;
+      List<KeyValue> puts = new ArrayList<>(PUTS_PER_KEY * keys.size());
+      Map<String, Long> expectedIndexes = new HashMap<>();
+      List<String> written = new ArrayList<>(keys.size());
+      for (String key : keys) {
+         String valueKey = KeyProvider.keyFor(document, region, key);
+         VersionedValue currentVal = currentVals.get(valueKey);
+         if (currentVal != null && currentVal.value().equals(changes.get(key))) {
+            continue;
+         }
+         String counterKey = KeyProvider.revisionCounterKeyFor(document, region, key);
+         VersionedValue counter = counters.get(counterKey);
+         int newRevision;
+         if (counter != null) {
+            newRevision = 1 + Integer.parseInt(counter.value());
+            expectedIndexes.put(counterKey, counter.index());
+         } else {
+            // The key's first write since revision counters were introduced: carry on from its audit trail
+            if (legacyRevisions == null) {
+               legacyRevisions = latestAuditRevisions(keys);
+            }
+            newRevision = 1 + legacyRevisions.getOrDefault(key, 0);
+            expectedIndexes.put(counterKey, 0L);
+         }
+         expectedIndexes.put(valueKey, currentVal != null ? currentVal.index() : 0L);
+
+         AuditLog auditLog = new AuditLog(document, author, region, key, currentVal != null ? currentVal.value() : NO_VALUE,
+               changes.get(key), newRevision);
+         puts.add(KeyValue.from(counterKey, String.valueOf(newRevision)));
+         String record = auditRecord(auditLog);
+         puts.add(KeyValue.from(KeyProvider.auditKeyForRevision(document, region, key, newRevision), record));
+         puts.addAll(AuditIndex.entriesFor(auditLog, record));
+         puts.add(KeyValue.from(valueKey, changes.get(key)));
+         written.add(key);
+      }
+      if (puts.isEmpty()) {
+         return written;
+      }
+      return dao.putAll(puts, expectedIndexes) ? written : null;
+   }
+
+   // Bounded exponential backoff with full jitter, so that writers that collided do not collide again
+   private static void backoff(int attempt, String key) throws KVStoreException {
+      long maxMillis = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(maxMillis + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw KVStoreException.writeConflict(key);
+      }
+   }
+
+   // The current values of the keys (by full key): one read for one key, else one read for the region
+   private Map<String, VersionedValue> versionedValues(List<String> keys) {
+      if (keys.size() == 1) {
+         String valueKey = KeyProvider.keyFor(document, region, keys.get(0));
+         Optional<VersionedValue> val = consistentDao.getVersionedValueAt(valueKey);
+         return val.isPresent() ? Collections.singletonMap(valueKey, val.get()) : Collections.emptyMap();
+      }
+      return consistentDao.getVersionedHierarchy(KeyProvider.keyForEntireRegion(document, region) + HIERARCHY_SEPARATOR);
+   }
+
+   // The revision counters of the keys (by counter key): one read for one key, else one read for the region
+   private Map<String, VersionedValue> revisionCounters(List<String> keys) {
+      if (keys.size() == 1) {
+         String counterKey = KeyProvider.revisionCounterKeyFor(document, region, keys.get(0));
+         Optional<VersionedValue> counter = consistentDao.getVersionedValueAt(counterKey);
+         return counter.isPresent() ? Collections.singletonMap(counterKey, counter.get()) : Collections.emptyMap();
+      }
+      return consistentDao.getVersionedHierarchy(KeyProvider.revisionCounterKeyForEntireRegion(document, region));
+   }
+
+   // The latest revision in the audit trail of each of the keys: one listing for one key, else one for the region
+   private Map<String, Integer> latestAuditRevisions(List<String> keys) {
+      String auditPrefix = (keys.size() == 1 ? KeyProvider.auditHierarchyFor(document, region, keys.get(0))
+            : KeyProvider.auditKeyForEntireRegion(document, region)) + HIERARCHY_SEPARATOR;
+      String regionPrefix = KeyProvider.auditKeyForEntireRegion(document, region) + HIERARCHY_SEPARATOR;
+      Map<String, Integer> revisions = new HashMap<>();
+      for (String auditKey : consistentDao.getKeysAt(auditPrefix).or(Collections.emptyList())) {
+         int ind = auditKey.lastIndexOf(HIERARCHY_SEPARATOR);
+         if (ind > regionPrefix.length()) {
+            try {
+               revisions.merge(auditKey.substring(regionPrefix.length(), ind),
+                     Integer.valueOf(KeyProvider.auditRevisionFromAuditKey(auditKey)), Math::max);
+            } catch (NumberFormatException e) {
+               // Not a revision
+            }
+         }
+      }
+      return revisions;
    }
 
    public Optional<String> getValueAt(String key) {
+      if (isDefaultRegion()) {
+         return dao.getValueAt(KeyProvider.defaultRegionKeyFor(document, key));
+      } else if (dao instanceof AsyncKVSStoreDao) {
+         // Read the region and the default region at the same time
+         AsyncKVSStoreDao asyncDao = (AsyncKVSStoreDao) dao;
+         CompletableFuture<Optional<String>> regionVal = asyncDao.getValueAtAsync(KeyProvider.keyFor(document, region, key));
+         CompletableFuture<Optional<String>> defaultVal = asyncDao.getValueAtAsync(KeyProvider.defaultRegionKeyFor(document, key));
+         Optional<String> val = join(regionVal);
+         return val.isPresent() ? val : join(defaultVal);
+      }
       Optional<String> val = dao.getValueAt(KeyProvider.keyFor(document, region, key));
       return val.isPresent() ? val : dao.getValueAt(KeyProvider.defaultRegionKeyFor(document, key));
    }
@@ -113,10 +319,23 @@ public class SimpleKVStore implements KVStore {
          // Optimization: no need to merge
          return dao.getHierarchyAsMap(KeyProvider.defaultRegionKeyFor(document, key), KeyProvider::keyFromDocumentRegionDbKey);
       } else {
-         Map<String, String> regionVals = dao.getHierarchyAsMap(KeyProvider.keyFor(document, region, key),
-               KeyProvider::keyFromDocumentRegionDbKey);
-         Map<String, String> defaultVals = dao.getHierarchyAsMap(KeyProvider.defaultRegionKeyFor(document, key),
-               KeyProvider::keyFromDocumentRegionDbKey);
+         Map<String, String> regionVals;
+         Map<String, String> defaultVals;
+         if (dao instanceof AsyncKVSStoreDao) {
+            // Read the region and the default region at the same time
+            AsyncKVSStoreDao asyncDao = (AsyncKVSStoreDao) dao;
+            CompletableFuture<Map<String, String>> regionFuture = asyncDao.getHierarchyAsMapAsync(
+                  KeyProvider.keyFor(document, region, key), KeyProvider::keyFromDocumentRegionDbKey);
+            CompletableFuture<Map<String, String>> defaultFuture = asyncDao.getHierarchyAsMapAsync(
+                  KeyProvider.defaultRegionKeyFor(document, key), KeyProvider::keyFromDocumentRegionDbKey);
+            regionVals = join(regionFuture);
+            defaultVals = join(defaultFuture);
+         } else {
+            regionVals = dao.getHierarchyAsMap(KeyProvider.keyFor(document, region, key),
+                  KeyProvider::keyFromDocumentRegionDbKey);
+            defaultVals = dao.getHierarchyAsMap(KeyProvider.defaultRegionKeyFor(document, key),
+                  KeyProvider::keyFromDocumentRegionDbKey);
+         }
          defaultVals.forEach((k, v) -> {
             if (!regionVals.containsKey(k)) regionVals.put(k, v);
          });
@@ -125,9 +344,42 @@ public class SimpleKVStore implements KVStore {
    }
 
    @Override
-   public void destroy() {
+   public Map<String, String> getEntireRegion() {
+      // The empty key's hierarchy is the whole region
+      return getHierarchyAt("");
+   }
+
+   @Override
+   public KVScan scanHierarchyAt(String key) {
+      if (isDefaultRegion()) {
+         // Nothing to overlay
+         return RegionOverlay.of(KVScan.of(Collections.emptyIterator()),
+               dao.scan(KeyProvider.defaultRegionKeyFor(document, key)), KeyProvider::keyFromDocumentRegionDbKey);
+      }
+      // Both reads are under way before either is iterated if the DAO sends them when the scans are opened
+      KVScan regionVals = dao.scan(KeyProvider.keyFor(document, region, key));
+      try {
+         return RegionOverlay.of(regionVals, dao.scan(KeyProvider.defaultRegionKeyFor(document, key)),
+               KeyProvider::keyFromDocumentRegionDbKey);
+      } catch (RuntimeException e) {
+         regionVals.close();
+         throw e;
+      }
+   }
+
+   @Override
+   public KVScan scanEntireRegion() {
+      return scanHierarchyAt("");
+   }
+
+   @Override
+   public void destroy() throws KVStoreException {
       dao.deleteHierarchyAt(KeyProvider.keyForEntireRegion(document, region));
       dao.deleteHierarchyAt(KeyProvider.auditKeyForEntireRegion(document, region));
+      dao.deleteHierarchyAt(KeyProvider.revisionCounterKeyForEntireRegion(document, region));
+      dao.deleteHierarchyAt(AuditSegments.segmentHierarchyForEntireDocument(document) + region + HIERARCHY_SEPARATOR);
+      // The author and time indexes are shared with other regions and keep their copies of the records
+      dao.deleteHierarchyAt(AuditIndex.regionIndexFor(document, region));
    }
 
    private static String auditRecord(AuditLog auditLog) {
@@ -138,5 +390,15 @@ public class SimpleKVStore implements KVStore {
       }
    }
 
+   // Waits for an async read, failing the way a blocking read would
+   private static <T> T join(CompletableFuture<T> future) {
+      try {
+         return future.join();
+      } catch (CompletionException e) {
+         Throwables.propagateIfPossible(e.getCause());
+         throw e;
+      }
+   }
+
 
 }
@@ -0,0 +1,343 @@
+package com.cvent.kvstore;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A KVSStoreDao over a store that keeps keys in sorted order, behaving the way Consul does: every write moves
+ * the store's index, each key remembers the index it was last modified at (for check-and-set and blocking reads),
+ * a hierarchy is a plain key prefix and each run of putAll is one transaction with one index.
+ *
+ * Subclasses only store entries. Deleted keys are stored as entries without a value (tombstones) so that
+ * the index of a hierarchy still moves when keys are deleted from it.
+ *
+ * Every write fails with a KVStoreException (WRITE_FAILED) when the store cannot store it.
+ */
+public abstract class SortedKVSStoreDao implements KVSStoreDao {
+   // Writes are serialized, which is what makes check-and-set and transactions atomic
+   private final ReentrantLock writeLock = new ReentrantLock();
+   // Blocking reads, woken only by writes to the hierarchy each waits on
+   private final Set<HierarchyWait> waits = ConcurrentHashMap.newKeySet();
+   private volatile long index;
+
+   /**
+    * Gets the entry at a key
+    * @return the entry, a tombstone if the key was deleted or null if it was never written
+    */
+   protected abstract Entry entryAt(String key);
+
+   /**
+    * Gets the entries under a key prefix, tombstones included
+    * @return the entries in key order
+    */
+   protected abstract SortedMap<String, Entry> entriesUnder(String prefix);
+
+   /**
+    * Stores entries, all of them or none of them. Only called by one thread at a time.
+    * @param entries the entries, in key order
+    */
+   protected abstract void store(SortedMap<String, Entry> entries) throws IOException;
+
+   /**
+    * The highest index of the tombstones the store has dropped, which hierarchies that held them must not
+    * go back below
+    */
+   protected long droppedIndex() {
+      return 0;
+   }
+
+   /**
+    * Sets the index the store is at, for stores that start out with entries
+    */
+   protected void recoverIndex(long recovered) {
+      index = Math.max(index, recovered);
+   }
+
+   /**
+    * The index the store is at
+    */
+   public long index() {
+      return index;
+   }
+
+   @Override
+   public void put(String key, String value) throws KVStoreException {
+      try {
+         write(singleton(key, value));
+      } catch (IOException e) {
+         throw KVStoreException.writeFailed(key, e.getMessage());
+      }
+   }
+
+   @Override
+   public boolean putIfIndex(String key, String value, long expectedIndex) throws KVStoreException {
+      writeLock.lock();
+      try {
+         if (modifyIndexOf(entryAt(key)) != expectedIndex) {
+            return false;
+         }
+         write(singleton(key, value));
+         return true;
+      } catch (IOException e) {
+         throw KVStoreException.writeFailed(key, e.getMessage());
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   @Override
+   public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+      for (List<KeyValue> txn : Lists.partition(keyValues, MAX_ATOMIC_PUTS)) {
+         writeLock.lock();
+         try {
+            SortedMap<String, String> values = new TreeMap<>();
+            for (KeyValue keyValue : txn) {
+               Long expectedIndex = expectedIndexes.get(keyValue.key());
+               if (expectedIndex != null && modifyIndexOf(entryAt(keyValue.key())) != expectedIndex) {
+                  // Rolled back: a check-and-set failed
+                  return false;
+               }
+               // Like a Consul transaction, a later write of a key wins
+               values.put(keyValue.key(), keyValue.value());
+            }
+            write(values);
+         } catch (IOException e) {
+            throw KVStoreException.writeFailed(txn.get(0).key(),
+                  String.format("transaction of %d keys failed: %s", txn.size(), e.getMessage()));
+         } finally {
+            writeLock.unlock();
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public Optional<String> getValueAt(String key) {
+      Entry entry = entryAt(key);
+      return entry != null && entry.value != null ? Optional.of(entry.value) : Optional.absent();
+   }
+
+   @Override
+   public Optional<VersionedValue> getVersionedValueAt(String key) {
+      Entry entry = entryAt(key);
+      return entry != null && entry.value != null ? Optional.of(VersionedValue.from(entry.value, entry.index))
+            : Optional.absent();
+   }
+
+   @Override
+   public Map<String, VersionedValue> getVersionedHierarchy(String key) {
+      Map<String, VersionedValue> values = new HashMap<>();
+      entriesUnder(key).forEach((k, entry) -> {
+         if (entry.value != null) {
+            values.put(k, VersionedValue.from(entry.value, entry.index));
+         }
+      });
+      return values;
+   }
+
+   @Override
+   public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+      // Keys come out of the store sorted, and stay that way
+      Map<String, String> values = new LinkedHashMap<>();
+      entriesUnder(key).forEach((k, entry) -> {
+         if (entry.value != null) {
+            values.put(keyTransform != null ? keyTransform.apply(k) : k, entry.value);
+         }
+      });
+      return values;
+   }
+
+   @Override
+   public KVScan scan(String prefix) {
+      return KVScan.of(Iterators.transform(
+            Iterators.filter(entriesUnder(prefix).entrySet().iterator(), entry -> entry.getValue().value != null),
+            entry -> KeyValue.from(entry.getKey(), entry.getValue().value)));
+   }
+
+   @Override
+   public VersionedHierarchy getHierarchyAfter(String key, long afterIndex, long waitSeconds) {
+      if (afterIndex > 0) {
+         long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+         try {
+            while (awaitWriteUnder(key, afterIndex, deadline)) {
+               // Woken by a write to the hierarchy; it may still be at or before the index
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      long hierarchyIndex = modifyIndexAt(key);
+      return VersionedHierarchy.from(hierarchyIndex, getHierarchyAsMap(key, null));
+   }
+
+   @Override
+   public Optional<Collection<String>> getKeysAt(String key) {
+      List<String> keys = new ArrayList<>();
+      entriesUnder(key).forEach((k, entry) -> {
+         if (entry.value != null) {
+            keys.add(k);
+         }
+      });
+      return keys.isEmpty() ? Optional.absent() : Optional.of(keys);
+   }
+
+   @Override
+   public List<String> getChildKeysAt(String prefix) {
+      // Skips from one child to the next rather than reading everything under each
+      List<String> children = new ArrayList<>();
+      SortedMap<String, Entry> entries = entriesUnder(prefix);
+      while (!entries.isEmpty()) {
+         String child = KVSStoreDao.childKey(prefix, entries.firstKey());
+         String next = child.endsWith(KVStore.HIERARCHY_SEPARATOR) ? hierarchyEnd(child) : child + '\0';
+         // A child that holds nothing but tombstones was deleted
+         for (Entry entry : entries.headMap(next).values()) {
+            if (entry.value != null) {
+               children.add(child);
+               break;
+            }
+         }
+         entries = entries.tailMap(next);
+      }
+      return children;
+   }
+
+   @Override
+   public long modifyIndexAt(String key) {
+      long modified = droppedIndex();
+      for (Entry entry : entriesUnder(key).values()) {
+         modified = Math.max(modified, entry.index);
+      }
+      // Consul gives a hierarchy that was never written the store's index, and never 0, which would not block
+      return modified > 0 ? modified : Math.max(index, 1);
+   }
+
+   @Override
+   public void deleteKey(String key) throws KVStoreException {
+      writeLock.lock();
+      try {
+         Entry entry = entryAt(key);
+         if (entry != null && entry.value != null) {
+            write(singleton(key, null));
+         }
+      } catch (IOException e) {
+         throw KVStoreException.writeFailed(key, "delete failed: " + e.getMessage());
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   @Override
+   public void deleteHierarchyAt(String key) throws KVStoreException {
+      writeLock.lock();
+      try {
+         SortedMap<String, String> deletes = new TreeMap<>();
+         entriesUnder(key).forEach((k, entry) -> {
+            if (entry.value != null) {
+               deletes.put(k, null);
+            }
+         });
+         if (!deletes.isEmpty()) {
+            write(deletes);
+         }
+      } catch (IOException e) {
+         throw KVStoreException.writeFailed(key, "delete of the hierarchy failed: " + e.getMessage());
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Waits for a write to a hierarchy, unless it is already past the index
+    * @return true if a write woke it before the deadline, false if the hierarchy is past the index or the time is up
+    */
+   private boolean awaitWriteUnder(String key, long afterIndex, long deadline) throws InterruptedException {
+      HierarchyWait wait = new HierarchyWait(key);
+      // Registered before the hierarchy is read, so that a write in between is not missed
+      waits.add(wait);
+      try {
+         long remaining = deadline - System.nanoTime();
+         return remaining > 0 && modifyIndexAt(key) <= afterIndex
+               && wait.written.await(remaining, TimeUnit.NANOSECONDS);
+      } finally {
+         waits.remove(wait);
+      }
+   }
+
+   // Writes values (null to delete) at the next index and wakes the blocked reads of the hierarchies written to
+   private void write(SortedMap<String, String> values) throws IOException {
+      writeLock.lock();
+      try {
+         long next = index + 1;
+         SortedMap<String, Entry> entries = new TreeMap<>();
+         values.forEach((k, v) -> entries.put(k, new Entry(v, next)));
+         store(entries);
+         index = next;
+         for (HierarchyWait wait : waits) {
+            if (!entries.subMap(wait.prefix, hierarchyEnd(wait.prefix)).isEmpty()) {
+               wait.written.countDown();
+            }
+         }
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   private static SortedMap<String, String> singleton(String key, String value) {
+      SortedMap<String, String> values = new TreeMap<>();
+      values.put(key, value);
+      return values;
+   }
+
+   // 0 for keys that do not exist, which is what a check-and-set for a new key expects
+   private static long modifyIndexOf(Entry entry) {
+      return entry != null && entry.value != null ? entry.index : 0;
+   }
+
+   /**
+    * Like Consul, a hierarchy is everything that starts with its key
+    * @return the first key past the hierarchy
+    */
+   protected static String hierarchyEnd(String prefix) {
+      return prefix + Character.MAX_VALUE;
+   }
+
+   // A blocking read of a hierarchy
+   private static final class HierarchyWait {
+      private final String prefix;
+      private final CountDownLatch written = new CountDownLatch(1);
+
+      private HierarchyWait(String prefix) {
+         this.prefix = prefix;
+      }
+   }
+
+   /**
+    * A stored value and the index it was written at. Deleted keys have no value.
+    */
+   public static final class Entry {
+      public final String value;
+      public final long index;
+
+      public Entry(String value, long index) {
+         this.value = value;
+         this.index = index;
+      }
+   }
+}
@@ -1,6 +1,7 @@
 package com.cvent.kvstore;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
@@ -8,6 +9,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -28,22 +30,32 @@ public class TemplateToDocument {
    private TemplateToDocument(File template) throws IOException {
       this.template = template;
       docType = template.getName().endsWith("yaml")?DocumentType.YAML:DocumentType.JSON;
-      ObjectMapper mapper = new ObjectMapper(docType.isYAML()?new YAMLFactory():new JsonFactory());
-      rootNode = mapper.readValue(template, JsonNode.class);
+      rootNode = mapper(docType).readValue(template, JsonNode.class);
    }
 
    private TemplateToDocument(InputStream is, DocumentType docType) throws IOException {
       this.docType = docType;
-      ObjectMapper mapper = new ObjectMapper(docType.isYAML()?new YAMLFactory():new JsonFactory());
-      rootNode = mapper.readValue(is, JsonNode.class);
+      rootNode = mapper(docType).readValue(is, JsonNode.class);
+   }
+
+   // Decimals are read in full so that their literals keep every digit
+   private static ObjectMapper mapper(DocumentType docType) {
+      return new ObjectMapper(docType.isYAML()?new YAMLFactory():new JsonFactory())
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
    }
 
    private Document generate() throws IOException {
       Set<String> keySet = new HashSet<>();
-      visit("", rootNode, keySet, "");
+      visit("", rootNode, keySet, "", null);
       return Document.from(keySet);
    }
 
+   private Map<String, String> generateValues() throws IOException {
+      Map<String, String> values = new HashMap<>();
+      visit("", rootNode, new HashSet<>(), "", values);
+      return values;
+   }
+
    public static Document from(InputStream is, DocumentType documentType) throws IOException {
       TemplateToDocument toKeyset = new TemplateToDocument(is, documentType);
       return toKeyset.generate();
@@ -54,16 +66,35 @@ public class TemplateToDocument {
       return toKeyset.generate();
    }
 
+   /**
+    * Gets the values of a template, say, to seed the default region
+    * @param is            the template
+    * @param documentType  the template's format
+    * @return the value literals (see ValueType) by key
+    */
+   public static Map<String, String> valuesFrom(InputStream is, DocumentType documentType) throws IOException {
+      return new TemplateToDocument(is, documentType).generateValues();
+   }
+
+   public static Map<String, String> valuesFrom(File template) throws IOException {
+      return new TemplateToDocument(template).generateValues();
+   }
+
 
    // Each node is responsible for:
    // - printing its own information
    // - determining its children and calling visit for each child and passing
    //    - the child's name (since we cannot get that from JsonNode), the path INCLUDING the child's name
-   private void visit(String parentName, JsonNode parent, Set<String> keySet, String path) throws IOException {
+   // Values, if not null, collects the literal of each value
+   private void visit(String parentName, JsonNode parent, Set<String> keySet, String path, Map<String, String> values)
+         throws IOException {
       if (parentName.length() > 0) {
          // Ignore root node
 //         System.out.println(path + ":" + parent.getNodeType());
          keySet.add(path);
+         if (values != null && parent.isValueNode()) {
+            values.put(path, ValueType.literalOf(parent));
+         }
       }
       Iterator<Map.Entry<String, JsonNode>> it = parent.fields();
       while (it.hasNext()) {
@@ -72,12 +103,13 @@ public class TemplateToDocument {
          JsonNode node = entry.getValue();
          switch (node.getNodeType()) {
             case OBJECT:
-               visit(name, node, keySet, path + KVStore.HIERARCHY_SEPARATOR + name);
+               visit(name, node, keySet, path + KVStore.HIERARCHY_SEPARATOR + name, values);
                break;
 
             case ARRAY:
                for (int n = 0; n < node.size(); n++) {
-                  visit("..." + n, node.get(n), keySet, path + KVStore.HIERARCHY_SEPARATOR + name + KVStore.HIERARCHY_SEPARATOR + "..." + n);
+                  visit("..." + n, node.get(n), keySet, path + KVStore.HIERARCHY_SEPARATOR + name + KVStore.HIERARCHY_SEPARATOR + "..." + n,
+                        values);
                }
                break;
 
@@ -93,14 +125,19 @@ public class TemplateToDocument {
                   if (!parentRef.exists()) {
                      throw new FileNotFoundException(name);
                   }
-                  keySet.addAll(from(parentRef).keys());
+                  TemplateToDocument parentTemplate = new TemplateToDocument(parentRef);
+                  keySet.addAll(parentTemplate.generate().keys());
+                  if (values != null) {
+                     // This template's own values win over its parent's
+                     parentTemplate.generateValues().forEach(values::putIfAbsent);
+                  }
                   break;
                }
             case NUMBER:
             case NULL:
             case BOOLEAN:
             case BINARY:
-               visit(name, node, keySet, path + KVStore.HIERARCHY_SEPARATOR + name);
+               visit(name, node, keySet, path + KVStore.HIERARCHY_SEPARATOR + name, values);
                break;
 
          }
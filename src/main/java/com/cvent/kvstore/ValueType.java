@@ -0,0 +1,122 @@
+package com.cvent.kvstore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The type of a stored value.
+ *
+ * Values are stored as literals: "a string" (quoted), true, false, null or a number written out in full.
+ * The first character of a literal tells its type, so a value is checked once when it is written and
+ * never parsed again: numbers are rendered from their literal and keep all their digits.
+ */
+public enum ValueType {
+   STRING,
+   BOOLEAN,
+   NUMBER,
+   NULL;
+
+   public static final char QUOTE = '"';
+   public static final String NULL_LITERAL = "null";
+
+   /**
+    * Gets the type of a literal that was checked when it was written
+    * @param literal the stored value
+    * @return its type
+    */
+   public static ValueType of(String literal) {
+      switch (literal.charAt(0)) {
+         case QUOTE: return STRING;
+         case 't':
+         case 'f': return BOOLEAN;
+         case 'n': return NULL;
+         default: return NUMBER;
+      }
+   }
+
+   /**
+    * Checks that a value is a literal of one of the types
+    * @param literal the value to be written
+    * @return the type of the literal
+    * @throws IllegalArgumentException if it is not
+    */
+   public static ValueType check(String literal) {
+      if (literal.length() >= 2 && literal.charAt(0) == QUOTE && literal.charAt(literal.length() - 1) == QUOTE) {
+         return STRING;
+      } else if (KVStore.BOOLEAN_VALUES.contains(literal)) {
+         return BOOLEAN;
+      } else if (NULL_LITERAL.equals(literal)) {
+         return NULL;
+      }
+      if (isNumber(literal)) {
+         return NUMBER;
+      }
+      throw new IllegalArgumentException(
+            String.format("%s is not a quoted string, true, false, null or a JSON number", literal));
+   }
+
+   // Whether a literal follows the JSON number grammar, -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?, which is
+   // what lets it be rendered as is. Java and YAML accept more ("+5", ".5", "5.", "007"), JSON does not.
+   private static boolean isNumber(String literal) {
+      int n = literal.length();
+      int i = 0;
+      if (i < n && literal.charAt(i) == '-') {
+         i++;
+      }
+      if (i < n && literal.charAt(i) == '0') {
+         i++;
+      } else if (i < n && literal.charAt(i) >= '1' && literal.charAt(i) <= '9') {
+         i = digits(literal, i);
+      } else {
+         return false;
+      }
+      if (i < n && literal.charAt(i) == '.') {
+         int fraction = i + 1;
+         i = digits(literal, fraction);
+         if (i == fraction) {
+            return false;
+         }
+      }
+      if (i < n && (literal.charAt(i) == 'e' || literal.charAt(i) == 'E')) {
+         i++;
+         if (i < n && (literal.charAt(i) == '+' || literal.charAt(i) == '-')) {
+            i++;
+         }
+         int exponent = i;
+         i = digits(literal, exponent);
+         if (i == exponent) {
+            return false;
+         }
+      }
+      return i == n;
+   }
+
+   // The index past the digits starting at i
+   private static int digits(String literal, int i) {
+      while (i < literal.length() && literal.charAt(i) >= '0' && literal.charAt(i) <= '9') {
+         i++;
+      }
+      return i;
+   }
+
+   /**
+    * The contents of a string literal
+    */
+   public static String unquote(String literal) {
+      return literal.substring(1, literal.length() - 1);
+   }
+
+   /**
+    * Gets the literal for a value of a template
+    * @param node a value node
+    * @return the literal to store
+    */
+   public static String literalOf(JsonNode node) {
+      switch (node.getNodeType()) {
+         case STRING: return QUOTE + node.asText() + QUOTE;
+         case BOOLEAN: return node.asBoolean() ? KVStore.TRUE : KVStore.FALSE;
+         case NUMBER: return node.isBigDecimal() ? node.decimalValue().toPlainString() : node.asText();
+         case NULL: return NULL_LITERAL;
+         default: throw new IllegalArgumentException(node.getNodeType() + " is not a value");
+      }
+   }
+}
@@ -0,0 +1,30 @@
+package com.cvent.kvstore;
+
+import java.util.Map;
+
+/**
+ * Immutable class representing a tree of key-value pairs along with the index
+ * the store was at when they were read (X-Consul-Index for Consul)
+ */
+public class VersionedHierarchy {
+
+   public final long index;
+   public final Map<String, String> values;
+
+   private VersionedHierarchy(long index, Map<String, String> values) {
+      this.index = index;
+      this.values = values;
+   }
+
+   public long index() {
+      return index;
+   }
+
+   public Map<String, String> values() {
+      return values;
+   }
+
+   public static VersionedHierarchy from(long index, Map<String, String> values) {
+      return new VersionedHierarchy(index, values);
+   }
+}
@@ -0,0 +1,28 @@
+package com.cvent.kvstore;
+
+/**
+ * Immutable class representing a value along with the index at which it was last modified
+ * (ModifyIndex for Consul), for check-and-set writes
+ */
+public class VersionedValue {
+
+   public final String value;
+   public final long index;
+
+   private VersionedValue(String value, long index) {
+      this.value = value;
+      this.index = index;
+   }
+
+   public String value() {
+      return value;
+   }
+
+   public long index() {
+      return index;
+   }
+
+   public static VersionedValue from(String value, long index) {
+      return new VersionedValue(value, index);
+   }
+}
@@ -0,0 +1,226 @@
+package com.cvent.kvstore.consul;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Snapshot;
+import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Consul agents requests can go to, with the recent latencies of each.
+ *
+ * Requests go to the endpoint with the lowest median latency first and, if it fails, to the next one. Reads of
+ * values and hierarchies are also hedged to the next one after the configured percentile of the first's
+ * latencies. An endpoint is ejected for a while when its median latency is a multiple of the other endpoints' or
+ * when its requests keep failing; an ejected endpoint is only sent to once all the others have failed, and comes
+ * back with its latencies forgotten. The last endpoint standing is never ejected.
+ */
+class ConsulEndpoints {
+   // Latencies kept per endpoint
+   private static final int WINDOW = 256;
+   // Fewer latencies than this say too little to hedge on or eject for
+   private static final int MIN_SAMPLES = 16;
+   // How often the statistics are worked out again from the latencies
+   private static final long REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+   private final List<Endpoint> endpoints = new ArrayList<>();
+   private final double hedgePercentile;
+   private final long minDelayNanos;
+   private final long maxDelayNanos;
+   private final double outlierLatencyMultiple;
+   private final int outlierConsecutiveFailures;
+   private final long ejectionNanos;
+   // Endpoints in the order requests go to them, worked out again on refresh
+   private volatile List<Endpoint> order;
+   private volatile long refreshedAt = System.nanoTime();
+
+   ConsulEndpoints(List<String> addresses, double hedgePercentile, long minDelayMillis, long maxDelayMillis,
+                   double outlierLatencyMultiple, int outlierConsecutiveFailures, long ejectionMillis) {
+      for (String address : addresses) {
+         endpoints.add(new Endpoint(address));
+      }
+      this.hedgePercentile = hedgePercentile;
+      minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+      maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+      this.outlierLatencyMultiple = outlierLatencyMultiple;
+      this.outlierConsecutiveFailures = outlierConsecutiveFailures;
+      ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+      order = Collections.unmodifiableList(new ArrayList<>(endpoints));
+   }
+
+   static ConsulEndpoints from(ConsulKVStoreConfig config) {
+      return new ConsulEndpoints(config.endpoints(), config.getHedgePercentile(), config.getHedgeMinDelayMillis(),
+            config.getHedgeMaxDelayMillis(), config.getOutlierLatencyMultiple(),
+            config.getOutlierConsecutiveFailures(), config.getOutlierEjectionMillis());
+   }
+
+   /**
+    * The endpoints in the order a request should try them: fastest first, ejected ones last
+    */
+   List<Endpoint> order() {
+      if (System.nanoTime() - refreshedAt > REFRESH_NANOS) {
+         synchronized (this) {
+            if (System.nanoTime() - refreshedAt > REFRESH_NANOS) {
+               refresh();
+            }
+         }
+      }
+      return order;
+   }
+
+   /**
+    * How long a read sent to an endpoint waits for it before it is sent to the next one too
+    */
+   long hedgeDelayNanos(Endpoint endpoint) {
+      long delay = endpoint.hedgeDelayNanos;
+      return delay > 0 ? Math.max(minDelayNanos, Math.min(maxDelayNanos, delay)) : maxDelayNanos;
+   }
+
+   /**
+    * Records that an endpoint answered, or was given up on, after a time
+    */
+   void answered(Endpoint endpoint, long nanos) {
+      endpoint.consecutiveFailures = 0;
+      endpoint.latencies.update(nanos);
+   }
+
+   /**
+    * Records that an endpoint answered a request whose time says nothing of its latency, such as a write or a
+    * blocking query
+    */
+   void succeeded(Endpoint endpoint) {
+      endpoint.consecutiveFailures = 0;
+   }
+
+   /**
+    * Records that a request to an endpoint failed
+    */
+   void failed(Endpoint endpoint) {
+      if (++endpoint.consecutiveFailures >= outlierConsecutiveFailures) {
+         synchronized (this) {
+            if (eject(endpoint, System.nanoTime())) {
+               refresh();
+            }
+         }
+      }
+   }
+
+   void registerMetrics(MetricRegistry metrics, Class<?> owner) {
+      for (Endpoint endpoint : endpoints) {
+         metrics.register(MetricRegistry.name(owner, "endpoints", endpoint.address, "median"),
+               (Gauge<Double>) () -> endpoint.medianNanos / 1e6);
+         metrics.register(MetricRegistry.name(owner, "endpoints", endpoint.address, "hedgeDelay"),
+               (Gauge<Double>) () -> hedgeDelayNanos(endpoint) / 1e6);
+         metrics.register(MetricRegistry.name(owner, "endpoints", endpoint.address, "ejected"),
+               (Gauge<Boolean>) () -> endpoint.ejected);
+      }
+   }
+
+   // Works out each endpoint's statistics, ejects outliers, lets back those whose time is up and reorders
+   synchronized void refresh() {
+      long now = System.nanoTime();
+      refreshedAt = now;
+      for (Endpoint endpoint : endpoints) {
+         if (endpoint.ejected && now - endpoint.ejectedUntil >= 0) {
+            endpoint.readmit();
+         }
+         Snapshot snapshot = endpoint.latencies.getSnapshot();
+         if (snapshot.size() >= MIN_SAMPLES) {
+            endpoint.medianNanos = (long) snapshot.getMedian();
+            endpoint.hedgeDelayNanos = (long) snapshot.getValue(hedgePercentile);
+         } else {
+            endpoint.medianNanos = 0;
+            endpoint.hedgeDelayNanos = 0;
+         }
+      }
+
+      // Differences below the shortest hedge delay are noise
+      for (Endpoint endpoint : endpoints) {
+         if (!endpoint.ejected && endpoint.medianNanos > minDelayNanos) {
+            long others = medianOfOthers(endpoint);
+            if (others > 0 && endpoint.medianNanos > outlierLatencyMultiple * others) {
+               eject(endpoint, now);
+            }
+         }
+      }
+
+      List<Endpoint> sorted = new ArrayList<>(endpoints);
+      // Stable, so endpoints without latencies yet keep the configured order and are tried first
+      sorted.sort(Comparator.comparing((Endpoint endpoint) -> endpoint.ejected)
+            .thenComparingLong(endpoint -> endpoint.medianNanos));
+      order = Collections.unmodifiableList(sorted);
+   }
+
+   // The median of the medians of the other endpoints in use, or 0 if none has enough latencies
+   private long medianOfOthers(Endpoint endpoint) {
+      List<Long> medians = new ArrayList<>();
+      for (Endpoint other : endpoints) {
+         if (other != endpoint && !other.ejected && other.medianNanos > 0) {
+            medians.add(other.medianNanos);
+         }
+      }
+      if (medians.isEmpty()) {
+         return 0;
+      }
+      Collections.sort(medians);
+      return medians.get(medians.size() / 2);
+   }
+
+   // Returns whether the endpoint was ejected
+   private boolean eject(Endpoint endpoint, long now) {
+      if (endpoint.ejected) {
+         return false;
+      }
+      for (Endpoint other : endpoints) {
+         if (other != endpoint && !other.ejected) {
+            endpoint.ejectedUntil = now + ejectionNanos;
+            endpoint.ejected = true;
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * A Consul agent
+    */
+   static final class Endpoint {
+      final String address;
+      final String host;
+      final int port;
+      private volatile SlidingWindowReservoir latencies = new SlidingWindowReservoir(WINDOW);
+      private volatile long medianNanos;
+      private volatile long hedgeDelayNanos;
+      private volatile int consecutiveFailures;
+      private volatile boolean ejected;
+      private volatile long ejectedUntil;
+
+      private Endpoint(String address) {
+         this.address = address;
+         int ind = address.lastIndexOf(":");
+         host = address.substring(0, ind);
+         port = Integer.valueOf(address.substring(ind + 1));
+      }
+
+      boolean isEjected() {
+         return ejected;
+      }
+
+      private void readmit() {
+         ejected = false;
+         consecutiveFailures = 0;
+         latencies = new SlidingWindowReservoir(WINDOW);
+      }
+
+      @Override
+      public String toString() {
+         return address;
+      }
+   }
+}
@@ -0,0 +1,368 @@
+package com.cvent.kvstore.consul;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.AsyncKVSStoreDao;
+import com.cvent.kvstore.KVSStoreDao;
+import com.cvent.kvstore.KVScan;
+import com.cvent.kvstore.ReadConsistency;
+import com.cvent.kvstore.consul.ConsulEndpoints.Endpoint;
+import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+import com.ecwid.consul.transport.TransportException;
+import com.ecwid.consul.v1.OperationException;
+import com.google.common.base.Optional;
+import com.google.common.io.CharStreams;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * ConsulKVDaoEcwid with non-blocking reads.
+ *
+ * Async reads go over Jetty's NIO HTTP client straight to the KV endpoint, so a caller can have several
+ * reads in flight without holding a thread (or a pooled connection of the blocking client) for each.
+ * Writes and the remaining reads go through the Ecwid client as before, failing over from one endpoint to the
+ * next. Async reads are in the view's consistency mode too.
+ *
+ * With more than one endpoint configured, reads of values and hierarchies (blocking or not) are hedged: a read
+ * goes to the fastest endpoint and, if it has not answered within a percentile of that endpoint's recent
+ * latencies, to the next one as well. The first answer wins and the other request is aborted. A read that fails
+ * goes to the next endpoint straight away. See ConsulEndpoints for how endpoints are ordered and ejected.
+ */
+public class ConsulKVDaoAsync extends ConsulKVDaoEcwid implements AsyncKVSStoreDao {
+   // Largest response buffered for a hierarchy
+   private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+   private final long readTimeoutMillis;
+   private final HttpClient httpClient;
+   // Reads sent to a second endpoint, and those the second endpoint answered first
+   private final Meter hedges;
+   private final Meter hedgeWins;
+
+   public ConsulKVDaoAsync(ConsulKVStoreConfig config) {
+      super(config);
+      readTimeoutMillis = config.getReadTimeoutMillis();
+      httpClient = new HttpClient();
+      httpClient.setMaxConnectionsPerDestination(config.getMaxConnections());
+      httpClient.setConnectTimeout(config.getConnectTimeoutMillis());
+      httpClient.setIdleTimeout(config.getKeepAliveMillis());
+      hedges = new Meter();
+      hedgeWins = new Meter();
+   }
+
+   private ConsulKVDaoAsync(ConsulKVDaoAsync dao, ReadConsistency consistency) {
+      super(dao, consistency);
+      readTimeoutMillis = dao.readTimeoutMillis;
+      httpClient = dao.httpClient;
+      hedges = dao.hedges;
+      hedgeWins = dao.hedgeWins;
+   }
+
+   @Override
+   public KVSStoreDao withConsistency(ReadConsistency consistency) {
+      return consistency == consistency() ? this : new ConsulKVDaoAsync(this, consistency);
+   }
+
+   @Override
+   public void start() {
+      super.start();
+      try {
+         httpClient.start();
+      } catch (Exception e) {
+         throw new TransportException(e);
+      }
+   }
+
+   @Override
+   public void stop() {
+      try {
+         httpClient.stop();
+      } catch (Exception e) {
+         // Stopping anyway
+      } finally {
+         super.stop();
+      }
+   }
+
+   /**
+    * Also registers counts of hedged reads
+    */
+   @Override
+   public void registerMetrics(MetricRegistry metrics) {
+      super.registerMetrics(metrics);
+      metrics.register(MetricRegistry.name(ConsulKVDaoAsync.class, "hedges"), hedges);
+      metrics.register(MetricRegistry.name(ConsulKVDaoAsync.class, "hedgeWins"), hedgeWins);
+   }
+
+   // The blocking reads the render path makes are hedged too
+
+   @Override
+   public Optional<String> getValueAt(String key) {
+      return join(getValueAtAsync(key));
+   }
+
+   @Override
+   public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+      return join(getHierarchyAsMapAsync(key, keyTransform));
+   }
+
+   @Override
+   public CompletableFuture<Optional<String>> getValueAtAsync(String key) {
+      return new HedgedRead<>(key, false, body -> {
+         String[] value = new String[1];
+         KVResponseReader.read(body, (k, index, v) -> value[0] = v);
+         return Optional.fromNullable(value[0]);
+      }, Optional.<String>absent()).start();
+   }
+
+   @Override
+   public CompletableFuture<Map<String, String>> getHierarchyAsMapAsync(String key,
+                                                                       Function<String, String> keyTransform) {
+      return new HedgedRead<Map<String, String>>(key, true, body -> {
+         Map<String, String> values = new HashMap<>();
+         KVResponseReader.read(body, (k, index, v) -> values.put(keyTransform != null ? keyTransform.apply(k) : k, v));
+         return values;
+      }, new HashMap<>()).start();
+   }
+
+   /**
+    * Sends the read straight away and reads the response as the scan is iterated, so that scans opened together
+    * (a region and the default region) are in flight together. Scans go to the fastest endpoint and are not hedged;
+    * one that fails before its first entry goes to the next endpoint.
+    */
+   @Override
+   public KVScan scan(String prefix) {
+      List<Endpoint> order = endpoints().order();
+      return KVResponseReader.scan(new KVResponseReader.Body() {
+         private int next;
+         private Endpoint endpoint = order.get(0);
+         private Request request = kvRequest(endpoint, prefix, true, consistency());
+         private InputStreamResponseListener listener = send(request);
+
+         @Override
+         public InputStream open() throws IOException {
+            while (true) {
+               try {
+                  InputStream body = read();
+                  endpoints().succeeded(endpoint);
+                  return body;
+               } catch (TransportException | OperationException e) {
+                  if (!unavailable(e)) {
+                     throw e;
+                  }
+                  endpoints().failed(endpoint);
+                  if (++next >= order.size()) {
+                     throw e;
+                  }
+                  abort();
+                  endpoint = order.get(next);
+                  request = kvRequest(endpoint, prefix, true, consistency());
+                  listener = send(request);
+               }
+            }
+         }
+
+         private InputStream read() throws IOException {
+            Response response = await(listener);
+            if (consistency() == ReadConsistency.STALE && tooStale(lastContact(response))) {
+               abort();
+               request = kvRequest(endpoint, prefix, true, ReadConsistency.DEFAULT);
+               listener = send(request);
+               response = await(listener);
+            }
+            if (response.getStatus() == HttpStatus.NOT_FOUND_404) {
+               return null;
+            } else if (response.getStatus() != HttpStatus.OK_200) {
+               throw new OperationException(response.getStatus(), response.getReason(),
+                     CharStreams.toString(new InputStreamReader(listener.getInputStream(), StandardCharsets.UTF_8)));
+            }
+            return listener.getInputStream();
+         }
+
+         @Override
+         public void abort() {
+            request.abort(new CancellationException("Scan closed"));
+         }
+      });
+   }
+
+   private static InputStreamResponseListener send(Request request) {
+      InputStreamResponseListener listener = new InputStreamResponseListener();
+      request.send(listener);
+      return listener;
+   }
+
+   // Waits for the headers of a response
+   private Response await(InputStreamResponseListener listener) throws IOException {
+      try {
+         return listener.get(readTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException();
+      } catch (TimeoutException | ExecutionException e) {
+         throw new TransportException(e);
+      }
+   }
+
+   private Request kvRequest(Endpoint endpoint, String key, boolean recurse, ReadConsistency consistency) {
+      Request request = httpClient.newRequest(endpoint.host, endpoint.port).path(kvPath(key))
+            .timeout(readTimeoutMillis, TimeUnit.MILLISECONDS);
+      if (recurse) {
+         request.param("recurse", "true");
+      }
+      if (consistency == ReadConsistency.STALE) {
+         request.param("stale", "");
+      } else if (consistency == ReadConsistency.CONSISTENT) {
+         request.param("consistent", "");
+      }
+      return request;
+   }
+
+   private static Long lastContact(Response response) {
+      String lastContact = response.getHeaders().get("X-Consul-LastContact");
+      try {
+         return lastContact != null ? Long.valueOf(lastContact) : null;
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   // Failures are the same exceptions the Ecwid client throws
+   private static <T> T join(CompletableFuture<T> future) {
+      try {
+         return future.join();
+      } catch (CompletionException e) {
+         throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+      }
+   }
+
+   // Reads the body of a response as it came off the wire
+   private interface BodyReader<T> {
+      T read(byte[] body) throws IOException;
+   }
+
+   /**
+    * One read, sent to the endpoints in turn. The future completes with what the body was read into, or with
+    * missing if Consul has nothing at the key; failures are the same exceptions the Ecwid client throws.
+    */
+   private class HedgedRead<T> {
+      private final String key;
+      private final boolean recurse;
+      private final BodyReader<T> reader;
+      private final T missing;
+      private final List<Endpoint> order = endpoints().order();
+      private final CompletableFuture<T> future = new CompletableFuture<>();
+      private final List<Request> inFlight = new CopyOnWriteArrayList<>();
+      private final AtomicInteger next = new AtomicInteger();
+      private final AtomicInteger outstanding = new AtomicInteger();
+      private volatile Scheduler.Task hedge;
+
+      private HedgedRead(String key, boolean recurse, BodyReader<T> reader, T missing) {
+         this.key = key;
+         this.recurse = recurse;
+         this.reader = reader;
+         this.missing = missing;
+      }
+
+      private CompletableFuture<T> start() {
+         sendNext();
+         return future;
+      }
+
+      // Returns false if every endpoint has been tried
+      private boolean sendNext() {
+         int n = next.getAndIncrement();
+         if (n >= order.size()) {
+            return false;
+         }
+         Endpoint endpoint = order.get(n);
+         outstanding.incrementAndGet();
+         if (n == 0 && order.size() > 1) {
+            hedge = httpClient.getScheduler().schedule(() -> {
+               if (!future.isDone() && sendNext()) {
+                  hedges.mark();
+               }
+            }, endpoints().hedgeDelayNanos(endpoint), TimeUnit.NANOSECONDS);
+         }
+         send(endpoint, n, consistency(), System.nanoTime());
+         return true;
+      }
+
+      private void send(Endpoint endpoint, int n, ReadConsistency consistency, long start) {
+         Request request = kvRequest(endpoint, key, recurse, consistency);
+         inFlight.add(request);
+         request.send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+            @Override
+            public void onComplete(Result result) {
+               inFlight.remove(request);
+               long elapsed = System.nanoTime() - start;
+               if (future.isDone()) {
+                  // Lost to another endpoint, and aborted: it took at least this long
+                  endpoints().answered(endpoint, elapsed);
+               } else if (result.isFailed()) {
+                  failed(endpoint, new TransportException(result.getFailure()));
+               } else if (consistency == ReadConsistency.STALE && tooStale(lastContact(result.getResponse()))) {
+                  // The agent forwards a default read to the leader
+                  send(endpoint, n, ReadConsistency.DEFAULT, start);
+               } else if (result.getResponse().getStatus() == HttpStatus.NOT_FOUND_404) {
+                  answered(endpoint, n, elapsed, missing);
+               } else if (result.getResponse().getStatus() != HttpStatus.OK_200) {
+                  failed(endpoint, new OperationException(result.getResponse().getStatus(),
+                        result.getResponse().getReason(), getContentAsString()));
+               } else {
+                  try {
+                     answered(endpoint, n, elapsed, reader.read(getContent()));
+                  } catch (IOException e) {
+                     failed(endpoint, new TransportException(e));
+                  }
+               }
+            }
+         });
+      }
+
+      private void answered(Endpoint endpoint, int n, long elapsed, T result) {
+         endpoints().answered(endpoint, elapsed);
+         if (future.complete(result)) {
+            if (hedge != null) {
+               hedge.cancel();
+            }
+            if (n > 0) {
+               hedgeWins.mark();
+            }
+            for (Request request : inFlight) {
+               request.abort(new CancellationException("Answered by another endpoint"));
+            }
+         }
+      }
+
+      private void failed(Endpoint endpoint, RuntimeException e) {
+         endpoints().failed(endpoint);
+         outstanding.decrementAndGet();
+         if (!sendNext() && outstanding.get() == 0) {
+            future.completeExceptionally(e);
+         }
+      }
+   }
+}
@@ -1,83 +1,525 @@
 package com.cvent.kvstore.consul;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.cvent.kvstore.KVSStoreDao;
+import com.cvent.kvstore.KVScan;
 import com.cvent.kvstore.KVStore;
 import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.KeyValue;
+import com.cvent.kvstore.ReadConsistency;
+import com.cvent.kvstore.VersionedHierarchy;
+import com.cvent.kvstore.VersionedValue;
+import com.cvent.kvstore.consul.ConsulEndpoints.Endpoint;
 import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+import com.ecwid.consul.SingleUrlParameters;
+import com.ecwid.consul.transport.RawResponse;
+import com.ecwid.consul.transport.TransportException;
+import com.ecwid.consul.v1.ConsistencyMode;
 import com.ecwid.consul.v1.ConsulClient;
+import com.ecwid.consul.v1.ConsulRawClient;
+import com.ecwid.consul.v1.OperationException;
+import com.ecwid.consul.v1.QueryParams;
 import com.ecwid.consul.v1.Response;
-import com.ecwid.consul.v1.kv.model.GetValue;
+import com.ecwid.consul.v1.kv.model.PutParams;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.escape.Escaper;
+import com.google.common.net.UrlEscapers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sun.jersey.core.util.Base64;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
 /**
  * A Consul client from Ecwid
  * https://github.com/Ecwid/consul-api
  *
+ * This is meant to be shared by the whole application: it owns a pool of keep-alive connections
+ * to the Consul agents, which is closed when the application stops.
+ *
+ * Requests go to the configured agents in turn, fastest first (see ConsulEndpoints). A read that fails, or that an
+ * agent answers with a server error, goes to the next agent. A write goes to the next agent only if it could not
+ * reach the agent, since one that did may have been applied; any agent forwards writes to the leader.
+ *
+ * Reads are at Consul's default consistency. withConsistency gives views over the same connections that read
+ * in another mode; a stale read from a server that has not heard from the leader for longer than
+ * maxStaleReadMillis is done again at default consistency.
+ *
  * Created by sviswanathan on 2/11/16.
  */
-public class ConsulKVDaoEcwid implements KVSStoreDao {
+public class ConsulKVDaoEcwid implements KVSStoreDao, Managed {
    private ConsulKVStoreConfig config;
-   private ConsulClient client;
+   private static final ObjectMapper MAPPER = new ObjectMapper();
+   private static final String TXN_ENDPOINT = "/v1/txn";
+   private static final String KV_ENDPOINT = "/v1/kv/";
+   private static final Escaper SEGMENT_ESCAPER = UrlEscapers.urlPathSegmentEscaper();
+   private static final Splitter KEY_SPLITTER = Splitter.on('/');
+   private static final Joiner KEY_JOINER = Joiner.on('/');
+
+   private final ReadConsistency consistency;
+   private final QueryParams queryParams;
+   private final ConsulEndpoints endpoints;
+   // The clients for each endpoint
+   private final Map<Endpoint, ConsulClient> clients;
+   private final Map<Endpoint, ConsulRawClient> rawClients;
+   // The client under the raw clients, for responses read as they arrive
+   private CloseableHttpClient httpClient;
+   private PoolingHttpClientConnectionManager connectionManager;
+   private ScheduledExecutorService idleConnectionReaper;
+   // Shared by every view of the DAO; reported once registered (see registerMetrics)
+   private final Meter staleRetries;
 
    public ConsulKVDaoEcwid(ConsulKVStoreConfig config) {
       this.config = config;
-      int ind = config.getConsulEndpoint().lastIndexOf(":");
-      client = new ConsulClient(config.getConsulEndpoint().substring(0, ind),
-                     Integer.valueOf(config.getConsulEndpoint().substring(ind + 1)));
+      consistency = ReadConsistency.DEFAULT;
+      queryParams = QueryParams.DEFAULT;
+      staleRetries = new Meter();
+      connectionManager = new PoolingHttpClientConnectionManager(config.getConnectionTimeToLiveMillis(),
+            TimeUnit.MILLISECONDS);
+      connectionManager.setMaxTotal(config.getMaxConnections());
+      // A route per agent, any of which may need every connection while the others are down
+      connectionManager.setDefaultMaxPerRoute(config.getMaxConnections());
+
+      RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(config.getConnectTimeoutMillis())
+            .setSocketTimeout(config.getReadTimeoutMillis())
+            .build();
+      httpClient = HttpClientBuilder.create()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            // Responses are decoded as they arrive; Consul's are not worth the CPU to inflate
+            .disableContentCompression()
+            .build();
+
+      endpoints = ConsulEndpoints.from(config);
+      clients = new HashMap<>();
+      rawClients = new HashMap<>();
+      for (Endpoint endpoint : endpoints.order()) {
+         ConsulRawClient rawClient = new ConsulRawClient(endpoint.host, endpoint.port, httpClient);
+         rawClients.put(endpoint, rawClient);
+         clients.put(endpoint, new ConsulClient(rawClient));
+      }
+   }
+
+   /**
+    * A view of a DAO that reads in another consistency mode over the same connections
+    */
+   protected ConsulKVDaoEcwid(ConsulKVDaoEcwid dao, ReadConsistency consistency) {
+      config = dao.config;
+      endpoints = dao.endpoints;
+      clients = dao.clients;
+      rawClients = dao.rawClients;
+      httpClient = dao.httpClient;
+      connectionManager = dao.connectionManager;
+      staleRetries = dao.staleRetries;
+      this.consistency = consistency;
+      queryParams = new QueryParams(ConsistencyMode.valueOf(consistency.name()));
+   }
+
+   @Override
+   public KVSStoreDao withConsistency(ReadConsistency consistency) {
+      return consistency == this.consistency ? this : new ConsulKVDaoEcwid(this, consistency);
+   }
+
+   protected ReadConsistency consistency() {
+      return consistency;
+   }
+
+   ConsulEndpoints endpoints() {
+      return endpoints;
+   }
+
+   /**
+    * Whether a read came from a server too far behind the leader for a stale read
+    * @param lastContactMillis X-Consul-LastContact of the response
+    */
+   protected boolean tooStale(Long lastContactMillis) {
+      if (consistency == ReadConsistency.STALE && lastContactMillis != null
+            && lastContactMillis > config.getMaxStaleReadMillis()) {
+         staleRetries.mark();
+         return true;
+      }
+      return false;
+   }
+
+   // Reads in the view's mode, reading again at default consistency if a stale read was too stale
+   private <T> Response<T> read(BiFunction<ConsulClient, QueryParams, Response<T>> read) {
+      return readAny(true, endpoint -> {
+         ConsulClient client = clients.get(endpoint);
+         Response<T> response = read.apply(client, queryParams);
+         return tooStale(response.getConsulLastContact()) ? read.apply(client, QueryParams.DEFAULT) : response;
+      });
+   }
+
+   /**
+    * Whether a read failed in a way another agent might not: the agent could not be reached, or could not answer
+    */
+   protected static boolean unavailable(RuntimeException e) {
+      return e instanceof TransportException || e instanceof OperationException
+            && ((OperationException) e).getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+   }
+
+   // Whether a request failed before it reached the agent, so that it cannot have been applied
+   private static boolean notSent(RuntimeException e) {
+      Throwable cause = e instanceof TransportException ? e.getCause() : null;
+      return cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+            || cause instanceof UnknownHostException;
+   }
+
+   // A request to one agent
+   private interface EndpointRequest<T> {
+      T send(Endpoint endpoint) throws IOException;
+   }
+
+   // Sends a read to the agents in turn until one answers. The time of a blocking query says nothing of an
+   // agent's latency, so it is not recorded
+   private <T> T readAny(boolean timed, EndpointRequest<T> request) {
+      return failover(request, timed, ConsulKVDaoEcwid::unavailable);
+   }
+
+   private <T> T writeAny(EndpointRequest<T> request) {
+      return failover(request, false, ConsulKVDaoEcwid::notSent);
+   }
+
+   private <T> T failover(EndpointRequest<T> request, boolean timed, Predicate<RuntimeException> failsOver) {
+      RuntimeException failure = null;
+      for (Endpoint endpoint : endpoints.order()) {
+         long start = System.nanoTime();
+         try {
+            T result = request.send(endpoint);
+            if (timed) {
+               endpoints.answered(endpoint, System.nanoTime() - start);
+            } else {
+               endpoints.succeeded(endpoint);
+            }
+            return result;
+         } catch (IOException e) {
+            failure = new TransportException(e);
+         } catch (RuntimeException e) {
+            failure = e;
+         }
+         if (!failsOver.test(failure)) {
+            throw failure;
+         }
+         endpoints.failed(endpoint);
+      }
+      throw failure;
+   }
+
+   /**
+    * Starts evicting connections that have been idle for longer than the configured keep-alive
+    */
+   @Override
+   public void start() {
+      idleConnectionReaper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("consul-idle-connection-reaper").setDaemon(true).build());
+      idleConnectionReaper.scheduleWithFixedDelay(() -> {
+         connectionManager.closeExpiredConnections();
+         connectionManager.closeIdleConnections(config.getKeepAliveMillis(), TimeUnit.MILLISECONDS);
+      }, config.getKeepAliveMillis(), config.getKeepAliveMillis(), TimeUnit.MILLISECONDS);
+   }
+
+   @Override
+   public void stop() {
+      if (idleConnectionReaper != null) {
+         idleConnectionReaper.shutdownNow();
+      }
+      try {
+         // Shuts the connection pool down too
+         httpClient.close();
+      } catch (IOException e) {
+         // Stopping anyway
+      }
+   }
+
+   /**
+    * Registers gauges for the usage of the connection pool and the latency and ejection of each endpoint, and the
+    * count of stale reads tried again
+    * @param metrics the registry to register with
+    */
+   public void registerMetrics(MetricRegistry metrics) {
+      metrics.register(MetricRegistry.name(ConsulKVDaoEcwid.class, "staleReadRetries"), staleRetries);
+      metrics.register(MetricRegistry.name(ConsulKVDaoEcwid.class, "connections", "leased"),
+            (Gauge<Integer>) () -> connectionManager.getTotalStats().getLeased());
+      metrics.register(MetricRegistry.name(ConsulKVDaoEcwid.class, "connections", "available"),
+            (Gauge<Integer>) () -> connectionManager.getTotalStats().getAvailable());
+      metrics.register(MetricRegistry.name(ConsulKVDaoEcwid.class, "connections", "pending"),
+            (Gauge<Integer>) () -> connectionManager.getTotalStats().getPending());
+      metrics.register(MetricRegistry.name(ConsulKVDaoEcwid.class, "connections", "utilization"),
+            (Gauge<Double>) () -> {
+               PoolStats stats = connectionManager.getTotalStats();
+               return stats.getMax() > 0 ? (double) stats.getLeased() / stats.getMax() : 0d;
+            });
+      endpoints.registerMetrics(metrics, ConsulKVDaoEcwid.class);
    }
 
    @Override
    public void put(String key, String value) throws KVStoreException {
-      if (!client.setKVValue(key, value).getValue()) {
+      if (!writeAny(endpoint -> clients.get(endpoint).setKVValue(key, value)).getValue()) {
          throw KVStoreException.writeFailed(key);
       }
    }
 
+   @Override
+   public boolean putIfIndex(String key, String value, long index) {
+      PutParams params = new PutParams();
+      params.setCas(index);
+      return writeAny(endpoint -> clients.get(endpoint).setKVValue(key, value, params)).getValue();
+   }
+
+   @Override
+   public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+      // The Ecwid client predates Consul transactions, so they go through its raw client
+      for (List<KeyValue> txn : Lists.partition(keyValues, MAX_ATOMIC_PUTS)) {
+         ArrayNode operations = MAPPER.createArrayNode();
+         for (KeyValue keyValue : txn) {
+            ObjectNode kv = operations.addObject().putObject("KV");
+            Long index = expectedIndexes.get(keyValue.key());
+            kv.put("Verb", index != null ? "cas" : "set");
+            kv.put("Key", keyValue.key());
+            kv.put("Value", new String(Base64.encode(keyValue.value().getBytes(StandardCharsets.UTF_8)),
+                  StandardCharsets.US_ASCII));
+            if (index != null) {
+               kv.put("Index", index);
+            }
+         }
+         String body = operations.toString();
+         RawResponse response = writeAny(endpoint -> rawClients.get(endpoint).makePutRequest(TXN_ENDPOINT, body));
+         if (response.getStatusCode() == HttpStatus.SC_CONFLICT) {
+            // Rolled back: a check-and-set failed
+            return false;
+         } else if (response.getStatusCode() != HttpStatus.SC_OK) {
+            throw KVStoreException.writeFailed(txn.get(0).key(),
+                  String.format("transaction of %d keys failed (%d) %s", txn.size(), response.getStatusCode(),
+                        response.getContent()));
+         }
+      }
+      return true;
+   }
+
    @Override
    public Optional<String> getValueAt(String key) {
-      Response<GetValue> val = client.getKVValue(key);
-      return val.getValue() != null?Optional.of(Base64.base64Decode(val.getValue().getValue())):Optional.absent();
+      String[] value = new String[1];
+      readEntries(key, readKV(key, false), (k, index, v) -> value[0] = v);
+      return Optional.fromNullable(value[0]);
+   }
+
+   @Override
+   public Optional<VersionedValue> getVersionedValueAt(String key) {
+      VersionedValue[] value = new VersionedValue[1];
+      readEntries(key, readKV(key, false), (k, index, v) -> value[0] = VersionedValue.from(v, index));
+      return Optional.fromNullable(value[0]);
+   }
+
+   @Override
+   public Map<String, VersionedValue> getVersionedHierarchy(String key) {
+      Map<String, VersionedValue> values = new HashMap<>();
+      readEntries(key, readKV(key, true), (k, index, v) -> values.put(k, VersionedValue.from(v, index)));
+      return values;
    }
 
    @Override
    public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
-      Response<List<GetValue>> vals = client.getKVValues(key);
-      if (vals.getValue() != null) {
-         if (keyTransform != null) {
-            return vals.getValue().stream().collect(Collectors.toMap(
-                  gv -> keyTransform.apply(gv.getKey()),
-                  gv -> Base64.base64Decode(gv.getValue())));
-         } else {
-            return vals.getValue().stream().collect(Collectors.toMap(GetValue::getKey,
-                  gv -> Base64.base64Decode(gv.getValue())));
-         }
+      Map<String, String> values = new HashMap<>();
+      readEntries(key, readKV(key, true), (k, index, v) -> values.put(keyTransform != null ? keyTransform.apply(k) : k, v));
+      return values;
+   }
+
+   @Override
+   public VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds) {
+      RawResponse response;
+      if (index <= 0) {
+         response = readKV(key, true);
       } else {
-         return new HashMap<>();
+         response = readAny(false, endpoint -> {
+            // The Ecwid client cannot combine a blocking query with a consistency mode
+            RawResponse blocked = rawClients.get(endpoint).makeGetRequest(KV_ENDPOINT + key,
+                  new SingleUrlParameters("recurse"), new QueryParams(waitSeconds, index), queryParams);
+            return available(tooStale(blocked.getConsulLastContact())
+                  ? getKV(endpoint, key, true, QueryParams.DEFAULT) : blocked);
+         });
+      }
+      Map<String, String> values = new HashMap<>();
+      readEntries(key, response, (k, i, v) -> values.put(k, v));
+      return VersionedHierarchy.from(response.getConsulIndex() != null ? response.getConsulIndex() : 0L, values);
+   }
+
+   /**
+    * Reads the response as it is iterated. A scan that fails before its first entry goes to the next agent
+    */
+   @Override
+   public KVScan scan(String prefix) {
+      return KVResponseReader.scan(new KVResponseReader.Body() {
+         private HttpGet get;
+
+         @Override
+         public InputStream open() throws IOException {
+            // Its time is that of the first bytes only
+            return readAny(false, endpoint -> {
+               HttpResponse response = execute(get = scanRequest(endpoint, prefix, consistency));
+               if (tooStale(lastContact(response))) {
+                  get.abort();
+                  response = execute(get = scanRequest(endpoint, prefix, ReadConsistency.DEFAULT));
+               }
+               int status = response.getStatusLine().getStatusCode();
+               if (status == HttpStatus.SC_NOT_FOUND) {
+                  EntityUtils.consume(response.getEntity());
+                  return null;
+               } else if (status != HttpStatus.SC_OK) {
+                  throw new OperationException(status, response.getStatusLine().getReasonPhrase(),
+                        EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+               }
+               return response.getEntity().getContent();
+            });
+         }
+
+         @Override
+         public void abort() {
+            if (get != null) {
+               get.abort();
+            }
+         }
+      });
+   }
+
+   private static HttpGet scanRequest(Endpoint endpoint, String prefix, ReadConsistency consistency) {
+      String agentUrl = endpoint.address.startsWith("http") ? endpoint.address : "http://" + endpoint.address;
+      String uri = agentUrl + kvPath(prefix) + "?recurse";
+      if (consistency == ReadConsistency.STALE) {
+         uri += "&stale";
+      } else if (consistency == ReadConsistency.CONSISTENT) {
+         uri += "&consistent";
+      }
+      return new HttpGet(uri);
+   }
+
+   private HttpResponse execute(HttpGet get) {
+      try {
+         return httpClient.execute(get);
+      } catch (IOException e) {
+         throw new TransportException(e);
+      }
+   }
+
+   private static Long lastContact(HttpResponse response) {
+      Header lastContact = response.getFirstHeader("X-Consul-LastContact");
+      try {
+         return lastContact != null ? Long.valueOf(lastContact.getValue()) : null;
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   /**
+    * The path of a key on the KV endpoint, each segment URL-escaped
+    */
+   protected static String kvPath(String key) {
+      return KV_ENDPOINT + KEY_JOINER.join(Iterables.transform(KEY_SPLITTER.split(key), SEGMENT_ESCAPER::escape));
+   }
+
+   // Values are read over the raw client, straight off the response (see KVResponseReader), rather than through
+   // the Ecwid client's objects and Base64 strings. A stale read that was too stale is read again at default
+   // consistency
+   private RawResponse readKV(String key, boolean recurse) {
+      return readAny(true, endpoint -> {
+         RawResponse response = getKV(endpoint, key, recurse, queryParams);
+         return available(tooStale(response.getConsulLastContact())
+               ? getKV(endpoint, key, recurse, QueryParams.DEFAULT) : response);
+      });
+   }
+
+   private RawResponse getKV(Endpoint endpoint, String key, boolean recurse, QueryParams params) {
+      ConsulRawClient rawClient = rawClients.get(endpoint);
+      return recurse ? rawClient.makeGetRequest(KV_ENDPOINT + key, new SingleUrlParameters("recurse"), params)
+            : rawClient.makeGetRequest(KV_ENDPOINT + key, params);
+   }
+
+   // Fails a response from an agent that could not answer, so that the read goes to the next one
+   private static RawResponse available(RawResponse response) {
+      if (response.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+         throw new OperationException(response);
+      }
+      return response;
+   }
+
+   // There are no entries if there is nothing at the key
+   private static void readEntries(String key, RawResponse response, KVResponseReader.EntryConsumer consumer) {
+      if (response.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+         return;
+      } else if (response.getStatusCode() != HttpStatus.SC_OK) {
+         throw new OperationException(response);
+      }
+      try {
+         KVResponseReader.read(response.getContent(), consumer);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not read " + key, e);
       }
    }
 
    @Override
    public Optional<Collection<String>> getKeysAt(String key) {
-      Response<List<String>> keys = client.getKVKeysOnly(key);
+      Response<List<String>> keys = read((client, params) -> client.getKVKeysOnly(key, params));
       return keys.getValue() != null?Optional.of(keys.getValue()):Optional.absent();
    }
 
+   @Override
+   public List<String> getChildKeysAt(String prefix) {
+      Response<List<String>> keys = read((client, params) ->
+            client.getKVKeysOnly(prefix, KVStore.HIERARCHY_SEPARATOR, null, params));
+      return keys.getValue() != null ? keys.getValue() : Collections.emptyList();
+   }
+
+   @Override
+   public long modifyIndexAt(String key) {
+      // A keys-only read keeps the response small; all we want is the index header
+      Response<List<String>> keys = read((client, params) -> client.getKVKeysOnly(key, params));
+      return keys.getConsulIndex() != null ? keys.getConsulIndex() : 0L;
+   }
+
    @Override
    public void deleteKey(String key) {
-      client.deleteKVValue(key);
+      writeAny(endpoint -> clients.get(endpoint).deleteKVValue(key));
    }
 
    @Override
    public void deleteHierarchyAt(String key) {
-      client.deleteKVValues(key);
+      writeAny(endpoint -> clients.get(endpoint).deleteKVValues(key));
    }
 
 
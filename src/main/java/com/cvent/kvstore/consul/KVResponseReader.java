@@ -0,0 +1,194 @@
+package com.cvent.kvstore.consul;
+
+import com.cvent.kvstore.KVScan;
+import com.cvent.kvstore.KeyValue;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the entries of a Consul KV response ([{"Key": ..., "Value": base64, "ModifyIndex": ...}, ...]) off a
+ * streaming parser, without a tree of nodes or a Base64 string per value.
+ *
+ * Each value is Base64-decoded by the parser straight from its input into a buffer that is reused for every entry
+ * of the response, and becomes a String once, from its UTF-8 bytes. Folders (entries without a value) are skipped.
+ * A response can also be scanned, an entry at a time, as it arrives.
+ */
+final class KVResponseReader {
+   // Factories are thread-safe and expensive to create
+   private static final JsonFactory FACTORY = new JsonFactory();
+
+   /**
+    * Receives the entries of a response
+    */
+   interface EntryConsumer {
+      void accept(String key, long modifyIndex, String value);
+   }
+
+   /**
+    * A response body to scan, opened when the scan is first iterated
+    */
+   interface Body {
+      /**
+       * @return the body, or null if there is nothing at the key
+       */
+      InputStream open() throws IOException;
+
+      /**
+       * Gives up on a body that has not been read to the end, rather than read the rest of it
+       */
+      void abort();
+   }
+
+   private KVResponseReader() {
+   }
+
+   /**
+    * Scans the entries of a response body, reading the body as the scan is iterated
+    */
+   static KVScan scan(Body body) {
+      return new Scan(body);
+   }
+
+   /**
+    * Reads the entries of a response body as it came off the wire
+    */
+   static void read(byte[] body, EntryConsumer consumer) throws IOException {
+      try (JsonParser parser = FACTORY.createParser(body)) {
+         read(parser, consumer);
+      }
+   }
+
+   /**
+    * Reads the entries of a response body the client has already decoded
+    */
+   static void read(String body, EntryConsumer consumer) throws IOException {
+      try (JsonParser parser = FACTORY.createParser(body)) {
+         read(parser, consumer);
+      }
+   }
+
+   private static void read(JsonParser parser, EntryConsumer consumer) throws IOException {
+      startEntries(parser);
+      Utf8Buffer value = new Utf8Buffer();
+      while (nextEntry(parser, value, consumer)) {
+         // Passed on
+      }
+   }
+
+   private static void startEntries(JsonParser parser) throws IOException {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+         throw new JsonParseException("Expected an array of entries", parser.getCurrentLocation());
+      }
+   }
+
+   // Reads an entry and passes it on unless it is a folder; returns false past the last entry
+   private static boolean nextEntry(JsonParser parser, Utf8Buffer value, EntryConsumer consumer) throws IOException {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+         return false;
+      }
+      String key = null;
+      long modifyIndex = 0;
+      boolean hasValue = false;
+      value.reset();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+         String field = parser.getCurrentName();
+         JsonToken token = parser.nextToken();
+         if ("Key".equals(field)) {
+            key = parser.getText();
+         } else if ("ModifyIndex".equals(field)) {
+            modifyIndex = parser.getLongValue();
+         } else if ("Value".equals(field) && token == JsonToken.VALUE_STRING) {
+            parser.readBinaryValue(value);
+            hasValue = true;
+         } else {
+            parser.skipChildren();
+         }
+      }
+      if (key != null && hasValue) {
+         consumer.accept(key, modifyIndex, value.decode());
+      }
+      return true;
+   }
+
+   private static final class Scan implements KVScan {
+      private final Body body;
+      private final Utf8Buffer value = new Utf8Buffer();
+      private JsonParser parser;
+      private KeyValue next;
+      private boolean done;
+
+      private Scan(Body body) {
+         this.body = body;
+      }
+
+      @Override
+      public boolean hasNext() {
+         try {
+            if (parser == null && !done) {
+               InputStream in = body.open();
+               if (in == null) {
+                  done = true;
+               } else {
+                  parser = FACTORY.createParser(in);
+                  startEntries(parser);
+               }
+            }
+            while (next == null && !done) {
+               if (!nextEntry(parser, value, (key, index, v) -> next = KeyValue.from(key, v))) {
+                  done = true;
+                  parser.close();
+               }
+            }
+         } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Could not read a scan", e);
+         }
+         return next != null;
+      }
+
+      @Override
+      public KeyValue next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         KeyValue ret = next;
+         next = null;
+         return ret;
+      }
+
+      @Override
+      public void close() {
+         if (!done) {
+            done = true;
+            body.abort();
+            if (parser != null) {
+               try {
+                  parser.close();
+               } catch (IOException e) {
+                  // Aborted anyway
+               }
+            }
+         }
+      }
+   }
+
+   // Exposes the buffer so that a value is decoded without copying it first
+   private static final class Utf8Buffer extends ByteArrayOutputStream {
+      private Utf8Buffer() {
+         super(256);
+      }
+
+      private String decode() {
+         return new String(buf, 0, count, StandardCharsets.UTF_8);
+      }
+   }
+}
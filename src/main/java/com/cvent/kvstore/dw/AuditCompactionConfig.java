@@ -0,0 +1,48 @@
+package com.cvent.kvstore.dw;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for compacting the audit trail
+ */
+public class AuditCompactionConfig {
+
+   // How often the compactor runs. 0 turns compaction off
+   @JsonProperty
+   private long intervalMinutes = 60;
+
+   // Revisions older than this are folded into segments (the latest revision of a key always stays live)
+   @JsonProperty
+   private long compactAfterDays = 30;
+
+   // Revisions older than this are dropped. 0 keeps every revision forever
+   @JsonProperty
+   private long retentionDays = 0;
+
+   public AuditCompactionConfig() {
+   }
+
+   public long getIntervalMinutes() {
+      return intervalMinutes;
+   }
+
+   public void setIntervalMinutes(long intervalMinutes) {
+      this.intervalMinutes = intervalMinutes;
+   }
+
+   public long getCompactAfterDays() {
+      return compactAfterDays;
+   }
+
+   public void setCompactAfterDays(long compactAfterDays) {
+      this.compactAfterDays = compactAfterDays;
+   }
+
+   public long getRetentionDays() {
+      return retentionDays;
+   }
+
+   public void setRetentionDays(long retentionDays) {
+      this.retentionDays = retentionDays;
+   }
+}
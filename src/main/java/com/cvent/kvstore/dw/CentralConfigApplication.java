@@ -1,12 +1,30 @@
 package com.cvent.kvstore.dw;
 
 import com.cvent.CventApplication;
+import com.cvent.kvstore.AuditCompactor;
+import com.cvent.kvstore.ConfigRenderer;
+import com.cvent.kvstore.ConfigWatchHub;
+import com.cvent.kvstore.KVSStoreDao;
+import com.cvent.kvstore.MeteredKVSStoreDao;
+import com.cvent.kvstore.RenderCache;
+import com.cvent.kvstore.ReplicaSnapshot;
+import com.cvent.kvstore.ReplicatedKVSStoreDao;
+import com.cvent.kvstore.consul.ConsulKVDaoAsync;
+import com.cvent.kvstore.consul.ConsulKVDaoEcwid;
+import com.cvent.kvstore.embedded.FileKVDao;
 import com.cvent.kvstore.resources.AuditTrailResource;
 import com.cvent.kvstore.resources.ConfigGenResource;
+import com.cvent.kvstore.resources.ConfigWatchFilter;
 import com.cvent.kvstore.resources.DocumentResource;
+import com.cvent.kvstore.resources.RoundTripFilter;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterRegistration;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+
 /**
  * Created by sviswanathan on 2/15/16.
  */
@@ -25,9 +43,68 @@ public class CentralConfigApplication extends CventApplication<CentralConfigConf
    @Override
    public void run(CentralConfigConfiguration config, Environment environment) throws Exception {
       super.run(config, environment);
-      environment.jersey().register(new ConfigGenResource(config.getConsulKVStoreConfig()));
-      environment.jersey().register(new AuditTrailResource(config.getConsulKVStoreConfig()));
-      environment.jersey().register(new DocumentResource(config.getConsulKVStoreConfig()));
+      ConsulKVStoreConfig consulConfig = config.getConsulKVStoreConfig();
+      KVSStoreDao storeDao;
+      if (config.getEmbeddedKVStoreConfig().isEnabled()) {
+         FileKVDao fileDao = new FileKVDao(config.getEmbeddedKVStoreConfig());
+         environment.lifecycle().manage(fileDao);
+         storeDao = fileDao;
+      } else {
+         // One DAO, and so one pool of Consul connections, for the whole application
+         ConsulKVDaoEcwid consulDao = consulConfig.isAsyncReadsEnabled()
+               ? new ConsulKVDaoAsync(consulConfig) : new ConsulKVDaoEcwid(consulConfig);
+         consulDao.registerMetrics(environment.metrics());
+         environment.lifecycle().manage(consulDao);
+         storeDao = consulDao;
+      }
+      // Measured where calls leave the process, so that reads served by the replica are not counted as round trips
+      storeDao = MeteredKVSStoreDao.from(storeDao, environment.metrics());
+      // Rendering and audit trails read at the configured consistency (stale by default, so that any Consul server
+      // can answer); writes make their own reads consistent
+      KVSStoreDao dao = storeDao.withConsistency(consulConfig.getReadConsistency());
+      ReplicatedKVSStoreDao replica = null;
+      // Local reads need no replica
+      if (consulConfig.isReplicaEnabled() && !config.getEmbeddedKVStoreConfig().isEnabled()) {
+         replica = new ReplicatedKVSStoreDao(dao, consulConfig.getReplicaWaitSeconds(),
+               consulConfig.getReplicaMaxStalenessMillis());
+         environment.lifecycle().manage(replica);
+         dao = replica;
+      }
+      RenderCache renderCache = config.getRenderCacheMaxBytes() > 0
+            ? new RenderCache(config.getRenderCacheMaxBytes(), environment.metrics()) : null;
+      if (replica != null && consulConfig.getSnapshotIntervalSeconds() > 0) {
+         ReplicaSnapshot snapshot = new ReplicaSnapshot(Paths.get(consulConfig.getSnapshotFile()),
+               consulConfig.getSnapshotIntervalSeconds(), replica, renderCache);
+         // Before the replica starts, so that it watches from the snapshot's indexes
+         snapshot.restore();
+         // Stopped, and so written a last time, before the replica stops
+         environment.lifecycle().manage(snapshot);
+      }
+      // Long-polls on /config-gen are suspended by a servlet filter since Jersey 1 cannot respond asynchronously
+      ConfigWatchHub watchHub = new ConfigWatchHub(dao, consulConfig.getReplicaWaitSeconds());
+      environment.lifecycle().manage(watchHub);
+      // The replica has the indexes at hand; without it, renders take them from the hub's watches
+      ConfigRenderer renderer = new ConfigRenderer(dao, renderCache, replica == null ? watchHub : null,
+            environment.metrics());
+      environment.jersey().register(new ConfigGenResource(renderer));
+
+      FilterRegistration.Dynamic roundTripFilter = environment.servlets().addFilter("round-trips",
+            new RoundTripFilter(environment.metrics(), "config-gen", "document", "audit-trail"));
+      // Filters in front of the long-poll filter must allow it to suspend requests
+      roundTripFilter.setAsyncSupported(true);
+      roundTripFilter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), false, "/*");
+
+      FilterRegistration.Dynamic watchFilter = environment.servlets().addFilter("config-watch",
+            new ConfigWatchFilter(renderer, watchHub));
+      watchFilter.setAsyncSupported(true);
+      watchFilter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true, "/config-gen/*");
+      AuditCompactionConfig compactionConfig = config.getAuditCompactionConfig();
+      if (compactionConfig.getIntervalMinutes() > 0) {
+         // Compaction reads and writes the store directly rather than through the replica
+         environment.lifecycle().manage(new AuditCompactor(storeDao, compactionConfig));
+      }
+      environment.jersey().register(new AuditTrailResource(dao));
+      environment.jersey().register(new DocumentResource(dao, environment.metrics()));
    }
 
    public static void main(String[] args) throws Exception {
@@ -12,6 +12,16 @@ public class CentralConfigConfiguration extends CventConfiguration {
    @JsonProperty
    private ConsulKVStoreConfig consulKVStoreConfig;
 
+   // Upper bound on the size of rendered configs kept for /config-gen. 0 turns the cache off
+   @JsonProperty
+   private long renderCacheMaxBytes = 64 * 1024 * 1024;
+
+   @JsonProperty
+   private AuditCompactionConfig auditCompactionConfig = new AuditCompactionConfig();
+
+   @JsonProperty
+   private EmbeddedKVStoreConfig embeddedKVStoreConfig = new EmbeddedKVStoreConfig();
+
    public CentralConfigConfiguration() {}
 
    public ConsulKVStoreConfig getConsulKVStoreConfig() {
@@ -21,4 +31,28 @@ public class CentralConfigConfiguration extends CventConfiguration {
    public void setConsulKVStoreConfig(ConsulKVStoreConfig consulKVStoreConfig) {
       this.consulKVStoreConfig = consulKVStoreConfig;
    }
+
+   public long getRenderCacheMaxBytes() {
+      return renderCacheMaxBytes;
+   }
+
+   public void setRenderCacheMaxBytes(long renderCacheMaxBytes) {
+      this.renderCacheMaxBytes = renderCacheMaxBytes;
+   }
+
+   public AuditCompactionConfig getAuditCompactionConfig() {
+      return auditCompactionConfig;
+   }
+
+   public void setAuditCompactionConfig(AuditCompactionConfig auditCompactionConfig) {
+      this.auditCompactionConfig = auditCompactionConfig;
+   }
+
+   public EmbeddedKVStoreConfig getEmbeddedKVStoreConfig() {
+      return embeddedKVStoreConfig;
+   }
+
+   public void setEmbeddedKVStoreConfig(EmbeddedKVStoreConfig embeddedKVStoreConfig) {
+      this.embeddedKVStoreConfig = embeddedKVStoreConfig;
+   }
 }
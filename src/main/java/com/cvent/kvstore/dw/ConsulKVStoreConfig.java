@@ -1,7 +1,12 @@
 package com.cvent.kvstore.dw;
 
+import com.cvent.kvstore.ReadConsistency;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Created by sviswanathan on 2/10/16.
  */
@@ -10,9 +15,90 @@ public class ConsulKVStoreConfig {
    @JsonProperty
    private String consulEndpoint;
 
+   // Consul agents (host:port) to hedge reads across; if empty, consulEndpoint is the only one.
+   // Writes and the reads the Ecwid client makes go to the first.
+   @JsonProperty
+   private List<String> consulEndpoints = new ArrayList<>();
+
    @JsonProperty
    private String password;
 
+   // Size of the pool of keep-alive connections to the Consul agent
+   @JsonProperty
+   private int maxConnections = 200;
+
+   // How long an idle pooled connection is kept open
+   @JsonProperty
+   private long keepAliveMillis = 30000;
+
+   // The longest a pooled connection is reused for, idle or not
+   @JsonProperty
+   private long connectionTimeToLiveMillis = 300000;
+
+   @JsonProperty
+   private int connectTimeoutMillis = 2000;
+
+   // Must be longer than replicaWaitSeconds (plus Consul's jitter of up to 1/16th of it) for blocking queries
+   @JsonProperty
+   private int readTimeoutMillis = 60000;
+
+   // Serve reads from an in-memory replica kept current with blocking queries
+   @JsonProperty
+   private boolean replicaEnabled = true;
+
+   // How long each blocking query waits for a change before returning
+   @JsonProperty
+   private long replicaWaitSeconds = 30;
+
+   // How far past an expected blocking query return the replica may lag before reads force a refresh
+   @JsonProperty
+   private long replicaMaxStalenessMillis = 5000;
+
+   // Where the replica and rendered configs are saved, so that a restart serves them straight away and they can be
+   // served while Consul is unreachable
+   @JsonProperty
+   private String snapshotFile = "replica.snapshot";
+
+   // How often the snapshot is written. 0 turns snapshots off
+   @JsonProperty
+   private long snapshotIntervalSeconds = 60;
+
+   // Read over a non-blocking client so that independent reads can be in flight together
+   @JsonProperty
+   private boolean asyncReadsEnabled = true;
+
+   // Consistency of the reads that render config and audit trails (STALE, DEFAULT or CONSISTENT). Stale reads
+   // are answered by any Consul server rather than all by the leader. Reads that validate a write are consistent.
+   @JsonProperty
+   private ReadConsistency readConsistency = ReadConsistency.STALE;
+
+   // A stale read from a server that has not heard from the leader for longer than this is read again from the leader
+   @JsonProperty
+   private long maxStaleReadMillis = 2000;
+
+   // A read not answered within this percentile of its endpoint's recent latencies is also sent to the next endpoint
+   @JsonProperty
+   private double hedgePercentile = 0.95;
+
+   // Bounds on how long a read waits before it is hedged
+   @JsonProperty
+   private long hedgeMinDelayMillis = 2;
+
+   @JsonProperty
+   private long hedgeMaxDelayMillis = 500;
+
+   // An endpoint whose median latency is this many times that of the other endpoints is ejected
+   @JsonProperty
+   private double outlierLatencyMultiple = 3;
+
+   // An endpoint whose reads fail this many times in a row is ejected
+   @JsonProperty
+   private int outlierConsecutiveFailures = 5;
+
+   // How long an ejected endpoint is only read from when every other endpoint has failed
+   @JsonProperty
+   private long outlierEjectionMillis = 30000;
+
    public ConsulKVStoreConfig() {
    }
 
@@ -24,6 +110,22 @@ public class ConsulKVStoreConfig {
       this.consulEndpoint = consulEndpoint;
    }
 
+   public List<String> getConsulEndpoints() {
+      return consulEndpoints;
+   }
+
+   public void setConsulEndpoints(List<String> consulEndpoints) {
+      this.consulEndpoints = consulEndpoints;
+   }
+
+   /**
+    * @return consulEndpoints, or consulEndpoint if there are none
+    */
+   public List<String> endpoints() {
+      return consulEndpoints != null && !consulEndpoints.isEmpty() ? consulEndpoints
+            : Collections.singletonList(consulEndpoint);
+   }
+
    public String getPassword() {
       return password;
    }
@@ -31,4 +133,157 @@ public class ConsulKVStoreConfig {
    public void setPassword(String password) {
       this.password = password;
    }
+
+   public int getMaxConnections() {
+      return maxConnections;
+   }
+
+   public void setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+   }
+
+   public long getKeepAliveMillis() {
+      return keepAliveMillis;
+   }
+
+   public void setKeepAliveMillis(long keepAliveMillis) {
+      this.keepAliveMillis = keepAliveMillis;
+   }
+
+   public long getConnectionTimeToLiveMillis() {
+      return connectionTimeToLiveMillis;
+   }
+
+   public void setConnectionTimeToLiveMillis(long connectionTimeToLiveMillis) {
+      this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+   }
+
+   public int getConnectTimeoutMillis() {
+      return connectTimeoutMillis;
+   }
+
+   public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+   }
+
+   public int getReadTimeoutMillis() {
+      return readTimeoutMillis;
+   }
+
+   public void setReadTimeoutMillis(int readTimeoutMillis) {
+      this.readTimeoutMillis = readTimeoutMillis;
+   }
+
+   public boolean isReplicaEnabled() {
+      return replicaEnabled;
+   }
+
+   public void setReplicaEnabled(boolean replicaEnabled) {
+      this.replicaEnabled = replicaEnabled;
+   }
+
+   public long getReplicaWaitSeconds() {
+      return replicaWaitSeconds;
+   }
+
+   public void setReplicaWaitSeconds(long replicaWaitSeconds) {
+      this.replicaWaitSeconds = replicaWaitSeconds;
+   }
+
+   public long getReplicaMaxStalenessMillis() {
+      return replicaMaxStalenessMillis;
+   }
+
+   public void setReplicaMaxStalenessMillis(long replicaMaxStalenessMillis) {
+      this.replicaMaxStalenessMillis = replicaMaxStalenessMillis;
+   }
+
+   public String getSnapshotFile() {
+      return snapshotFile;
+   }
+
+   public void setSnapshotFile(String snapshotFile) {
+      this.snapshotFile = snapshotFile;
+   }
+
+   public long getSnapshotIntervalSeconds() {
+      return snapshotIntervalSeconds;
+   }
+
+   public void setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+      this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+   }
+
+   public boolean isAsyncReadsEnabled() {
+      return asyncReadsEnabled;
+   }
+
+   public void setAsyncReadsEnabled(boolean asyncReadsEnabled) {
+      this.asyncReadsEnabled = asyncReadsEnabled;
+   }
+
+   public ReadConsistency getReadConsistency() {
+      return readConsistency;
+   }
+
+   public void setReadConsistency(ReadConsistency readConsistency) {
+      this.readConsistency = readConsistency;
+   }
+
+   public long getMaxStaleReadMillis() {
+      return maxStaleReadMillis;
+   }
+
+   public void setMaxStaleReadMillis(long maxStaleReadMillis) {
+      this.maxStaleReadMillis = maxStaleReadMillis;
+   }
+
+   public double getHedgePercentile() {
+      return hedgePercentile;
+   }
+
+   public void setHedgePercentile(double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+   }
+
+   public long getHedgeMinDelayMillis() {
+      return hedgeMinDelayMillis;
+   }
+
+   public void setHedgeMinDelayMillis(long hedgeMinDelayMillis) {
+      this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+   }
+
+   public long getHedgeMaxDelayMillis() {
+      return hedgeMaxDelayMillis;
+   }
+
+   public void setHedgeMaxDelayMillis(long hedgeMaxDelayMillis) {
+      this.hedgeMaxDelayMillis = hedgeMaxDelayMillis;
+   }
+
+   public double getOutlierLatencyMultiple() {
+      return outlierLatencyMultiple;
+   }
+
+   public void setOutlierLatencyMultiple(double outlierLatencyMultiple) {
+      this.outlierLatencyMultiple = outlierLatencyMultiple;
+   }
+
+   public int getOutlierConsecutiveFailures() {
+      return outlierConsecutiveFailures;
+   }
+
+   public void setOutlierConsecutiveFailures(int outlierConsecutiveFailures) {
+      this.outlierConsecutiveFailures = outlierConsecutiveFailures;
+   }
+
+   public long getOutlierEjectionMillis() {
+      return outlierEjectionMillis;
+   }
+
+   public void setOutlierEjectionMillis(long outlierEjectionMillis) {
+      this.outlierEjectionMillis = outlierEjectionMillis;
+   }
+
 }
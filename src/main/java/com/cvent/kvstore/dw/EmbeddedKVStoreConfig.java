@@ -0,0 +1,72 @@
+package com.cvent.kvstore.dw;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for keeping the key-value store on local disk instead of in Consul
+ */
+public class EmbeddedKVStoreConfig {
+
+   // Use the local store; the Consul settings are then ignored
+   @JsonProperty
+   private boolean enabled = false;
+
+   // Where the write log and segments are kept
+   @JsonProperty
+   private String directory = "kvstore";
+
+   // How large the write log grows before it is written out as a segment
+   @JsonProperty
+   private long flushThresholdBytes = 4 * 1024 * 1024;
+
+   // How many segments there can be before they are merged into one
+   @JsonProperty
+   private int maxSegments = 8;
+
+   // Force each write to disk before it is acknowledged
+   @JsonProperty
+   private boolean syncWrites = true;
+
+   public EmbeddedKVStoreConfig() {
+   }
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+   }
+
+   public String getDirectory() {
+      return directory;
+   }
+
+   public void setDirectory(String directory) {
+      this.directory = directory;
+   }
+
+   public long getFlushThresholdBytes() {
+      return flushThresholdBytes;
+   }
+
+   public void setFlushThresholdBytes(long flushThresholdBytes) {
+      this.flushThresholdBytes = flushThresholdBytes;
+   }
+
+   public int getMaxSegments() {
+      return maxSegments;
+   }
+
+   public void setMaxSegments(int maxSegments) {
+      this.maxSegments = maxSegments;
+   }
+
+   public boolean isSyncWrites() {
+      return syncWrites;
+   }
+
+   public void setSyncWrites(boolean syncWrites) {
+      this.syncWrites = syncWrites;
+   }
+}
@@ -0,0 +1,215 @@
+package com.cvent.kvstore.embedded;
+
+import com.cvent.kvstore.SortedKVSStoreDao;
+import com.cvent.kvstore.dw.EmbeddedKVStoreConfig;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A KVSStoreDao on local disk, for installs that do not have a Consul cluster.
+ *
+ * Writes go to an append-only log and to an in-memory sorted map. Once the log passes a size, the map is written
+ * out as a sorted, memory-mapped segment and the log is cleared. Reads look at the map and then at the segments,
+ * newest first; a prefix scan is a binary search into each followed by a sequential read. When there are too
+ * many segments they are merged into one base segment, which drops the tombstones of deleted keys.
+ *
+ * The directory holds:
+ *    write.log                the writes since the last segment
+ *    segment-0000000042.seg   a segment, newer than those with lower numbers
+ *    base-0000000040.seg      a merge of every segment up to its number, which it replaces
+ */
+public class FileKVDao extends SortedKVSStoreDao implements Managed {
+   private static final Logger LOG = LoggerFactory.getLogger(FileKVDao.class);
+   private static final String LOG_FILE = "write.log";
+   private static final String SEGMENT_PREFIX = "segment-";
+   private static final String BASE_PREFIX = "base-";
+   private static final String SEGMENT_SUFFIX = ".seg";
+
+   private final Path directory;
+   private final long flushThresholdBytes;
+   private final int maxSegments;
+   private final WriteLog log;
+   // Swapped whole on a flush so that a read sees the map and the segments it was flushed to consistently
+   private volatile State state;
+   private volatile long droppedIndex;
+   private long nextSequence;
+
+   public FileKVDao(EmbeddedKVStoreConfig config) throws IOException {
+      directory = Paths.get(config.getDirectory());
+      flushThresholdBytes = config.getFlushThresholdBytes();
+      maxSegments = config.getMaxSegments();
+      Files.createDirectories(directory);
+
+      List<Segment> segments = openSegments();
+      for (Segment segment : segments) {
+         recoverIndex(segment.maxIndex());
+         droppedIndex = Math.max(droppedIndex, segment.droppedIndex());
+      }
+      ConcurrentSkipListMap<String, Entry> memtable = new ConcurrentSkipListMap<>();
+      log = WriteLog.open(directory.resolve(LOG_FILE), config.isSyncWrites(), entries -> {
+         memtable.putAll(entries);
+         recoverIndex(entries.values().iterator().next().index);
+      });
+      state = new State(memtable, segments);
+   }
+
+   @Override
+   public void start() {
+   }
+
+   @Override
+   public void stop() throws IOException {
+      log.close();
+   }
+
+   @Override
+   protected Entry entryAt(String key) {
+      State current = state;
+      Entry entry = current.memtable.get(key);
+      for (int n = 0; entry == null && n < current.segments.size(); n++) {
+         entry = current.segments.get(n).get(key);
+      }
+      return entry;
+   }
+
+   @Override
+   protected SortedMap<String, Entry> entriesUnder(String prefix) {
+      State current = state;
+      SortedMap<String, Entry> recent = current.memtable.subMap(prefix, hierarchyEnd(prefix));
+      if (current.segments.isEmpty()) {
+         return recent;
+      }
+      SortedMap<String, Entry> entries = new TreeMap<>();
+      // Oldest first, so that newer entries replace older ones
+      for (int n = current.segments.size() - 1; n >= 0; n--) {
+         current.segments.get(n).forEachUnder(prefix, entries::put);
+      }
+      entries.putAll(recent);
+      return entries;
+   }
+
+   @Override
+   protected void store(SortedMap<String, Entry> entries) throws IOException {
+      log.append(entries);
+      state.memtable.putAll(entries);
+      if (log.size() >= flushThresholdBytes) {
+         try {
+            flush();
+         } catch (IOException e) {
+            // The write is in the log already; the next write tries the flush again
+            LOG.warn("Could not flush the write log of {}", directory, e);
+         }
+      }
+   }
+
+   @Override
+   protected long droppedIndex() {
+      return droppedIndex;
+   }
+
+   // Writes the map out as a segment, merging the segments into a base once there are too many
+   private void flush() throws IOException {
+      State current = state;
+      List<Segment> segments = new ArrayList<>();
+      segments.add(Segment.write(segmentPath(SEGMENT_PREFIX, nextSequence++), current.memtable.entrySet(), 0));
+      segments.addAll(current.segments);
+      List<Segment> replaced = Collections.emptyList();
+      if (segments.size() > maxSegments) {
+         replaced = segments;
+         segments = Collections.singletonList(merge(segments));
+      }
+      state = new State(new ConcurrentSkipListMap<>(), segments);
+      log.clear();
+      for (Segment segment : replaced) {
+         Files.deleteIfExists(segment.path());
+      }
+   }
+
+   private Segment merge(List<Segment> segments) throws IOException {
+      SortedMap<String, Entry> entries = new TreeMap<>();
+      long dropped = droppedIndex;
+      for (int n = segments.size() - 1; n >= 0; n--) {
+         segments.get(n).forEachUnder("", entries::put);
+      }
+      // Nothing is older than a base, so it has no need for tombstones
+      for (Entry entry : entries.values()) {
+         if (entry.value == null) {
+            dropped = Math.max(dropped, entry.index);
+         }
+      }
+      entries.values().removeIf(entry -> entry.value == null);
+      Segment base = Segment.write(segmentPath(BASE_PREFIX, nextSequence - 1), entries.entrySet(), dropped);
+      droppedIndex = dropped;
+      return base;
+   }
+
+   // Opens the newest base and the segments after it, newest first, deleting anything they replace
+   private List<Segment> openSegments() throws IOException {
+      TreeMap<Long, Path> segmentFiles = new TreeMap<>();
+      TreeMap<Long, Path> baseFiles = new TreeMap<>();
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+         for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+               // A segment the last run did not finish writing; what it held is still in the log
+               Files.delete(file);
+            } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+               segmentFiles.put(sequenceOf(name, SEGMENT_PREFIX), file);
+            } else if (name.startsWith(BASE_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+               baseFiles.put(sequenceOf(name, BASE_PREFIX), file);
+            }
+         }
+      }
+
+      List<Segment> segments = new ArrayList<>();
+      long after = -1;
+      if (!baseFiles.isEmpty()) {
+         after = baseFiles.lastKey();
+         for (Path replaced : baseFiles.headMap(after).values()) {
+            Files.delete(replaced);
+         }
+         for (Path replaced : segmentFiles.headMap(after, true).values()) {
+            Files.delete(replaced);
+         }
+         segments.add(Segment.open(baseFiles.lastEntry().getValue()));
+      }
+      for (Map.Entry<Long, Path> file : segmentFiles.tailMap(after, false).entrySet()) {
+         segments.add(0, Segment.open(file.getValue()));
+      }
+      nextSequence = Math.max(segmentFiles.isEmpty() ? 0 : segmentFiles.lastKey(), after) + 1;
+      return segments;
+   }
+
+   private Path segmentPath(String prefix, long sequence) {
+      return directory.resolve(String.format("%s%010d%s", prefix, sequence, SEGMENT_SUFFIX));
+   }
+
+   private static long sequenceOf(String name, String prefix) {
+      return Long.parseLong(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()));
+   }
+
+   private static class State {
+      private final ConcurrentSkipListMap<String, Entry> memtable;
+      // Newest first
+      private final List<Segment> segments;
+
+      private State(ConcurrentSkipListMap<String, Entry> memtable, List<Segment> segments) {
+         this.memtable = memtable;
+         this.segments = segments;
+      }
+   }
+}
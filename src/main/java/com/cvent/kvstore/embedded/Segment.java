@@ -0,0 +1,162 @@
+package com.cvent.kvstore.embedded;
+
+import com.cvent.kvstore.SortedKVSStoreDao.Entry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable file of entries in key order, memory-mapped for reads.
+ *
+ *    entries: [key][index][value or -1]...
+ *    offsets: the position of each entry, so that a key is found by binary search
+ *    footer:  [offsets position][count][highest index][dropped index][magic]
+ * Segments are written to a temporary file and moved into place, so a segment either exists whole or not at all.
+ */
+class Segment {
+   private static final int MAGIC = 0x4b565331;
+   private static final int FOOTER_BYTES = 32;
+
+   private final Path path;
+   private final MappedByteBuffer buffer;
+   private final int offsets;
+   private final int count;
+   private final long maxIndex;
+   private final long droppedIndex;
+
+   private Segment(Path path, MappedByteBuffer buffer) throws IOException {
+      this.path = path;
+      this.buffer = buffer;
+      int footer = buffer.capacity() - FOOTER_BYTES;
+      if (footer < 0 || buffer.getInt(footer + 28) != MAGIC) {
+         throw new IOException(path + " is not a segment");
+      }
+      offsets = (int) buffer.getLong(footer);
+      count = buffer.getInt(footer + 8);
+      maxIndex = buffer.getLong(footer + 12);
+      droppedIndex = buffer.getLong(footer + 20);
+   }
+
+   static Segment open(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+         // The mapping outlives the channel
+         return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+   }
+
+   /**
+    * Writes a segment
+    * @param path          where to write it
+    * @param entries       the entries, in key order
+    * @param droppedIndex  the highest index of the tombstones left out of the segment and the segments it replaces
+    */
+   static Segment write(Path path, Iterable<Map.Entry<String, Entry>> entries, long droppedIndex) throws IOException {
+      Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+      List<Integer> positions = new ArrayList<>();
+      long maxIndex = droppedIndex;
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+         for (Map.Entry<String, Entry> entry : entries) {
+            positions.add(out.size());
+            WriteLog.writeString(out, entry.getKey());
+            out.writeLong(entry.getValue().index);
+            WriteLog.writeString(out, entry.getValue().value);
+            maxIndex = Math.max(maxIndex, entry.getValue().index);
+         }
+         long offsets = out.size();
+         for (int position : positions) {
+            out.writeInt(position);
+         }
+         out.writeLong(offsets);
+         out.writeInt(positions.size());
+         out.writeLong(maxIndex);
+         out.writeLong(droppedIndex);
+         out.writeInt(MAGIC);
+         if (out.size() < 0) {
+            // DataOutputStream counts in an int
+            throw new IOException("Segment " + path + " is larger than 2GB");
+         }
+      }
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+         channel.force(true);
+      }
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+      return open(path);
+   }
+
+   Path path() {
+      return path;
+   }
+
+   long maxIndex() {
+      return maxIndex;
+   }
+
+   long droppedIndex() {
+      return droppedIndex;
+   }
+
+   /**
+    * Finds the entry at a key
+    * @return the entry or null if the segment does not have the key
+    */
+   Entry get(String key) {
+      ByteBuffer view = buffer.duplicate();
+      int n = ceiling(view, key);
+      if (n < count && key.equals(keyAt(view, n))) {
+         return readEntry(view);
+      }
+      return null;
+   }
+
+   /**
+    * Visits the entries whose keys start with a prefix, in key order
+    */
+   void forEachUnder(String prefix, BiConsumer<String, Entry> consumer) {
+      ByteBuffer view = buffer.duplicate();
+      for (int n = ceiling(view, prefix); n < count; n++) {
+         String key = keyAt(view, n);
+         if (!key.startsWith(prefix)) {
+            return;
+         }
+         consumer.accept(key, readEntry(view));
+      }
+   }
+
+   // The number of the first entry with a key at or after the given one
+   private int ceiling(ByteBuffer view, String key) {
+      int low = 0;
+      int high = count;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (keyAt(view, mid).compareTo(key) < 0) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+
+   // Reads the key of an entry, leaving the view at the rest of the entry
+   private String keyAt(ByteBuffer view, int n) {
+      view.position(view.getInt(offsets + n * 4));
+      return WriteLog.readString(view);
+   }
+
+   private static Entry readEntry(ByteBuffer view) {
+      long index = view.getLong();
+      return new Entry(WriteLog.readString(view), index);
+   }
+}
@@ -0,0 +1,189 @@
+package com.cvent.kvstore.embedded;
+
+import com.cvent.kvstore.SortedKVSStoreDao.Entry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only log of the writes that are not in a segment yet.
+ *
+ * Each write is one record, so the entries of a transaction are recovered together or not at all:
+ *    [length][crc32 of the payload][payload: index, count, (key, value or -1)...]
+ * A record cut short by a crash fails its checksum and is dropped, along with anything after it. A record cut short
+ * by a failed write (a full disk) is cut off at once, so that the writes after it are not dropped with it; if that
+ * fails too, the log takes no more writes.
+ */
+class WriteLog implements Closeable {
+   private static final int HEADER_BYTES = 8;
+
+   private final FileChannel channel;
+   private final boolean sync;
+   private long size;
+   // Why the log takes no more writes, once a failed write could not be cut off
+   private IOException failed;
+
+   WriteLog(FileChannel channel, boolean sync) throws IOException {
+      this.channel = channel;
+      this.sync = sync;
+      size = channel.size();
+   }
+
+   /**
+    * Opens a log, replaying the writes in it
+    * @param path     the log file, created if it does not exist
+    * @param sync     whether each write is forced to disk before it returns
+    * @param replay   receives the entries of each write, in the order they were written
+    */
+   static WriteLog open(Path path, boolean sync, Consumer<SortedMap<String, Entry>> replay) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+      long valid = replay(channel, replay);
+      if (valid < channel.size()) {
+         // Drops a record the last run did not finish writing
+         channel.truncate(valid);
+         channel.force(true);
+      }
+      channel.position(valid);
+      return new WriteLog(channel, sync);
+   }
+
+   private static long replay(FileChannel channel, Consumer<SortedMap<String, Entry>> replay) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      long position = 0;
+      while (true) {
+         header.clear();
+         if (channel.read(header, position) < HEADER_BYTES) {
+            return position;
+         }
+         header.flip();
+         int length = header.getInt();
+         int crc = header.getInt();
+         if (length <= 0 || position + HEADER_BYTES + length > channel.size()) {
+            return position;
+         }
+         ByteBuffer payload = ByteBuffer.allocate(length);
+         channel.read(payload, position + HEADER_BYTES);
+         CRC32 checksum = new CRC32();
+         checksum.update(payload.array());
+         if ((int) checksum.getValue() != crc) {
+            return position;
+         }
+         payload.flip();
+         replay.accept(readEntries(payload));
+         position += HEADER_BYTES + length;
+      }
+   }
+
+   /**
+    * Appends a write
+    * @param entries the entries of the write, all at the same index
+    */
+   void append(SortedMap<String, Entry> entries) throws IOException {
+      if (failed != null) {
+         throw new IOException("The write log takes no more writes after a write it could not undo", failed);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+         out.writeLong(entries.values().iterator().next().index);
+         out.writeInt(entries.size());
+         for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue().value);
+         }
+      }
+      byte[] payload = bytes.toByteArray();
+      CRC32 checksum = new CRC32();
+      checksum.update(payload);
+      ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+      record.putInt(payload.length).putInt((int) checksum.getValue()).put(payload).flip();
+      try {
+         while (record.hasRemaining()) {
+            channel.write(record);
+         }
+         if (sync) {
+            channel.force(false);
+         }
+      } catch (IOException e) {
+         undo(e);
+         throw e;
+      }
+      size += HEADER_BYTES + payload.length;
+   }
+
+   // Cuts off what a failed write left of its record
+   private void undo(IOException cause) {
+      try {
+         channel.truncate(size);
+         channel.position(size);
+      } catch (IOException e) {
+         cause.addSuppressed(e);
+         failed = cause;
+      }
+   }
+
+   /**
+    * The bytes written to the log since it was last cleared
+    */
+   long size() {
+      return size;
+   }
+
+   /**
+    * Empties the log once its writes are safely in a segment
+    */
+   void clear() throws IOException {
+      channel.truncate(0);
+      channel.position(0);
+      channel.force(true);
+      size = 0;
+   }
+
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+
+   private static SortedMap<String, Entry> readEntries(ByteBuffer payload) {
+      long index = payload.getLong();
+      int count = payload.getInt();
+      SortedMap<String, Entry> entries = new TreeMap<>();
+      for (int n = 0; n < count; n++) {
+         entries.put(readString(payload), new Entry(readString(payload), index));
+      }
+      return entries;
+   }
+
+   // Strings are written as their length in bytes, or -1 for null, and their UTF-8 bytes
+   static void writeString(DataOutputStream out, String s) throws IOException {
+      if (s == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   static String readString(ByteBuffer buffer) {
+      int length = buffer.getInt();
+      if (length < 0) {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+}
@@ -1,24 +1,28 @@
 package com.cvent.kvstore.resources;
 
 import com.codahale.metrics.annotation.Timed;
-import com.cvent.JsonSerializer;
-import com.cvent.kvstore.KVStore;
-import com.cvent.kvstore.SimpleKVStore;
-import com.cvent.kvstore.consul.ConsulKVDaoEcwid;
-import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+import com.cvent.kvstore.AuditIndex;
+import com.cvent.kvstore.AuditSegments;
+import com.cvent.kvstore.KVSStoreDao;
 import com.cvent.kvstore.model.AuditLog;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.constraints.NotNull;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A resource that extracts the audit log entries
@@ -27,10 +31,16 @@ import java.util.Map;
 @Path("/audit-trail")
 @Produces(MediaType.APPLICATION_JSON + ",text/yaml")
 public class AuditTrailResource {
-   private final ConsulKVStoreConfig config;
+   private static final JsonFactory JSON_FACTORY = new JsonFactory();
+   private static final long DEFAULT_RANGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+   private static final int MAX_LIMIT = 1000;
 
-   public AuditTrailResource(ConsulKVStoreConfig config) {
-      this.config = config;
+   private final KVSStoreDao dao;
+   private final AuditIndex auditIndex;
+
+   public AuditTrailResource(KVSStoreDao dao) {
+      this.dao = dao;
+      auditIndex = new AuditIndex(dao);
    }
 
    @GET
@@ -40,13 +50,9 @@ public class AuditTrailResource {
                                       @NotNull @NotEmpty @QueryParam("key") String key,
                                       @QueryParam("author") String author) throws IOException {
 
-      KVStore auditKVStore = SimpleKVStore.forAuditRegion(documentName,
-            new ConsulKVDaoEcwid(config));
-
-      Map<String, String> logs = auditKVStore.getHierarchyAt(region + KVStore.HIERARCHY_SEPARATOR + key);
+      // Old revisions may have been compacted into segments; readAll merges them with the live ones
       List<AuditLog> ret = new LinkedList<>();
-      for (Map.Entry<String, String> log: logs.entrySet()) {
-         AuditLog l = JsonSerializer.fromJson(log.getValue(), AuditLog.class);
+      for (AuditLog l : AuditSegments.readAll(dao, documentName, region, key)) {
          if (author != null && !author.equalsIgnoreCase(l.getAuthor())) {
             continue;
          }
@@ -55,4 +61,43 @@ public class AuditTrailResource {
       return ret;
    }
 
+   /**
+    * Lists changes, oldest first, for any combination of document, region and author over a time range
+    * (by default the last hour), a page at a time. Pass the returned cursor back to get the next page.
+    * Records are streamed as they are read from the audit indexes.
+    */
+   @GET
+   @Timed
+   @Path("/changes")
+   @Produces(MediaType.APPLICATION_JSON)
+   public Response getChanges(@QueryParam("document") String documentName,
+                              @QueryParam("region") String region,
+                              @QueryParam("author") String author,
+                              @QueryParam("since") Long since,
+                              @QueryParam("until") Long until,
+                              @QueryParam("limit") @DefaultValue("100") int limit,
+                              @QueryParam("cursor") String cursor) {
+      long to = until != null ? until : System.currentTimeMillis();
+      long from = since != null ? since : to - DEFAULT_RANGE_MILLIS;
+      AuditIndex.AuditQuery query;
+      try {
+         query = AuditIndex.AuditQuery.from(documentName, region, author, from, to, cursor);
+      } catch (IllegalArgumentException e) {
+         throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build());
+      }
+      int pageSize = Math.max(1, Math.min(limit, MAX_LIMIT));
+
+      StreamingOutput output = os -> {
+         JsonGenerator jg = JSON_FACTORY.createGenerator(os);
+         jg.writeStartObject();
+         jg.writeArrayFieldStart("changes");
+         // Records are stored as JSON already
+         String next = auditIndex.find(query, pageSize, jg::writeRawValue);
+         jg.writeEndArray();
+         jg.writeStringField("cursor", next);
+         jg.writeEndObject();
+         jg.flush();
+      };
+      return Response.ok(output).build();
+   }
 }
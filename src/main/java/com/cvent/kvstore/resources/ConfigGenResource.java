@@ -3,12 +3,10 @@ package com.cvent.kvstore.resources;
 
 import com.codahale.metrics.annotation.Timed;
 import com.cvent.kvstore.ConfigGenerator;
+import com.cvent.kvstore.ConfigRenderer;
 import com.cvent.kvstore.Document;
 import com.cvent.kvstore.DocumentType;
-import com.cvent.kvstore.KVStore;
-import com.cvent.kvstore.SimpleKVStore;
-import com.cvent.kvstore.consul.ConsulKVDaoEcwid;
-import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+import com.cvent.kvstore.RenderedConfig;
 import com.google.common.base.Optional;
 import org.hibernate.validator.constraints.NotEmpty;
 
@@ -18,10 +16,12 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import java.io.File;
-import java.io.FileInputStream;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 
 /**
@@ -33,12 +33,14 @@ import java.io.IOException;
 @Consumes(MediaType.APPLICATION_JSON + ",text/yaml")
 @Produces(MediaType.APPLICATION_JSON + ",text/yaml")
 public class ConfigGenResource {
-    private ConsulKVStoreConfig config;
-    private KVStore docKVStore;
+    public static final String INDEX_HEADER = "X-Consul-Index";
+    // Set when the config is rendered from data the service could not keep current, to how old that data is
+    public static final String STALENESS_HEADER = "X-Config-Stale-Millis";
 
-    public ConfigGenResource(ConsulKVStoreConfig config) {
-        this.config = config;
-        docKVStore = SimpleKVStore.documentStoreFor(new ConsulKVDaoEcwid(config));
+    private ConfigRenderer renderer;
+
+    public ConfigGenResource(ConfigRenderer renderer) {
+        this.renderer = renderer;
     }
 
 //    @GET
@@ -55,26 +57,48 @@ public class ConfigGenResource {
 //    }
 
 
+    /**
+     * Generates the config for a region.
+     * Requests with an index query parameter are long-polls and are served by ConfigWatchFilter instead.
+     */
     @GET
     @Timed
     @Path("/{document}/{region}")
     public Response generateConfigFromDocument(@NotEmpty @PathParam("document") String documentName,
                                                @NotEmpty @PathParam("region") String region,
-                                               @QueryParam("format") String format) throws IOException {
-        ConfigGenerator configGenerator = new ConfigGenerator(SimpleKVStore.forRegion(documentName, region,
-              new ConsulKVDaoEcwid(config)));
-        Optional<String> serializedDoc = docKVStore.getValueAt(documentName);
-        if (!serializedDoc.isPresent()) {
-            return Response.status(Response.Status.NOT_FOUND).build();
+                                               @QueryParam("format") String format,
+                                               @Context Request request) throws IOException {
+        DocumentType outputDocType = "json".equals(format) ? DocumentType.JSON : DocumentType.YAML;
+        if (!renderer.isCaching()) {
+            Optional<Document> document = renderer.document(documentName);
+            if (!document.isPresent()) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            // Render straight into the response body
+            ConfigGenerator configGenerator = renderer.generatorFor(documentName, region);
+            StreamingOutput output = os -> {
+                configGenerator.generate(document.get(), outputDocType, os);
+                os.write('\n');
+            };
+            return stale(Response.ok(output), documentName).build();
         }
 
-        Document document = Document.deserialize(serializedDoc.get());
-        return Response.ok(new FileInputStream(writeDocumentToFile(format, configGenerator, document))).build();
+        Optional<RenderedConfig> rendered = renderer.render(documentName, region, outputDocType);
+        if (!rendered.isPresent()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        EntityTag etag = new EntityTag(rendered.get().etag());
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return stale(notModified, documentName).header(INDEX_HEADER, rendered.get().index()).build();
+        }
+        return stale(Response.ok(rendered.get().bytes()), documentName).tag(etag)
+              .header(INDEX_HEADER, rendered.get().index()).build();
     }
 
-    private File writeDocumentToFile(String format, ConfigGenerator configGenerator, Document document) throws IOException {
-        DocumentType outputDocType = "json".equals(format) ? DocumentType.JSON : DocumentType.YAML;
-        return configGenerator.generateToTmpFile(document, outputDocType);
+    private Response.ResponseBuilder stale(Response.ResponseBuilder response, String documentName) {
+        long staleness = renderer.stalenessMillis(documentName);
+        return staleness > 0 ? response.header(STALENESS_HEADER, staleness) : response;
     }
 
 }
@@ -0,0 +1,260 @@
+package com.cvent.kvstore.resources;
+
+import com.cvent.kvstore.ConfigRenderer;
+import com.cvent.kvstore.ConfigWatchHub;
+import com.cvent.kvstore.DocumentType;
+import com.cvent.kvstore.RenderedConfig;
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Long-polls for config changes: GET /config-gen/{document}/{region}?index=N&wait=30s
+ *
+ * Like a Consul blocking query, the request returns once the rendered config differs from the one the
+ * client has (its If-None-Match, or else the render at index N) or once the wait elapses.
+ * Waiting requests are suspended (servlet async) rather than holding a Jetty thread each;
+ * ConfigWatchHub wakes them when the document's hierarchy changes.
+ *
+ * Requests without an index parameter are passed on to ConfigGenResource.
+ */
+public class ConfigWatchFilter implements Filter {
+   private static final Logger LOG = LoggerFactory.getLogger(ConfigWatchFilter.class);
+   private static final Pattern PATH = Pattern.compile("^/config-gen/([^/]+)/([^/]+)/?$");
+   private static final long DEFAULT_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+   private static final long MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+   private final ConfigRenderer renderer;
+   private final ConfigWatchHub hub;
+
+   public ConfigWatchFilter(ConfigRenderer renderer, ConfigWatchHub hub) {
+      this.renderer = renderer;
+      this.hub = hub;
+   }
+
+   @Override
+   public void init(FilterConfig filterConfig) {
+   }
+
+   @Override
+   public void destroy() {
+   }
+
+   @Override
+   public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
+      HttpServletRequest request = (HttpServletRequest) req;
+      String index = request.getParameter("index");
+      Matcher matcher = PATH.matcher(request.getRequestURI().substring(request.getContextPath().length()));
+      if (index == null || !"GET".equals(request.getMethod()) || !matcher.matches()) {
+         chain.doFilter(req, resp);
+         return;
+      }
+
+      HttpServletResponse response = (HttpServletResponse) resp;
+      long lastIndex;
+      long waitMillis;
+      try {
+         lastIndex = Long.parseLong(index);
+         waitMillis = Math.min(parseWait(request.getParameter("wait")), MAX_WAIT_MILLIS);
+      } catch (IllegalArgumentException e) {
+         response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+         return;
+      }
+
+      Watch watch = new Watch(URLDecoder.decode(matcher.group(1), "UTF-8"), URLDecoder.decode(matcher.group(2), "UTF-8"),
+            "json".equals(request.getParameter("format")) ? DocumentType.JSON : DocumentType.YAML,
+            stripEtag(request.getHeader(HttpHeaders.IF_NONE_MATCH)));
+      Optional<RenderedConfig> current = watch.render();
+      if (!current.isPresent()) {
+         response.sendError(HttpServletResponse.SC_NOT_FOUND);
+         return;
+      }
+      if (watch.baseline == null) {
+         if (current.get().index() > lastIndex) {
+            // Changed since the client's index and we cannot tell what the client has
+            respond(response, watch.document, current, null);
+            return;
+         }
+         watch.baseline = current.get().etag();
+      }
+      if (!current.get().etag().equals(watch.baseline)) {
+         respond(response, watch.document, current, watch.baseline);
+         return;
+      }
+
+      watch.start(request.startAsync(), waitMillis, current.get().index());
+   }
+
+   // Accepts Consul style durations (30s, 5m) or plain seconds. As with Consul, a wait of 0 is the default wait;
+   // an async timeout of 0 or less would never time out, so negative waits are rejected.
+   private static long parseWait(String wait) {
+      if (wait == null || wait.isEmpty()) {
+         return DEFAULT_WAIT_MILLIS;
+      }
+      long waitMillis;
+      if (wait.endsWith("ms")) {
+         waitMillis = Long.parseLong(wait.substring(0, wait.length() - 2));
+      } else if (wait.endsWith("m")) {
+         waitMillis = TimeUnit.MINUTES.toMillis(Long.parseLong(wait.substring(0, wait.length() - 1)));
+      } else if (wait.endsWith("s")) {
+         waitMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(wait.substring(0, wait.length() - 1)));
+      } else {
+         waitMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(wait));
+      }
+      if (waitMillis < 0) {
+         throw new IllegalArgumentException("wait must not be negative: " + wait);
+      }
+      return waitMillis > 0 ? waitMillis : DEFAULT_WAIT_MILLIS;
+   }
+
+   private static String stripEtag(String etag) {
+      if (etag == null) {
+         return null;
+      }
+      String stripped = etag.startsWith("W/") ? etag.substring(2) : etag;
+      return stripped.length() > 1 && stripped.startsWith("\"") && stripped.endsWith("\"")
+            ? stripped.substring(1, stripped.length() - 1) : stripped;
+   }
+
+   private void respond(HttpServletResponse response, String document, Optional<RenderedConfig> rendered,
+                        String clientEtag) throws IOException {
+      if (!rendered.isPresent()) {
+         response.sendError(HttpServletResponse.SC_NOT_FOUND);
+         return;
+      }
+      long staleness = renderer.stalenessMillis(document);
+      if (staleness > 0) {
+         response.setHeader(ConfigGenResource.STALENESS_HEADER, String.valueOf(staleness));
+      }
+      response.setHeader(ConfigGenResource.INDEX_HEADER, String.valueOf(rendered.get().index()));
+      response.setHeader(HttpHeaders.ETAG, "\"" + rendered.get().etag() + "\"");
+      if (rendered.get().etag().equals(clientEtag)) {
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return;
+      }
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentLength(rendered.get().bytes().length);
+      response.getOutputStream().write(rendered.get().bytes());
+   }
+
+   // A suspended long-poll
+   private class Watch implements AsyncListener {
+      private final String document;
+      private final String region;
+      private final DocumentType docType;
+      private final String clientEtag;
+      private final AtomicBoolean done = new AtomicBoolean();
+      private String baseline;
+      private AsyncContext context;
+      private volatile Runnable cancel;
+
+      private Watch(String document, String region, DocumentType docType, String clientEtag) {
+         this.document = document;
+         this.region = region;
+         this.docType = docType;
+         this.clientEtag = clientEtag;
+         this.baseline = clientEtag;
+      }
+
+      private Optional<RenderedConfig> render() throws IOException {
+         return renderer.render(document, region, docType);
+      }
+
+      private void start(AsyncContext context, long waitMillis, long index) {
+         this.context = context;
+         context.setTimeout(waitMillis);
+         context.addListener(this);
+         context.getResponse().setContentType(docType == DocumentType.JSON ? MediaType.APPLICATION_JSON : "text/yaml");
+         await(index);
+      }
+
+      private void await(long index) {
+         cancel = hub.onChangeAfter(document, index, this::onChange);
+      }
+
+      private void onChange(long index) {
+         if (done.get()) {
+            return;
+         }
+         try {
+            Optional<RenderedConfig> rendered = render();
+            if (rendered.isPresent() && rendered.get().etag().equals(baseline)) {
+               // Something else in the document changed; keep waiting
+               await(rendered.get().index());
+            } else {
+               complete(rendered);
+            }
+         } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not render {}/{} for a watch", document, region, e);
+            fail();
+         }
+      }
+
+      private void complete(Optional<RenderedConfig> rendered) throws IOException {
+         if (done.compareAndSet(false, true)) {
+            try {
+               respond((HttpServletResponse) context.getResponse(), document, rendered, clientEtag);
+            } finally {
+               context.complete();
+            }
+         }
+      }
+
+      private void fail() {
+         if (done.compareAndSet(false, true)) {
+            ((HttpServletResponse) context.getResponse()).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            context.complete();
+         }
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+         if (cancel != null) {
+            cancel.run();
+         }
+         // Like Consul, a timed out wait returns the current state
+         try {
+            complete(render());
+         } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not render {}/{} for a watch", document, region, e);
+            fail();
+         }
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+         done.set(true);
+         if (cancel != null) {
+            cancel.run();
+         }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+   }
+}
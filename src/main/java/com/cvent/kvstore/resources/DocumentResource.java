@@ -1,14 +1,15 @@
 package com.cvent.kvstore.resources;
 
+import com.codahale.metrics.MetricRegistry;
 import com.cvent.kvstore.ConfigGenerator;
 import com.cvent.kvstore.Document;
 import com.cvent.kvstore.DocumentType;
+import com.cvent.kvstore.KVSStoreDao;
 import com.cvent.kvstore.KVStore;
 import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.KeyValue;
 import com.cvent.kvstore.SimpleKVStore;
 import com.cvent.kvstore.TemplateToDocument;
-import com.cvent.kvstore.consul.ConsulKVDaoEcwid;
-import com.cvent.kvstore.dw.ConsulKVStoreConfig;
 import com.google.common.base.Optional;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -26,12 +27,15 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -46,22 +50,26 @@ import java.util.Random;
 @Produces({MediaType.APPLICATION_JSON, "text/yaml"})
 public class DocumentResource {
 
-    private ConsulKVStoreConfig config;
+    private KVSStoreDao dao;
     private KVStore  docKVStore;
+    private MetricRegistry metrics;
 
-    public DocumentResource(ConsulKVStoreConfig config) {
-        this.config = config;
-        docKVStore = SimpleKVStore.documentStoreFor(new ConsulKVDaoEcwid(config));
+    public DocumentResource(KVSStoreDao dao, MetricRegistry metrics) {
+        this.dao = dao;
+        this.metrics = metrics;
+        docKVStore = SimpleKVStore.documentStoreFor(dao, metrics);
     }
 
     @POST
     @Path("/{name}")
     /**
-     * Can create a document by passing in the body a yaml or json file
+     * Can create a document by passing in the body a yaml or json file.
+     * With seedDefaults, the template's values are also written to the default region, typed as they are read.
      */
     public Response createDoc(@NotNull @PathParam("name") String name,
                               @NotNull @Body InputStream file,
                               @NotNull @NotEmpty @QueryParam("author") String author,
+                              @QueryParam("seedDefaults") boolean seedDefaults,
                               @NotNull @HeaderParam("Content-Type") String contentType) throws IOException, KVStoreException {
 
         if (docKVStore.getValueAt(name).isPresent()) {
@@ -77,8 +85,16 @@ public class DocumentResource {
         } else {
             docType = DocumentType.YAML;
         }
-        Document document = TemplateToDocument.from(file, docType);
+        // Read once: the keys and the values both come from it
+        byte[] template = IOUtils.toByteArray(file);
+        Document document = TemplateToDocument.from(new ByteArrayInputStream(template), docType);
         docKVStore.put(name, document.serialize(), author, true);
+        if (seedDefaults) {
+            List<KeyValue> values = new ArrayList<>();
+            TemplateToDocument.valuesFrom(new ByteArrayInputStream(template), docType)
+                  .forEach((key, value) -> values.add(KeyValue.from(key, value)));
+            SimpleKVStore.forDefaultRegion(name, dao, metrics).putAll(values, author, true);
+        }
         return Response.ok().build();
     }
 
@@ -107,8 +123,7 @@ public class DocumentResource {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
         Document document = Document.deserialize(serializedDoc.get());
-        ConfigGenerator configGenerator = new ConfigGenerator(SimpleKVStore.forRegion(name, region,
-              new ConsulKVDaoEcwid(config)));
+        ConfigGenerator configGenerator = new ConfigGenerator(SimpleKVStore.forRegion(name, region, dao, metrics), metrics);
 
         String stashRepoPath = "/Users/sviswanathan/work/projects/CentralConfig/centralconfigchanges";
         File out = new File(stashRepoPath,
@@ -0,0 +1,66 @@
+package com.cvent.kvstore.resources;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.RoundTrips;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records how many round trips to the store each request took, by resource:
+ *    com.cvent.kvstore.resources.RoundTripFilter.config-gen
+ * Long-polls that are suspended are counted for the work done before they were suspended.
+ */
+public class RoundTripFilter implements Filter {
+   private static final String OTHER = "other";
+
+   private final Map<String, Histogram> byResource = new HashMap<>();
+
+   /**
+    * @param metrics   the registry to register with
+    * @param resources the first segment of the path of each resource to count separately; other requests are
+    *                  counted together
+    */
+   public RoundTripFilter(MetricRegistry metrics, String... resources) {
+      for (String resource : resources) {
+         byResource.put(resource, metrics.histogram(MetricRegistry.name(RoundTripFilter.class, resource)));
+      }
+      byResource.put(OTHER, metrics.histogram(MetricRegistry.name(RoundTripFilter.class, OTHER)));
+   }
+
+   @Override
+   public void init(FilterConfig filterConfig) {
+   }
+
+   @Override
+   public void destroy() {
+   }
+
+   @Override
+   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+         throws IOException, ServletException {
+      RoundTrips.reset();
+      try {
+         chain.doFilter(request, response);
+      } finally {
+         histogramFor((HttpServletRequest) request).update(RoundTrips.count());
+      }
+   }
+
+   private Histogram histogramFor(HttpServletRequest request) {
+      String path = request.getRequestURI().substring(request.getContextPath().length());
+      int start = path.startsWith("/") ? 1 : 0;
+      int end = path.indexOf('/', start);
+      Histogram histogram = byResource.get(end < 0 ? path.substring(start) : path.substring(start, end));
+      return histogram != null ? histogram : byResource.get(OTHER);
+   }
+}
@@ -0,0 +1,139 @@
+package com.cvent.kvstore;
+
+import com.cvent.JsonSerializer;
+import com.cvent.kvstore.AuditIndex.AuditQuery;
+import com.cvent.kvstore.dw.AuditCompactionConfig;
+import com.cvent.kvstore.model.AuditLog;
+import com.google.common.io.BaseEncoding;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Compacts audit trails over a store that, like Consul, refuses values over 512KB
+ */
+public class AuditCompactorTest {
+   private static final int CONSUL_MAX_VALUE_BYTES = 512 * 1024;
+   private static final long START = 1455543012345L;
+   private static final long NOW = START + TimeUnit.DAYS.toMillis(31);
+
+   private final Random random = new Random(42);
+   private InMemoryKVDao store;
+   private AuditCompactor compactor;
+
+   @Before
+   public void setUp() {
+      store = new InMemoryKVDao();
+      KVSStoreDao consul = new FaultInjectingKVSStoreDao(store, 0, 0, 0) {
+         @Override
+         public void put(String key, String value) throws KVStoreException {
+            if (value.length() > CONSUL_MAX_VALUE_BYTES) {
+               throw KVStoreException.writeFailed(key, "Value exceeds 524288 byte limit");
+            }
+            if (key.startsWith(AuditSegments.segmentHierarchyForEntireDocument("broken"))) {
+               throw KVStoreException.writeFailed(key);
+            }
+            super.put(key, value);
+         }
+      };
+      compactor = new AuditCompactor(consul, new AuditCompactionConfig());
+   }
+
+   // Records revisions 1..count of a key, each changing it to a value of the given size that gzip cannot shrink
+   private void write(String document, String key, int count, int valueBytes) throws Exception {
+      for (int version = 1; version <= count; version++) {
+         byte[] bytes = new byte[valueBytes * 3 / 4];
+         random.nextBytes(bytes);
+         AuditLog log = new AuditLog(document, "ann", "alpha", key, null,
+               "\"" + BaseEncoding.base64().encode(bytes) + "\"", version);
+         log.setTimestamp(START + version);
+         String record = JsonSerializer.toJson(log);
+         store.put(KeyProvider.auditKeyForRevision(document, "alpha", key, version), record);
+         for (KeyValue entry : AuditIndex.entriesFor(log, record)) {
+            store.put(entry.key(), entry.value());
+         }
+      }
+   }
+
+   private List<Integer> versions(String document, String key) throws Exception {
+      List<Integer> versions = new ArrayList<>();
+      AuditSegments.readAll(store, document, "alpha", key).forEach(log -> versions.add(log.getVersion()));
+      return versions;
+   }
+
+   private boolean isLive(String document, String key, int version) {
+      return store.getValueAt(KeyProvider.auditKeyForRevision(document, "alpha", key, version)).isPresent();
+   }
+
+   @Test
+   public void testSegmentsFitInAValue() throws Exception {
+      // Some 1.5MB of old revisions in one key, and as much again in the hour of the index that holds them
+      write("auth", "cert", 40, 40 * 1024);
+      compactor.compact(NOW);
+
+      List<Integer> expected = new ArrayList<>();
+      for (int version = 1; version <= 40; version++) {
+         expected.add(version);
+         assertEquals(version == 40, isLive("auth", "cert", version));
+      }
+      assertEquals(expected, versions("auth", "cert"));
+      List<String> segments = new ArrayList<>(store.getKeysAt(
+            AuditSegments.segmentHierarchyFor("auth", "alpha", "cert")).get());
+      assertTrue(segments.toString(), segments.size() > 1);
+      for (String segment : segments) {
+         assertTrue(store.getValueAt(segment).get().length() <= AuditSegments.MAX_SEGMENT_BYTES);
+      }
+
+      AtomicInteger found = new AtomicInteger();
+      AuditIndex index = new AuditIndex(store);
+      index.find(AuditQuery.from(null, null, null, 0, Long.MAX_VALUE, null), 100, record -> found.incrementAndGet());
+      assertEquals(40, found.get());
+      for (String indexKey : store.getKeysAt(AuditIndex.allIndexes()).get()) {
+         assertTrue(indexKey, AuditIndex.isSegment(AuditIndex.bucketPrefixOf(indexKey), indexKey));
+         assertTrue(store.getValueAt(indexKey).get().length() <= AuditSegments.MAX_SEGMENT_BYTES);
+      }
+   }
+
+   @Test
+   public void testRecordsTooLargeForASegmentStayLive() throws Exception {
+      write("auth", "cert", 3, 300 * 1024);
+      write("auth", "port", 3, 16);
+      compactor.compact(NOW);
+
+      assertTrue(isLive("auth", "cert", 1));
+      assertTrue(isLive("auth", "cert", 2));
+      assertFalse(isLive("auth", "port", 1));
+      assertFalse(isLive("auth", "port", 2));
+      assertEquals(3, versions("auth", "cert").size());
+      assertEquals(3, versions("auth", "port").size());
+   }
+
+   @Test
+   public void testOneDocumentFailingLeavesTheRestToCompact() throws Exception {
+      write("auth", "port", 3, 16);
+      write("broken", "port", 3, 16);
+      write("pay", "port", 3, 16);
+      compactor.compact(NOW);
+
+      assertTrue(isLive("broken", "port", 1));
+      assertEquals(3, versions("broken", "port").size());
+      for (String document : new String[] {"auth", "pay"}) {
+         assertFalse(isLive(document, "port", 1));
+         assertFalse(isLive(document, "port", 2));
+         assertEquals(3, versions(document, "port").size());
+      }
+      // The indexes are compacted all the same
+      for (String indexKey : store.getKeysAt(AuditIndex.allIndexes()).get()) {
+         assertTrue(indexKey, AuditIndex.isSegment(AuditIndex.bucketPrefixOf(indexKey), indexKey));
+      }
+   }
+}
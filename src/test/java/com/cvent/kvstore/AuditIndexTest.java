@@ -0,0 +1,146 @@
+package com.cvent.kvstore;
+
+import com.cvent.JsonSerializer;
+import com.cvent.kvstore.AuditIndex.AuditQuery;
+import com.cvent.kvstore.model.AuditLog;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Queries the audit indexes over records a few hours and a few years apart
+ */
+public class AuditIndexTest {
+   private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+   private static final long START = 1455543012345L;
+
+   private InMemoryKVDao store;
+   // Counts the buckets read
+   private AtomicInteger hierarchyReads;
+   private AuditIndex index;
+
+   @Before
+   public void setUp() throws Exception {
+      store = new InMemoryKVDao();
+      hierarchyReads = new AtomicInteger();
+      index = new AuditIndex(new FaultInjectingKVSStoreDao(store, 0, 0, 0) {
+         @Override
+         public Map<String, String> getHierarchyAsMap(String key, Function<String, String> keyTransform) {
+            hierarchyReads.incrementAndGet();
+            return super.getHierarchyAsMap(key, keyTransform);
+         }
+      });
+      write("auth", "alpha", "ann", START, 1);
+      write("auth", "beta", "bob", START + 1, 1);
+      write("auth", "alpha", "bob", START + 2 * HOUR, 2);
+      write("pay", "alpha", "ann", START + 2 * HOUR + 1, 1);
+      write("auth", "alpha", "ann", START + TimeUnit.DAYS.toMillis(3 * 365), 3);
+   }
+
+   private void write(String document, String region, String author, long timestamp, int version) throws Exception {
+      AuditLog log = new AuditLog(document, author, region, "server/port", "\"1\"", "\"2\"", version);
+      log.setTimestamp(timestamp);
+      String record = JsonSerializer.toJson(log);
+      for (KeyValue entry : AuditIndex.entriesFor(log, record)) {
+         store.put(entry.key(), entry.value());
+      }
+   }
+
+   // Each record as document/region/author@time
+   private List<String> find(AuditQuery query, int limit, List<String> cursors) throws Exception {
+      List<String> found = new ArrayList<>();
+      String cursor = index.find(query, limit, record -> {
+         AuditLog log = JsonSerializer.fromJson(record, AuditLog.class);
+         found.add(log.getDocument() + "/" + log.getRegion() + "/" + log.getAuthor() + "@"
+               + (log.getTimestamp() - START));
+      });
+      cursors.add(cursor);
+      return found;
+   }
+
+   private List<String> findAll(String document, String region, String author, long since, long until)
+         throws Exception {
+      List<String> cursors = new ArrayList<>();
+      return find(AuditQuery.from(document, region, author, since, until, null), 100, cursors);
+   }
+
+   @Test
+   public void testLongRangeReadsOnlyBucketsThatExist() throws Exception {
+      assertEquals(Arrays.asList("auth/alpha/ann@0", "auth/beta/bob@1", "auth/alpha/bob@" + 2 * HOUR,
+            "pay/alpha/ann@" + (2 * HOUR + 1), "auth/alpha/ann@" + TimeUnit.DAYS.toMillis(3 * 365)),
+            findAll(null, null, null, 0, Long.MAX_VALUE));
+      // Three hours had changes, out of some 26,000 in the range
+      assertEquals(3, hierarchyReads.get());
+   }
+
+   @Test
+   public void testEachIndexMatchesTheQuery() throws Exception {
+      // The region index
+      assertEquals(Arrays.asList("auth/alpha/ann@0", "auth/alpha/bob@" + 2 * HOUR,
+            "auth/alpha/ann@" + TimeUnit.DAYS.toMillis(3 * 365)), findAll("auth", "alpha", null, 0, Long.MAX_VALUE));
+      // The region index, with the author checked in the record
+      assertEquals(Arrays.asList("auth/alpha/bob@" + 2 * HOUR), findAll("auth", "alpha", "bob", 0, Long.MAX_VALUE));
+      // The author index
+      assertEquals(Arrays.asList("auth/alpha/ann@0", "pay/alpha/ann@" + (2 * HOUR + 1),
+            "auth/alpha/ann@" + TimeUnit.DAYS.toMillis(3 * 365)), findAll(null, null, "ann", 0, Long.MAX_VALUE));
+      // The author index, with the document checked in the entry
+      assertEquals(Arrays.asList("pay/alpha/ann@" + (2 * HOUR + 1)), findAll("pay", null, "ann", 0, Long.MAX_VALUE));
+      // The time index, with the region checked in the entry
+      assertEquals(Arrays.asList("auth/beta/bob@1"), findAll(null, "beta", null, 0, Long.MAX_VALUE));
+      // Since is inclusive, until exclusive, to the millisecond within a bucket
+      assertEquals(Arrays.asList("auth/beta/bob@1", "auth/alpha/bob@" + 2 * HOUR),
+            findAll(null, null, null, START + 1, START + 2 * HOUR + 1));
+   }
+
+   @Test
+   public void testAuthorsNeedNoEscapingAndIgnoreCase() throws Exception {
+      write("auth", "alpha", "John Smith", START + 3, 2);
+      for (String key : store.getKeysAt("auditindex/author/").get()) {
+         // Keys go into Consul URLs as they are
+         assertTrue(key, key.matches("[A-Za-z0-9/_.-]+"));
+      }
+      assertEquals(Arrays.asList("auth/alpha/John Smith@3"), findAll(null, null, "john smith", 0, Long.MAX_VALUE));
+      assertEquals(Arrays.asList("auth/alpha/John Smith@3"), findAll("auth", "alpha", "JOHN SMITH", 0, Long.MAX_VALUE));
+      assertEquals(Arrays.asList("auth/alpha/ann@0", "pay/alpha/ann@" + (2 * HOUR + 1),
+            "auth/alpha/ann@" + TimeUnit.DAYS.toMillis(3 * 365)), findAll(null, null, "Ann", 0, Long.MAX_VALUE));
+   }
+
+   @Test
+   public void testCursors() throws Exception {
+      List<String> all = findAll(null, null, null, 0, Long.MAX_VALUE);
+      List<String> paged = new ArrayList<>();
+      List<String> cursors = new ArrayList<>();
+      String cursor = null;
+      do {
+         paged.addAll(find(AuditQuery.from(null, null, null, 0, Long.MAX_VALUE, cursor), 2, cursors));
+         cursor = cursors.get(cursors.size() - 1);
+      } while (cursor != null);
+      assertEquals(all, paged);
+      assertEquals(3, cursors.size());
+
+      // A page ends where it fills up
+      hierarchyReads.set(0);
+      find(AuditQuery.from(null, null, null, 0, Long.MAX_VALUE, null), 1, cursors);
+      assertEquals(1, hierarchyReads.get());
+
+      try {
+         AuditQuery.from("auth", "alpha", null, 0, Long.MAX_VALUE, cursors.get(0));
+         fail("A cursor from another index");
+      } catch (IllegalArgumentException e) {
+         // Expected
+      }
+      assertNull(index.find(AuditQuery.from(null, null, "nobody", 0, Long.MAX_VALUE, null), 10, record -> fail()));
+   }
+}
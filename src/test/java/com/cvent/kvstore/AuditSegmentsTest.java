@@ -0,0 +1,61 @@
+package com.cvent.kvstore;
+
+import com.cvent.kvstore.model.AuditLog;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tests AuditSegments
+ */
+public class AuditSegmentsTest {
+
+   private static AuditLog log(int version, long timestamp, String oldValue, String newValue) {
+      AuditLog log = new AuditLog("auth", "sabari", "alpha", "server/port", oldValue, newValue, version);
+      log.setTimestamp(timestamp);
+      return log;
+   }
+
+   @Test
+   public void testRecordsRoundTrip() throws IOException {
+      List<AuditLog> logs = new ArrayList<>();
+      logs.add(log(1, 1455543012345L, null, "8080"));
+      logs.add(log(2, 1455543012399L, "8080", "\"ünïcode\""));
+
+      String segmentKey = AuditSegments.segmentKeyFor(logs);
+      TestCase.assertEquals("auditsegment/auth/alpha/server/port/1-2-1455543012399", segmentKey);
+      TestCase.assertEquals(1455543012399L, AuditSegments.lastTimestampOf(segmentKey));
+      TestCase.assertTrue(AuditSegments.isSegmentOf(
+            AuditSegments.segmentHierarchyFor("auth", "alpha", "server/port"), segmentKey));
+      TestCase.assertFalse(AuditSegments.isSegmentOf(
+            AuditSegments.segmentHierarchyFor("auth", "alpha", "server"), segmentKey));
+
+      List<AuditLog> decoded = AuditSegments.decode(AuditSegments.encode(logs), "auth", "alpha", "server/port");
+      TestCase.assertEquals(2, decoded.size());
+      TestCase.assertNull(decoded.get(0).getOldValue());
+      TestCase.assertEquals(2, decoded.get(1).getVersion());
+      TestCase.assertEquals(1455543012399L, decoded.get(1).getTimestamp());
+      TestCase.assertEquals("sabari", decoded.get(1).getAuthor());
+      TestCase.assertEquals("8080", decoded.get(1).getOldValue());
+      TestCase.assertEquals("\"ünïcode\"", decoded.get(1).getNewValue());
+   }
+
+   @Test
+   public void testIndexEntriesRoundTrip() throws IOException {
+      SortedMap<String, String> entries = new TreeMap<>();
+      entries.put("1455543012345/server/port/1", "{\"version\":1}");
+      entries.put("1455543012399/server/port/2", "{\"version\":2}");
+
+      TestCase.assertEquals(entries, AuditSegments.decodeEntries(AuditSegments.encodeEntries(entries)));
+      TestCase.assertEquals("auditindex/time/2016021513/segment-1455543012345-1455543012399-2",
+            AuditIndex.segmentKeyFor("auditindex/time/2016021513/", entries));
+      TestCase.assertEquals("auditindex/region/auth/alpha/2016021513/",
+            AuditIndex.bucketPrefixOf("auditindex/region/auth/alpha/2016021513/1455543012345/server/port/1"));
+      TestCase.assertEquals(1455541200000L, AuditIndex.bucketStart("auditindex/time/2016021513/"));
+   }
+}
@@ -1,10 +1,100 @@
 package com.cvent.kvstore;
 
+import com.codahale.metrics.MetricRegistry;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  * Tests ConfigGenerator
  * Created by sviswanathan on 2/14/16.
  */
 public class ConfigGeneratorTest {
 
+   private static String generate(Map<String, String> region, DocumentType docType, String... keys)
+         throws IOException {
+      KVStore kvStore = Mockito.mock(KVStore.class);
+      Mockito.when(kvStore.scanEntireRegion()).thenAnswer(invocation -> KVScan.of(new TreeMap<>(region)));
+      Document document = Document.from(new HashSet<>(Arrays.asList(keys)));
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      new ConfigGenerator(kvStore, new MetricRegistry()).generate(document, docType, os);
+      return os.toString("UTF-8");
+   }
+
+   @Test
+   public void testObjectsAndArrays() throws IOException {
+      Map<String, String> region = new HashMap<>();
+      region.put("server/applicationConnectors/...0/type", "\"http\"");
+      region.put("server/applicationConnectors/...0/port", "8080");
+      region.put("server/applicationConnectors/...1/type", "\"https\"");
+      region.put("server/applicationConnectors/...1/port", "8443");
+      region.put("server/gzip/enabled", "false");
+      region.put("logging/level", "\"INFO\"");
+      region.put("logging/appenders/...0/...0", "\"console\"");
+      region.put("logging/appenders/...0/...1", "\"file\"");
+      region.put("metrics/frequency", "\"1m\"");
+
+      TestCase.assertEquals("{\"logging\":{\"appenders\":[[\"console\",\"file\"]],\"level\":\"INFO\"},"
+                  + "\"server\":{\"applicationConnectors\":[{\"port\":8080,\"type\":\"http\"},{\"port\":8443,\"type\":\"https\"}],"
+                  + "\"gzip\":{\"enabled\":false}}}",
+            generate(region, DocumentType.JSON, "server", "logging"));
+   }
+
+   @Test
+   public void testKeysStopShortOfLeaves() throws IOException {
+      Map<String, String> region = new HashMap<>();
+      region.put("a/b/c", "1");
+      region.put("a/b/d", "2");
+      region.put("a/e", "3");
+      region.put("f", "4");
+
+      TestCase.assertEquals("{\"a\":{\"b\":{\"c\":1,\"d\":2}}}", generate(region, DocumentType.JSON, "a/b"));
+   }
+
+   @Test
+   public void testRootArray() throws IOException {
+      Map<String, String> region = new HashMap<>();
+      region.put("...0/name", "\"x\"");
+      region.put("...1/name", "\"y\"");
+
+      TestCase.assertEquals("[{\"name\":\"x\"},{\"name\":\"y\"}]", generate(region, DocumentType.JSON, "...0", "...1"));
+   }
+
+   @Test
+   public void testValuesAreWrittenAsStored() throws IOException {
+      Map<String, String> region = new HashMap<>();
+      region.put("long", "9007199254740993");
+      region.put("decimal", "0.1000000000000000055511151231257827");
+      region.put("nothing", "null");
+      region.put("flag", "true");
+
+      TestCase.assertEquals("{\"decimal\":0.1000000000000000055511151231257827,\"flag\":true,"
+                  + "\"long\":9007199254740993,\"nothing\":null}",
+            generate(region, DocumentType.JSON, "long", "decimal", "nothing", "flag"));
+   }
+
+   @Test
+   public void testEmpty() throws IOException {
+      TestCase.assertEquals("{}", generate(new HashMap<>(), DocumentType.JSON, "a"));
+   }
+
+   @Test
+   public void testYaml() throws IOException {
+      Map<String, String> region = new HashMap<>();
+      region.put("server/ports/...0", "8080");
+      region.put("server/name", "\"s\"");
 
+      String yaml = generate(region, DocumentType.YAML, "server");
+      TestCase.assertTrue(yaml, yaml.contains("server:"));
+      TestCase.assertTrue(yaml, yaml.contains("name: \"s\""));
+      TestCase.assertTrue(yaml, yaml.contains("- 8080"));
+   }
 }
@@ -0,0 +1,188 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Renders through the render cache, with and without a watch hub, counting the reads renders make
+ */
+public class ConfigRendererTest {
+   private static final String AUTHOR = "sabari";
+
+   private InMemoryKVDao dao;
+   private CountingKVDao counted;
+   private MetricRegistry metrics;
+   private KVStore alpha;
+   private ConfigWatchHub hub;
+
+   @Before
+   public void setUp() throws Exception {
+      dao = new InMemoryKVDao();
+      counted = new CountingKVDao(dao);
+      metrics = new MetricRegistry();
+      SimpleKVStore.documentStoreFor(dao, metrics)
+            .put("auth", Document.from(new HashSet<>(Arrays.asList("server"))).serialize(), AUTHOR, true);
+      SimpleKVStore.forDefaultRegion("auth", dao, metrics).put("server/port", "8080", AUTHOR, true);
+      alpha = SimpleKVStore.forRegion("auth", "alpha", dao, metrics);
+      hub = new ConfigWatchHub(dao, 30);
+      hub.start();
+   }
+
+   @After
+   public void tearDown() {
+      hub.stop();
+   }
+
+   private ConfigRenderer renderer(ConfigWatchHub watchHub) {
+      return new ConfigRenderer(counted, new RenderCache(1024 * 1024, metrics), watchHub, metrics);
+   }
+
+   private RenderedConfig render(ConfigRenderer renderer) throws Exception {
+      return renderer.render("auth", "alpha", DocumentType.JSON).get();
+   }
+
+   // Waits for the hub to have read the document as it is in the store
+   private void awaitWatch() throws InterruptedException {
+      hub.watch("auth");
+      long deadline = System.currentTimeMillis() + 5000;
+      while (System.currentTimeMillis() < deadline) {
+         Optional<ConfigWatchHub.Indexes> indexes = hub.indexesOf("auth");
+         if (indexes.isPresent() && indexes.get().documentIndex == dao.modifyIndexAt(KeyProvider.documentKeyFor("auth"))
+               && indexes.get().regionIndex == dao.modifyIndexAt(KeyProvider.keyForEntireDocument("auth"))) {
+            return;
+         }
+         Thread.sleep(5);
+      }
+   }
+
+   @Test
+   public void testCachedRendersReadNothingWithAWatch() throws Exception {
+      ConfigRenderer renderer = renderer(hub);
+      awaitWatch();
+      RenderedConfig first = render(renderer);
+      assertTrue(counted.reads.get() > 0);
+
+      counted.reads.set(0);
+      RenderedConfig second = render(renderer);
+      assertEquals(0, counted.reads.get());
+      assertEquals(first.etag(), second.etag());
+      assertEquals(1, metrics.meter(MetricRegistry.name(RenderCache.class, "hits")).getCount());
+      assertEquals(1, metrics.meter(MetricRegistry.name(RenderCache.class, "misses")).getCount());
+   }
+
+   @Test
+   public void testChangesAreRenderedOnceTheWatchHearsOfThem() throws Exception {
+      ConfigRenderer renderer = renderer(hub);
+      awaitWatch();
+      RenderedConfig before = render(renderer);
+
+      alpha.put("server/port", "9090", AUTHOR, true);
+      awaitWatch();
+      RenderedConfig after = render(renderer);
+      assertFalse(before.etag().equals(after.etag()));
+      assertTrue(new String(after.bytes(), StandardCharsets.UTF_8).contains("9090"));
+      assertEquals(dao.modifyIndexAt(KeyProvider.keyForEntireDocument("auth")), after.index());
+   }
+
+   @Test
+   public void testWithoutAWatchOnlyTheIndexesAreRead() throws Exception {
+      ConfigRenderer renderer = renderer(null);
+      RenderedConfig first = render(renderer);
+      counted.reads.set(0);
+      assertEquals(first.etag(), render(renderer).etag());
+      // The document, to tell that it exists, its index and its regions' index
+      assertEquals(3, counted.reads.get());
+   }
+
+   @Test
+   public void testFailingWatchesFallBackToReadingIndexes() throws Exception {
+      ConfigWatchHub failing = new ConfigWatchHub(new FaultInjectingKVSStoreDao(dao, 0, 0, 1), 30);
+      try {
+         ConfigRenderer renderer = renderer(failing);
+         RenderedConfig first = render(renderer);
+         alpha.put("server/port", "9090", AUTHOR, true);
+         RenderedConfig after = render(renderer);
+         assertFalse(first.etag().equals(after.etag()));
+      } finally {
+         failing.stop();
+      }
+   }
+
+   @Test
+   public void testAbsentDocumentsAreNotWatched() throws Exception {
+      Set<String> watched = ConcurrentHashMap.newKeySet();
+      ConfigWatchHub watching = new ConfigWatchHub(new FaultInjectingKVSStoreDao(dao, 0, 0, 0) {
+         @Override
+         public VersionedHierarchy getHierarchyAfter(String key, long index, long waitSeconds) {
+            watched.add(key);
+            return super.getHierarchyAfter(key, index, waitSeconds);
+         }
+      }, 30);
+      try {
+         ConfigRenderer renderer = renderer(watching);
+         for (ConfigRenderer each : Arrays.asList(renderer, new ConfigRenderer(counted, null, null, metrics))) {
+            counted.reads.set(0);
+            assertFalse(each.render("billing", "alpha", DocumentType.JSON).isPresent());
+            // Only the document is read
+            assertEquals(1, counted.reads.get());
+         }
+         renderer.render("auth", "alpha", DocumentType.JSON);
+         long deadline = System.currentTimeMillis() + 5000;
+         while (watched.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+         }
+         assertEquals(new HashSet<>(Arrays.asList(KeyProvider.documentKeyFor("auth"),
+               KeyProvider.keyForEntireDocument("auth"))), watched);
+      } finally {
+         watching.stop();
+      }
+   }
+
+   /**
+    * Counts the reads made through it
+    */
+   private static class CountingKVDao extends FaultInjectingKVSStoreDao {
+      private final AtomicInteger reads = new AtomicInteger();
+
+      private CountingKVDao(KVSStoreDao dao) {
+         super(dao, 0, 0, 0);
+      }
+
+      @Override
+      public Optional<String> getValueAt(String key) {
+         reads.incrementAndGet();
+         return super.getValueAt(key);
+      }
+
+      @Override
+      public KVScan scan(String prefix) {
+         reads.incrementAndGet();
+         return super.scan(prefix);
+      }
+
+      @Override
+      public long modifyIndexAt(String key) {
+         reads.incrementAndGet();
+         return super.modifyIndexAt(key);
+      }
+
+      @Override
+      public KVSStoreDao withConsistency(ReadConsistency consistency) {
+         return this;
+      }
+   }
+}
@@ -0,0 +1,112 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Watches documents in an in-memory store
+ */
+public class ConfigWatchHubTest {
+   private static final String AUTHOR = "sabari";
+
+   private InMemoryKVDao dao;
+   private ConfigWatchHub hub;
+   private KVStore documents;
+   private KVStore defaults;
+   // Indexes passed to callbacks
+   private BlockingQueue<Long> changes;
+
+   @Before
+   public void setUp() throws Exception {
+      dao = new InMemoryKVDao();
+      MetricRegistry metrics = new MetricRegistry();
+      documents = SimpleKVStore.documentStoreFor(dao, metrics);
+      defaults = SimpleKVStore.forDefaultRegion("auth", dao, metrics);
+      documents.put("auth", Document.from(new HashSet<>(Arrays.asList("server"))).serialize(), AUTHOR, true);
+      defaults.put("server/port", "8080", AUTHOR, true);
+      hub = new ConfigWatchHub(dao, 30);
+      hub.start();
+      changes = new ArrayBlockingQueue<>(10);
+   }
+
+   @After
+   public void tearDown() {
+      hub.stop();
+   }
+
+   private long documentIndex() {
+      return Math.max(dao.modifyIndexAt(KeyProvider.documentKeyFor("auth")),
+            dao.modifyIndexAt(KeyProvider.keyForEntireDocument("auth")));
+   }
+
+   @Test
+   public void testRegionChangesWakeWaiters() throws Exception {
+      long index = documentIndex();
+      hub.onChangeAfter("auth", index, changes::add);
+      defaults.put("server/port", "8081", AUTHOR, true);
+      Long changed = changes.poll(5, TimeUnit.SECONDS);
+      assertEquals(Long.valueOf(documentIndex()), changed);
+      assertTrue(changed > index);
+   }
+
+   @Test
+   public void testDefinitionChangesWakeWaiters() throws Exception {
+      long index = documentIndex();
+      hub.onChangeAfter("auth", index, changes::add);
+      documents.put("auth", Document.from(new HashSet<>(Arrays.asList("server", "db"))).serialize(), AUTHOR, true);
+      Long changed = changes.poll(5, TimeUnit.SECONDS);
+      assertEquals(Long.valueOf(dao.modifyIndexAt(KeyProvider.documentKeyFor("auth"))), changed);
+   }
+
+   @Test
+   public void testWaitersBehindAreCalledBackAtOnce() throws Exception {
+      hub.onChangeAfter("auth", 1, changes::add);
+      assertEquals(Long.valueOf(documentIndex()), changes.poll(5, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testCancelledWaitersAreNotCalledBack() throws Exception {
+      long index = documentIndex();
+      hub.onChangeAfter("auth", index, changes::add).run();
+      hub.onChangeAfter("auth", index, changes::add);
+      defaults.put("server/port", "8081", AUTHOR, true);
+      assertEquals(Long.valueOf(documentIndex()), changes.poll(5, TimeUnit.SECONDS));
+      assertNull(changes.poll(100, TimeUnit.MILLISECONDS));
+   }
+
+   @Test
+   public void testDeletedDocumentsAreDropped() throws Exception {
+      hub.watch("auth");
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!hub.indexesOf("auth").isPresent() && System.currentTimeMillis() < deadline) {
+         Thread.sleep(5);
+      }
+      assertTrue(hub.indexesOf("auth").isPresent());
+      hub.onChangeAfter("auth", Long.MAX_VALUE, changes::add);
+      dao.deleteKey(KeyProvider.documentKeyFor("auth"));
+
+      // Waiters are called back, whatever index they wait for
+      assertTrue(changes.poll(5, TimeUnit.SECONDS) != null);
+      assertFalse(hub.indexesOf("auth").isPresent());
+   }
+
+   @Test
+   public void testWatchesOfDocumentsThatDoNotExistAreDropped() throws Exception {
+      hub.onChangeAfter("billing", Long.MAX_VALUE, changes::add);
+      assertTrue(changes.poll(5, TimeUnit.SECONDS) != null);
+      assertFalse(hub.indexesOf("billing").isPresent());
+   }
+}
@@ -1,31 +1,36 @@
 package com.cvent.kvstore;
 
-import com.cvent.kvstore.consul.ConsulKVDaoEcwid;
-import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.JsonSerializer;
+import com.cvent.kvstore.model.AuditLog;
+import com.ecwid.consul.transport.TransportException;
 import junit.framework.TestCase;
 import org.junit.Before;
 import org.junit.BeforeClass;
-import org.junit.Ignore;
 import org.junit.Test;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
- * Test for ConsulKVStore
+ * Test for SimpleKVStore, against an in-memory store
  * Created by sviswanathan on 2/10/16.
  */
-@Ignore
 public class KVStoreTest {
-   private static ConsulKVStoreConfig config;
    private static KVSStoreDao dao;
    private static KVStore defaultKVStore;
    private static KVStore kvStore;
@@ -33,27 +38,26 @@ public class KVStoreTest {
    private static String region;
    private static String author;
    private static Random random = new Random();
+   private static MetricRegistry metrics = new MetricRegistry();
 
    @BeforeClass
    public static void setup() {
-      config = new ConsulKVStoreConfig();
-      config.setConsulEndpoint("dev-wiz-01:8500");
       region = "test-" + random.nextLong();
       document = "doc-" + random.nextLong();
-      dao = new ConsulKVDaoEcwid(config);
-      defaultKVStore = SimpleKVStore.forDefaultRegion(document, dao);
+      dao = new InMemoryKVDao();
+      defaultKVStore = SimpleKVStore.forDefaultRegion(document, dao, metrics);
       author = randomString("author-", "");
-      kvStore = SimpleKVStore.forRegion(document, region, dao);
+      kvStore = SimpleKVStore.forRegion(document, region, dao, metrics);
    }
 
    @Before
-   public void before() {
+   public void before() throws KVStoreException {
       defaultKVStore.destroy();
       kvStore.destroy();
    }
 
    //@After
-   public void teardown() {
+   public void teardown() throws KVStoreException {
       defaultKVStore.destroy();
       kvStore.destroy();
    }
@@ -63,7 +67,8 @@ public class KVStoreTest {
    }
 
    private static KeyValue randomKeyValue() {
-      return KeyValue.from(randomString("key", ""), randomString("val", ""));
+      // Values are stored as literals
+      return KeyValue.from(randomString("key", ""), randomString("\"val", "\""));
    }
 
    @Test
@@ -90,7 +95,7 @@ public class KVStoreTest {
       TestCase.assertEquals(kv1.value(), defaultKVStore.getValueAt(kv1.key()).get());
 
       // Insert different value into actual region without forcing (should be no-op)
-      KeyValue kv2 = KeyValue.from(kv1.key(), randomString("val", ""));
+      KeyValue kv2 = KeyValue.from(kv1.key(), randomString("\"val", "\""));
       kvStore.put(kv2, "sabari", false);
       TestCase.assertEquals(kv2.value(), kvStore.getValueAt(kv1.key()).get());
       TestCase.assertEquals(kv1.value(), defaultKVStore.getValueAt(kv1.key()).get());
@@ -101,6 +106,13 @@ public class KVStoreTest {
       TestCase.assertFalse(defaultKVStore.getValueAt(kv1.key()).isPresent());
    }
 
+   @Test
+   public void testMetricsGoToTheGivenRegistry() throws KVStoreException {
+      MetricRegistry given = new MetricRegistry();
+      SimpleKVStore.forDefaultRegion(document, dao, given).put(randomKeyValue(), "sabari", false);
+      TestCase.assertEquals(1, given.timer(MetricRegistry.name(SimpleKVStore.class, "put", "write")).getCount());
+   }
+
    @Test
    public void testCanonical() throws IOException {
       Map<String, KVStore> kvStoreProvider = new HashMap<String, KVStore>() {{
@@ -132,6 +144,18 @@ public class KVStoreTest {
                   String expected = regionKVs.containsKey(k2) ? regionKVs.get(k2) : defaultKVs.get(k2);
                   TestCase.assertEquals(expected, actualHierarchy.get(k2));
                }
+
+               // Test scanHierarchyAt(): the same pairs, in key order
+               List<String> scanned = new ArrayList<>();
+               try (KVScan scan = kvStore.scanHierarchyAt(key)) {
+                  scan.forEachRemaining(kv -> {
+                     TestCase.assertEquals(actualHierarchy.get(kv.key()), kv.value());
+                     scanned.add(kv.key());
+                  });
+               }
+               List<String> sorted = new ArrayList<>(children);
+               Collections.sort(sorted);
+               TestCase.assertEquals(sorted, scanned);
             }
             hierarchiesTested.addAll(hierarchiesToTest);
          });
@@ -147,19 +171,22 @@ public class KVStoreTest {
       }};
       Map<String, Map<String, String>> keyValuesByRegion = createConicalData(kvStoreProvider, "canonical_doc.properties");
 
-      ConfigGenerator configGenerator = new ConfigGenerator(defaultKVStore);
-      Document document = TemplateToDocument.from(new File("/Users/sviswanathan/work/projects/CentralConfig/CentralConfig/canonical.json"));
-      configGenerator.generate(document, DocumentType.JSON, new FileOutputStream("/Users/sviswanathan/work/projects/CentralConfig/CentralConfig/testout.json"));
-      configGenerator.generate(document, DocumentType.YAML, new FileOutputStream("/Users/sviswanathan/work/projects/CentralConfig/CentralConfig/testout.yaml"));
+      Document document = Document.from(keyValuesByRegion.get(KVStore.DEFAULT_REGION).keySet());
+      ByteArrayOutputStream json = new ByteArrayOutputStream();
+      new ConfigGenerator(kvStore, metrics).generate(document, DocumentType.JSON, json);
+      TestCase.assertTrue(json.toString("UTF-8"), json.toString("UTF-8").contains("\"s1\":\"456\""));
+      ByteArrayOutputStream yaml = new ByteArrayOutputStream();
+      new ConfigGenerator(defaultKVStore, metrics).generate(document, DocumentType.YAML, yaml);
+      TestCase.assertTrue(yaml.toString("UTF-8"), yaml.toString("UTF-8").contains("s1: \"123\""));
    }
 
    @Test
    public void testConfigGeneratorAuth() throws IOException {
 
       String document = "auth";
-      KVStore defaultRegionKVStore = SimpleKVStore.forDefaultRegion(document, dao);
-      KVStore region1KVStore = SimpleKVStore.forRegion(document, "region1", dao);
-      KVStore p2KVStore = SimpleKVStore.forRegion(document, "p2", dao);
+      KVStore defaultRegionKVStore = SimpleKVStore.forDefaultRegion(document, dao, metrics);
+      KVStore region1KVStore = SimpleKVStore.forRegion(document, "region1", dao, metrics);
+      KVStore p2KVStore = SimpleKVStore.forRegion(document, "p2", dao, metrics);
       try {
          Map<String, KVStore> kvStoreProvider = new HashMap<String, KVStore>() {{
             put(KVStore.DEFAULT_REGION, defaultRegionKVStore);
@@ -178,6 +205,101 @@ public class KVStoreTest {
       }
    }
 
+   @Test
+   public void testConcurrentWritesGetTheirOwnRevisions() throws Exception {
+      KeyValue kv = randomKeyValue();
+      defaultKVStore.put(kv, author, false);
+      int writers = 8;
+      ExecutorService executor = Executors.newFixedThreadPool(writers);
+      try {
+         List<Future<Boolean>> writes = new ArrayList<>();
+         for (int n = 0; n < writers; n++) {
+            String value = "\"" + n + "\"";
+            writes.add(executor.submit(() -> kvStore.put(kv.key(), value, author, false)));
+         }
+         for (Future<Boolean> write : writes) {
+            TestCase.assertTrue(write.get());
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      List<Integer> versions = new ArrayList<>();
+      for (String record : dao.getHierarchyAsMap(
+            KeyProvider.auditHierarchyFor(document, region, kv.key()) + KVStore.HIERARCHY_SEPARATOR, null).values()) {
+         versions.add(JsonSerializer.fromJson(record, AuditLog.class).getVersion());
+      }
+      Collections.sort(versions);
+      List<Integer> expected = new ArrayList<>();
+      for (int n = 1; n <= writers; n++) {
+         expected.add(n);
+      }
+      TestCase.assertEquals(expected, versions);
+   }
+
+   @Test
+   public void testPartlyWrittenChangeset() throws Exception {
+      // The second transaction fails
+      AtomicInteger transactions = new AtomicInteger();
+      KVSStoreDao failingDao = new FaultInjectingKVSStoreDao(dao, 0, 0, 0) {
+         @Override
+         public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+            if (transactions.incrementAndGet() == 2) {
+               throw KVStoreException.writeFailed(keyValues.get(0).key());
+            }
+            return super.putAll(keyValues, expectedIndexes);
+         }
+      };
+      List<KeyValue> changes = new ArrayList<>();
+      for (int n = 0; n <= SimpleKVStore.KEYS_PER_TRANSACTION; n++) {
+         changes.add(randomKeyValue());
+      }
+      try {
+         SimpleKVStore.forDefaultRegion(document, failingDao, metrics).putAll(changes, author, false);
+         TestCase.fail("The second transaction should have failed");
+      } catch (KVStoreException e) {
+         TestCase.assertEquals(KVStoreException.Reason.WRITE_FAILED, e.getReason());
+         TestCase.assertEquals(SimpleKVStore.KEYS_PER_TRANSACTION, e.getWrittenKeys().size());
+         for (KeyValue change : changes) {
+            TestCase.assertEquals(e.getWrittenKeys().contains(change.key()),
+                  defaultKVStore.getValueAt(change.key()).isPresent());
+         }
+      }
+   }
+
+   @Test
+   public void testInjectedFailures() throws KVStoreException {
+      KVStore failing = SimpleKVStore.forDefaultRegion(document, new FaultInjectingKVSStoreDao(dao, 0, 0, 1), metrics);
+      KeyValue keyValue = randomKeyValue();
+      try {
+         failing.put(keyValue, author, false);
+         TestCase.fail("The write should have failed");
+      } catch (TransportException e) {
+         // A write reads the values it replaces first, and that read is what fails
+         TestCase.assertEquals("Injected failure", e.getCause().getMessage());
+      }
+      TestCase.assertFalse(defaultKVStore.getValueAt(keyValue.key()).isPresent());
+   }
+
+   @Test
+   public void testFailedWritesAreWriteFailures() {
+      KVStore failing = SimpleKVStore.forDefaultRegion(document, new FaultInjectingKVSStoreDao(dao, 0, 0, 0) {
+         @Override
+         public boolean putAll(List<KeyValue> keyValues, Map<String, Long> expectedIndexes) throws KVStoreException {
+            throw KVStoreException.writeFailed(keyValues.get(0).key(), "injected failure");
+         }
+      }, metrics);
+      KeyValue keyValue = randomKeyValue();
+      try {
+         failing.put(keyValue, author, false);
+         TestCase.fail("The write should have failed");
+      } catch (KVStoreException e) {
+         TestCase.assertEquals(KVStoreException.Reason.WRITE_FAILED, e.getReason());
+         TestCase.assertTrue(e.getWrittenKeys().isEmpty());
+      }
+      TestCase.assertFalse(defaultKVStore.getValueAt(keyValue.key()).isPresent());
+   }
+
    private Set<String> generateHierarchies(String key, Set<String> hierarchiesTested) {
       String[] parts = key.split(KVStore.HIERARCHY_SEPARATOR);
       StringBuilder sb = new StringBuilder(64);
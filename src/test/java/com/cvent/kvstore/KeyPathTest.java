@@ -0,0 +1,97 @@
+package com.cvent.kvstore;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests KeyPath
+ */
+public class KeyPathTest {
+
+   // The comparator KeyPath replaces
+   private static final Comparator<String> SPLIT_ORDER = (k1, k2) -> {
+      String[] parts1 = k1.split(KVStore.HIERARCHY_SEPARATOR);
+      String[] parts2 = k2.split(KVStore.HIERARCHY_SEPARATOR);
+      int n = -1;
+      while (++n < parts1.length && n < parts2.length) {
+         int c = parts1[n].compareTo(parts2[n]);
+         if (c != 0) {
+            return c;
+         }
+      }
+      return Integer.compare(parts1.length, parts2.length);
+   };
+
+   @Test
+   public void testSegments() {
+      KeyPath path = KeyPath.from("server/applicationConnectors/...0/port");
+      TestCase.assertEquals(4, path.segmentCount());
+      TestCase.assertEquals("server", path.segment(0));
+      TestCase.assertEquals("...0", path.segment(2));
+      TestCase.assertEquals("port", path.segment(3));
+      TestCase.assertTrue(path.segmentStartsWith(2, KVStore.ARRAY_PREFIX));
+      TestCase.assertFalse(path.segmentStartsWith(3, KVStore.ARRAY_PREFIX));
+      TestCase.assertEquals("", path.prefix(0));
+      TestCase.assertEquals("server/applicationConnectors", path.prefix(2));
+      TestCase.assertEquals(path.key(), path.prefix(4));
+   }
+
+   @Test
+   public void testLeadingAndTrailingSeparators() {
+      KeyPath path = KeyPath.from("/server/port/");
+      TestCase.assertEquals(3, path.segmentCount());
+      TestCase.assertEquals("", path.segment(0));
+      TestCase.assertEquals("/server", path.prefix(2));
+      TestCase.assertEquals(1, KeyPath.from("server").segmentCount());
+   }
+
+   @Test
+   public void testCommonSegments() {
+      KeyPath path = KeyPath.from("server/applicationConnectors/...0/port");
+      TestCase.assertEquals(2, path.commonSegments(KeyPath.from("server/applicationConnectors/...1/port")));
+      TestCase.assertEquals(1, path.commonSegments(KeyPath.from("server/application")));
+      TestCase.assertEquals(0, path.commonSegments(KeyPath.from("logging")));
+      TestCase.assertEquals(4, path.commonSegments(path));
+   }
+
+   @Test
+   public void testOrderMatchesSplitOrder() {
+      List<String> keys = new ArrayList<>(Arrays.asList("a", "a/b", "a/b/c", "ab", "a/ab", "a/b/...0", "a/b/...10",
+            "/a", "/a/b", "b", "a/b/c/", "a!/b", "a/b!"));
+      Random random = new Random(7);
+      for (int n = 0; n < 2000; n++) {
+         StringBuilder sb = new StringBuilder();
+         int segments = 1 + random.nextInt(4);
+         for (int s = 0; s < segments; s++) {
+            if (s > 0) sb.append('/');
+            // Keys made only of separators are not keys
+            int length = s == segments - 1 ? 1 + random.nextInt(2) : random.nextInt(3);
+            for (int c = 0; c < length; c++) {
+               sb.append("ab!.".charAt(random.nextInt(4)));
+            }
+         }
+         keys.add(sb.toString());
+      }
+
+      for (String k1 : keys) {
+         for (String k2 : keys.subList(0, 50)) {
+            TestCase.assertEquals(k1 + " vs " + k2, Integer.signum(SPLIT_ORDER.compare(k1, k2)),
+                  Integer.signum(KeyPath.compare(k1, k2)));
+            TestCase.assertEquals(k1 + " vs " + k2, Integer.signum(KeyPath.compare(k1, k2)),
+                  Integer.signum(KeyPath.from(k1).compareTo(KeyPath.from(k2))));
+         }
+      }
+
+      List<String> expected = new ArrayList<>(keys);
+      Collections.sort(expected, SPLIT_ORDER);
+      Collections.sort(keys, KeyPath.KEY_ORDER);
+      TestCase.assertEquals(expected, keys);
+   }
+}
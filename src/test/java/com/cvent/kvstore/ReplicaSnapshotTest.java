@@ -0,0 +1,89 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.ecwid.consul.transport.TransportException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Saves a replica and a render cache, and restores them into a service whose store is unreachable
+ */
+public class ReplicaSnapshotTest {
+   private static final RenderCache.Key RENDER = RenderCache.Key.from("doc", "r", DocumentType.YAML, 1, 2);
+
+   private InMemoryKVDao store;
+   private Path path;
+
+   @Before
+   public void setUp() throws Exception {
+      store = new InMemoryKVDao();
+      store.put("document/doc", "\"d\"");
+      store.put("doc/default/x", "\"1\"");
+      store.put("doc/r/x", "\"2\"");
+      store.put("audit/doc/1", "\"a\"");
+      path = Files.createTempDirectory("snapshot").resolve("replica.snapshot");
+   }
+
+   @Test
+   public void testRestoreWhileStoreIsDown() throws Exception {
+      ReplicatedKVSStoreDao replica = new ReplicatedKVSStoreDao(store, 1, 0);
+      replica.getValueAt("document/doc");
+      replica.getValueAt("doc/default/x");
+      replica.getValueAt("audit/doc/1");
+      RenderCache renderCache = new RenderCache(1024 * 1024, new MetricRegistry());
+      renderCache.put(RENDER, RenderedConfig.from("x: 2\n".getBytes(StandardCharsets.UTF_8), 2));
+      new ReplicaSnapshot(path, 60, replica, renderCache).write();
+
+      // Every call to the store fails, and the replica has no slack before it calls it
+      ReplicatedKVSStoreDao restored = new ReplicatedKVSStoreDao(new FaultInjectingKVSStoreDao(store, 0, 0, 1), 0, 0);
+      RenderCache restoredCache = new RenderCache(1024 * 1024, new MetricRegistry());
+      assertTrue(new ReplicaSnapshot(path, 60, restored, restoredCache).restore());
+      restored.start();
+      try {
+         assertEquals("\"d\"", restored.getValueAt("document/doc").get());
+         assertEquals(2, restored.getHierarchyAsMap("doc/", null).size());
+         assertEquals(restored.modifyIndexAt("doc/"), store.modifyIndexAt("doc/"));
+         Thread.sleep(10);
+         assertTrue(restored.stalenessMillis("doc/r/x") > 0);
+         assertEquals("x: 2\n", new String(restoredCache.get(RENDER, () -> {
+            throw new AssertionError("Rendered again");
+         }).bytes(), StandardCharsets.UTF_8));
+
+         // Audit records are not saved
+         try {
+            restored.getValueAt("audit/doc/1");
+            fail();
+         } catch (TransportException e) {
+            // Expected
+         }
+      } finally {
+         restored.stop();
+      }
+   }
+
+   @Test
+   public void testCurrentReplicaIsNotStale() throws Exception {
+      ReplicatedKVSStoreDao replica = new ReplicatedKVSStoreDao(store, 1, 0);
+      assertEquals("\"1\"", replica.getValueAt("doc/default/x").get());
+      assertEquals(0, replica.stalenessMillis("doc/default/x"));
+      assertEquals(0, replica.stalenessMillis("other/x"));
+   }
+
+   @Test
+   public void testUnreadableSnapshot() throws Exception {
+      ReplicatedKVSStoreDao replica = new ReplicatedKVSStoreDao(store, 1, 0);
+      ReplicaSnapshot snapshot = new ReplicaSnapshot(path, 60, replica, null);
+      assertFalse(snapshot.restore());
+      Files.write(path, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+      assertFalse(snapshot.restore());
+   }
+}
@@ -0,0 +1,205 @@
+package com.cvent.kvstore;
+
+import com.ecwid.consul.transport.TransportException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Runs the replica over a store that can answer reads like a follower that has fallen behind
+ */
+public class ReplicatedKVSStoreDaoTest {
+   private FollowerKVDao store;
+   private ReplicatedKVSStoreDao replica;
+
+   @Before
+   public void setUp() throws Exception {
+      store = new FollowerKVDao();
+      store.put("doc/default/x", "\"1\"");
+      replica = new ReplicatedKVSStoreDao(store, 30, 5000);
+      replica.start();
+   }
+
+   @After
+   public void tearDown() {
+      replica.stop();
+   }
+
+   @Test
+   public void testWatchAppliesWritesMadeElsewhere() throws Exception {
+      assertEquals("\"1\"", replica.getValueAt("doc/default/x").get());
+      store.put("doc/default/x", "\"2\"");
+      store.put("doc/region/y", "\"3\"");
+      long deadline = System.currentTimeMillis() + 5000;
+      while (replica.modifyIndexAt("doc/") < store.index() && System.currentTimeMillis() < deadline) {
+         Thread.sleep(5);
+      }
+      assertEquals("\"2\"", replica.getValueAt("doc/default/x").get());
+      assertEquals("\"3\"", replica.getValueAt("doc/region/y").get());
+   }
+
+   @Test
+   public void testWritesAreNotUndoneByStaleReads() throws Exception {
+      assertEquals("\"1\"", replica.getValueAt("doc/default/x").get());
+      // The follower is ahead of the replica, but behind the writes below
+      store.put("doc/region/z", "\"3\"");
+      store.lag("doc/");
+
+      writeWhileLagging(() -> replica.put("doc/default/x", "\"2\""));
+      // The writer reads its write, and renders keyed by the index are of it
+      assertEquals("\"2\"", replica.getValueAt("doc/default/x").get());
+      assertEquals("\"3\"", replica.getValueAt("doc/region/z").get());
+      assertEquals(store.modifyIndexAt("doc/"), replica.modifyIndexAt("doc/"));
+
+      store.lag("doc/");
+      writeWhileLagging(() -> replica.deleteKey("doc/default/x"));
+      assertFalse(replica.getValueAt("doc/default/x").isPresent());
+      assertEquals(store.modifyIndexAt("doc/"), replica.modifyIndexAt("doc/"));
+   }
+
+   @Test
+   public void testFailedLoadIsTriedAgain() throws Exception {
+      ReplicatedKVSStoreDao failing = new ReplicatedKVSStoreDao(new FaultInjectingKVSStoreDao(store, 0, 0, 1), 1, 0);
+      try {
+         failing.getValueAt("doc/default/x");
+         fail();
+      } catch (TransportException e) {
+         // Expected
+      }
+      assertTrue(failing.snapshot(prefix -> true).isEmpty());
+      assertEquals("\"1\"", new ReplicatedKVSStoreDao(store, 1, 0).getValueAt("doc/default/x").get());
+   }
+
+   @Test
+   public void testEachPartitionIsWatchedOnce() throws Exception {
+      ExecutorService readers = Executors.newFixedThreadPool(8);
+      try {
+         for (int i = 0; i < 64; i++) {
+            String partition = "p" + (i % 4) + "/";
+            readers.submit(() -> replica.getValueAt(partition + "x"));
+         }
+      } finally {
+         readers.shutdown();
+         readers.awaitTermination(5, TimeUnit.SECONDS);
+      }
+      // Let the watchers block
+      Thread.sleep(100);
+      for (Map.Entry<String, AtomicInteger> watches : store.watches.entrySet()) {
+         assertEquals(watches.getKey(), 1, watches.getValue().get());
+      }
+      // The partitions read and the documents partition
+      assertEquals(5, store.watches.size());
+   }
+
+   @Test
+   public void testChangesetsWaitOnceAndLeaveTheAuditTrailAlone() throws Exception {
+      assertEquals("\"1\"", replica.getValueAt("doc/default/x").get());
+      for (int batch = 0; batch < 10; batch++) {
+         replica.putAll(Arrays.asList(KeyValue.from("doc/default/k" + batch, "\"v\""),
+               KeyValue.from("audit/doc/default/k" + batch + "/1", "{}"),
+               KeyValue.from("auditindex/time/0/k" + batch, "{}")), Collections.emptyMap());
+      }
+      assertEquals(0, store.writeIndexReads.get());
+      assertEquals("\"v\"", replica.getValueAt("doc/default/k9").get());
+      assertEquals(1, store.writeIndexReads.get());
+
+      // Audit reads go to the store, and nothing watches the audit trail
+      assertEquals("{}", replica.getValueAt("audit/doc/default/k9/1").get());
+      store.put("audit/doc/default/k9/2", "{}");
+      assertEquals(11, replica.getKeysAt("audit/doc/").get().size());
+      for (String watched : store.watches.keySet()) {
+         assertFalse(watched, watched.startsWith("audit"));
+      }
+      assertTrue(replica.snapshot(prefix -> true).stream().noneMatch(partition -> partition.prefix.startsWith("audit")));
+   }
+
+   // Makes a write that the follower catches up with a while after
+   private void writeWhileLagging(Write write) throws Exception {
+      ExecutorService follower = Executors.newSingleThreadExecutor();
+      try {
+         follower.submit(() -> {
+            Thread.sleep(200);
+            store.catchUp();
+            return null;
+         });
+         write.run();
+      } finally {
+         follower.shutdown();
+      }
+   }
+
+   private interface Write {
+      void run() throws KVStoreException;
+   }
+
+   /**
+    * Answers reads, once told to lag, with the values it held then, the way a follower that has fallen behind does
+    */
+   private static class FollowerKVDao extends InMemoryKVDao {
+      // Blocking reads in flight, by key
+      private final Map<String, AtomicInteger> watches = new ConcurrentHashMap<>();
+      // Reads of the index of a key in a hierarchy, which is how writers find the index of their write
+      private final AtomicInteger writeIndexReads = new AtomicInteger();
+      // What blocking reads of a hierarchy answer while the follower lags; other reads are the leader's
+      private final Map<String, VersionedHierarchy> lagged = new ConcurrentHashMap<>();
+
+      void lag(String key) {
+         lagged.put(key, VersionedHierarchy.from(modifyIndexAt(key), new HashMap<>(getHierarchyAsMap(key, null))));
+      }
+
+      void catchUp() {
+         lagged.clear();
+      }
+
+      @Override
+      public long modifyIndexAt(String key) {
+         if (!key.endsWith("/")) {
+            writeIndexReads.incrementAndGet();
+         }
+         return super.modifyIndexAt(key);
+      }
+
+      @Override
+      public VersionedHierarchy getHierarchyAfter(String key, long afterIndex, long waitSeconds) {
+         VersionedHierarchy behind = lagged.get(key);
+         if (behind != null) {
+            try {
+               // A follower answers a blocking read it is behind on when its wait is up
+               Thread.sleep(10);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            return behind;
+         }
+         AtomicInteger inFlight = watches.computeIfAbsent(key, k -> new AtomicInteger());
+         if (afterIndex > 0) {
+            inFlight.incrementAndGet();
+         }
+         try {
+            VersionedHierarchy hierarchy = super.getHierarchyAfter(key, afterIndex, waitSeconds);
+            // Woken by a write the follower has yet to apply
+            behind = lagged.get(key);
+            return behind != null ? behind : hierarchy;
+         } finally {
+            if (afterIndex > 0) {
+               inFlight.decrementAndGet();
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,82 @@
+package com.cvent.kvstore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.fail;
+
+public class ValueTypeTest {
+
+   @Test
+   public void testLiterals() {
+      assertEquals(ValueType.STRING, ValueType.check("\"a \"quoted\" string\""));
+      assertEquals(ValueType.BOOLEAN, ValueType.check("false"));
+      assertEquals(ValueType.NULL, ValueType.check("null"));
+      for (String number : new String[] {"0", "-0", "7", "-12", "12345678901234567890123", "0.5", "-1.25",
+            "1e10", "1E-7", "2.5e+3", "0.1000000000000000055511151231257827"}) {
+         assertEquals(number, ValueType.NUMBER, ValueType.check(number));
+      }
+   }
+
+   @Test
+   public void testRejectedLiterals() {
+      // All of these parse as numbers in Java or YAML, and none is valid JSON
+      for (String literal : new String[] {"+5", ".5", "5.", "007", "-", "1e", "1e+", "0x1F", "1_000", "NaN",
+            "Infinity", "- 1", "1 ", "", "\"", "unquoted", "True"}) {
+         try {
+            ValueType.check(literal);
+            fail(literal);
+         } catch (IllegalArgumentException e) {
+            // Expected
+         } catch (IndexOutOfBoundsException e) {
+            fail(literal);
+         }
+      }
+   }
+
+   @Test
+   public void testRejectedOnPut() throws Exception {
+      KVStore store = SimpleKVStore.forDefaultRegion("doc", new InMemoryKVDao(), new MetricRegistry());
+      try {
+         store.put("/a", "007", "author", true);
+         fail();
+      } catch (IllegalArgumentException e) {
+         // Expected
+      }
+      assertFalse(store.getValueAt("/a").isPresent());
+   }
+
+   @Test
+   public void testTemplateValuesRenderAsTheyWereWritten() throws Exception {
+      String template = "{\"a\": {\"big\": 12345678901234567890, \"exact\": 0.1000000000000000055511151231257827,"
+            + " \"s\": \"x y\", \"t\": true, \"z\": null}, \"list\": [1, 2.50]}";
+      byte[] bytes = template.getBytes(StandardCharsets.UTF_8);
+      Document document = TemplateToDocument.from(new ByteArrayInputStream(bytes), DocumentType.JSON);
+      Map<String, String> values = TemplateToDocument.valuesFrom(new ByteArrayInputStream(bytes), DocumentType.JSON);
+      List<KeyValue> keyValues = new ArrayList<>();
+      values.forEach((key, value) -> keyValues.add(KeyValue.from(key, value)));
+      KVStore store = SimpleKVStore.forDefaultRegion("doc", new InMemoryKVDao(), new MetricRegistry());
+      assertEquals(values.size(), store.putAll(keyValues, "author", true));
+
+      ByteArrayOutputStream json = new ByteArrayOutputStream();
+      new ConfigGenerator(store, new MetricRegistry()).generate(document, DocumentType.JSON, json);
+      ObjectMapper mapper = new ObjectMapper().enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+      JsonNode expected = mapper.readTree(template);
+      // Template keys start with the separator, so the config is under an empty name
+      JsonNode rendered = mapper.readTree(json.toByteArray()).path("");
+      assertEquals(expected.toString(), rendered.toString());
+      assertEquals("0.1000000000000000055511151231257827", rendered.path("a").path("exact").decimalValue().toPlainString());
+   }
+}
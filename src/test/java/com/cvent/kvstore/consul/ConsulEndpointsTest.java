@@ -0,0 +1,77 @@
+package com.cvent.kvstore.consul;
+
+import com.cvent.kvstore.consul.ConsulEndpoints.Endpoint;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class ConsulEndpointsTest {
+   private final ConsulEndpoints endpoints = new ConsulEndpoints(Arrays.asList("a:8500", "b:8500", "c:8500"),
+         0.95, 2, 500, 3, 5, 30000);
+
+   private static long millis(long millis) {
+      return TimeUnit.MILLISECONDS.toNanos(millis);
+   }
+
+   private void answer(Endpoint endpoint, long millis, int times) {
+      for (int i = 0; i < times; i++) {
+         endpoints.answered(endpoint, millis(millis));
+      }
+   }
+
+   @Test
+   public void testFastestFirst() {
+      List<Endpoint> order = endpoints.order();
+      assertEquals("a:8500", order.get(0).address);
+      // Too few latencies to hedge on
+      assertEquals(millis(500), endpoints.hedgeDelayNanos(order.get(0)));
+
+      answer(order.get(0), 8, 100);
+      answer(order.get(1), 4, 100);
+      answer(order.get(2), 6, 100);
+      endpoints.refresh();
+      order = endpoints.order();
+      assertEquals(Arrays.asList("b:8500", "c:8500", "a:8500"),
+            Arrays.asList(order.get(0).address, order.get(1).address, order.get(2).address));
+      assertEquals(millis(4), endpoints.hedgeDelayNanos(order.get(0)));
+   }
+
+   @Test
+   public void testSlowEndpointIsEjected() {
+      List<Endpoint> order = endpoints.order();
+      answer(order.get(0), 100, 100);
+      answer(order.get(1), 5, 100);
+      answer(order.get(2), 5, 100);
+      endpoints.refresh();
+      assertTrue(order.get(0).isEjected());
+      assertEquals("a:8500", endpoints.order().get(2).address);
+   }
+
+   @Test
+   public void testFailingEndpointIsEjected() {
+      List<Endpoint> order = endpoints.order();
+      for (int i = 0; i < 4; i++) {
+         endpoints.failed(order.get(1));
+      }
+      assertFalse(order.get(1).isEjected());
+      endpoints.failed(order.get(1));
+      assertTrue(order.get(1).isEjected());
+      assertEquals("b:8500", endpoints.order().get(2).address);
+   }
+
+   @Test
+   public void testLastEndpointIsNotEjected() {
+      ConsulEndpoints one = new ConsulEndpoints(Arrays.asList("a:8500"), 0.95, 2, 500, 3, 5, 30000);
+      Endpoint endpoint = one.order().get(0);
+      for (int i = 0; i < 10; i++) {
+         one.failed(endpoint);
+      }
+      assertFalse(endpoint.isEjected());
+   }
+}
@@ -0,0 +1,325 @@
+package com.cvent.kvstore.consul;
+
+import com.cvent.kvstore.InMemoryKVDao;
+import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.KeyValue;
+import com.cvent.kvstore.VersionedHierarchy;
+import com.cvent.kvstore.VersionedValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for the parts of the Consul HTTP API the service uses: /v1/kv (get, recurse, keys,
+ * blocking queries, put with cas, delete, delete recurse) and /v1/txn (set and cas). The data is kept in an
+ * InMemoryKVDao, which indexes and checks-and-sets the way Consul does.
+ *
+ * Each request waits for a latency plus up to a jitter before it is answered, like a Consul agent some way off.
+ * Stale reads (?stale) are answered as a follower would, with the configured X-Consul-LastContact; other reads
+ * as the leader, with 0.
+ */
+public class FakeConsulServer implements AutoCloseable {
+   private static final ObjectMapper MAPPER = new ObjectMapper();
+   private static final BaseEncoding BASE64 = BaseEncoding.base64();
+   // Blocking queries hold a thread each
+   private static final int MAX_THREADS = 500;
+
+   private final InMemoryKVDao dao;
+   private final Server server;
+   private final ServerConnector connector;
+   private volatile long latencyMicros;
+   private volatile long jitterMicros;
+   private volatile long lastContactMillis;
+   private final AtomicInteger staleReads = new AtomicInteger();
+   private final AtomicInteger consistentReads = new AtomicInteger();
+
+   /**
+    * @param port          the port to listen on; 0 for any free port
+    * @param latencyMicros how long each request waits before it is answered
+    * @param jitterMicros  up to how much longer, uniformly
+    */
+   public FakeConsulServer(int port, long latencyMicros, long jitterMicros) {
+      this(new InMemoryKVDao(), port, latencyMicros, jitterMicros);
+   }
+
+   /**
+    * A server answering from a store shared with other servers, as the agents of one cluster do
+    * @param dao           the store
+    * @param port          the port to listen on; 0 for any free port
+    * @param latencyMicros how long each request waits before it is answered
+    * @param jitterMicros  up to how much longer, uniformly
+    */
+   public FakeConsulServer(InMemoryKVDao dao, int port, long latencyMicros, long jitterMicros) {
+      this.dao = dao;
+      this.latencyMicros = latencyMicros;
+      this.jitterMicros = jitterMicros;
+      server = new Server(new QueuedThreadPool(MAX_THREADS));
+      connector = new ServerConnector(server);
+      connector.setPort(port);
+      server.addConnector(connector);
+      ServletContextHandler context = new ServletContextHandler();
+      context.addServlet(new ServletHolder(new KVServlet()), "/v1/kv/*");
+      context.addServlet(new ServletHolder(new TxnServlet()), "/v1/txn");
+      server.setHandler(context);
+   }
+
+   public FakeConsulServer start() throws Exception {
+      server.start();
+      return this;
+   }
+
+   @Override
+   public void close() throws Exception {
+      server.stop();
+   }
+
+   /**
+    * @return the host:port to give the Consul DAO
+    */
+   public String endpoint() {
+      return "localhost:" + connector.getLocalPort();
+   }
+
+   /**
+    * The data, for seeding and checking it directly
+    */
+   public InMemoryKVDao dao() {
+      return dao;
+   }
+
+   public void setLatency(long latencyMicros, long jitterMicros) {
+      this.latencyMicros = latencyMicros;
+      this.jitterMicros = jitterMicros;
+   }
+
+   /**
+    * Sets how long ago a follower answering a stale read last heard from the leader (X-Consul-LastContact)
+    */
+   public void setLastContactMillis(long lastContactMillis) {
+      this.lastContactMillis = lastContactMillis;
+   }
+
+   /**
+    * How many reads asked for ?stale
+    */
+   public int staleReads() {
+      return staleReads.get();
+   }
+
+   /**
+    * How many reads asked for ?consistent
+    */
+   public int consistentReads() {
+      return consistentReads.get();
+   }
+
+   private void delay() {
+      long micros = latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(jitterMicros + 1) : 0);
+      if (micros > 0) {
+         try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   private void writeJson(HttpServletRequest req, HttpServletResponse resp, int status, long index, JsonNode body)
+         throws IOException {
+      resp.setStatus(status);
+      resp.setContentType("application/json");
+      resp.setHeader("X-Consul-Index", Long.toString(index));
+      resp.setHeader("X-Consul-KnownLeader", "true");
+      resp.setHeader("X-Consul-LastContact", req.getParameter("stale") != null ? Long.toString(lastContactMillis) : "0");
+      if (body != null) {
+         MAPPER.writeValue(resp.getOutputStream(), body);
+      }
+   }
+
+   private static ObjectNode kvNode(String key, String value, long index) {
+      ObjectNode node = MAPPER.createObjectNode();
+      node.put("CreateIndex", index);
+      node.put("ModifyIndex", index);
+      node.put("LockIndex", 0);
+      node.put("Key", key);
+      node.put("Flags", 0);
+      node.put("Value", BASE64.encode(value.getBytes(StandardCharsets.UTF_8)));
+      return node;
+   }
+
+   // Go durations as Consul takes them: 30s, 5m, 100ms
+   private static <T extends Collection<String>> T emptyToNull(T keys) {
+      return keys.isEmpty() ? null : keys;
+   }
+
+   private static long waitSeconds(String wait) {
+      if (wait == null) {
+         return TimeUnit.MINUTES.toSeconds(5);
+      } else if (wait.endsWith("ms")) {
+         return Math.max(1, Long.parseLong(wait.substring(0, wait.length() - 2)) / 1000);
+      } else if (wait.endsWith("m")) {
+         return TimeUnit.MINUTES.toSeconds(Long.parseLong(wait.substring(0, wait.length() - 1)));
+      }
+      return Long.parseLong(wait.endsWith("s") ? wait.substring(0, wait.length() - 1) : wait);
+   }
+
+   private class KVServlet extends HttpServlet {
+      private String key(HttpServletRequest req) throws IOException {
+         String path = req.getPathInfo();
+         return path == null ? "" : URLDecoder.decode(path.substring(1), "UTF-8");
+      }
+
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+         String key = key(req);
+         if (req.getParameter("stale") != null) {
+            staleReads.incrementAndGet();
+         } else if (req.getParameter("consistent") != null) {
+            consistentReads.incrementAndGet();
+         }
+         String index = req.getParameter("index");
+         // A blocking query waits first; any latency applies to the answer
+         VersionedHierarchy hierarchy = dao.getHierarchyAfter(key, index != null ? Long.parseLong(index) : 0,
+               waitSeconds(req.getParameter("wait")));
+         delay();
+         if (req.getParameter("keys") != null) {
+            // With a separator, only the children of the prefix
+            Optional<Collection<String>> keys = req.getParameter("separator") != null
+                  ? Optional.fromNullable(emptyToNull(dao.getChildKeysAt(key))) : dao.getKeysAt(key);
+            if (!keys.isPresent()) {
+               writeJson(req, resp, HttpServletResponse.SC_NOT_FOUND, hierarchy.index(), null);
+               return;
+            }
+            ArrayNode body = MAPPER.createArrayNode();
+            keys.get().forEach(body::add);
+            writeJson(req, resp, HttpServletResponse.SC_OK, hierarchy.index(), body);
+         } else if (req.getParameter("recurse") != null) {
+            Map<String, VersionedValue> values = new TreeMap<>(dao.getVersionedHierarchy(key));
+            if (values.isEmpty()) {
+               writeJson(req, resp, HttpServletResponse.SC_NOT_FOUND, hierarchy.index(), null);
+               return;
+            }
+            ArrayNode body = MAPPER.createArrayNode();
+            values.forEach((k, v) -> body.add(kvNode(k, v.value(), v.index())));
+            writeJson(req, resp, HttpServletResponse.SC_OK, hierarchy.index(), body);
+         } else {
+            Optional<VersionedValue> value = dao.getVersionedValueAt(key);
+            if (!value.isPresent()) {
+               writeJson(req, resp, HttpServletResponse.SC_NOT_FOUND, hierarchy.index(), null);
+               return;
+            }
+            ArrayNode body = MAPPER.createArrayNode();
+            body.add(kvNode(key, value.get().value(), value.get().index()));
+            writeJson(req, resp, HttpServletResponse.SC_OK, value.get().index(), body);
+         }
+      }
+
+      @Override
+      protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+         delay();
+         String key = key(req);
+         String value = new String(ByteStreams.toByteArray(req.getInputStream()), StandardCharsets.UTF_8);
+         String cas = req.getParameter("cas");
+         boolean written;
+         try {
+            if (cas != null) {
+               written = dao.putIfIndex(key, value, Long.parseLong(cas));
+            } else {
+               dao.put(key, value);
+               written = true;
+            }
+         } catch (KVStoreException e) {
+            written = false;
+         }
+         writeJson(req, resp, HttpServletResponse.SC_OK, dao.index(), MAPPER.getNodeFactory().booleanNode(written));
+      }
+
+      @Override
+      protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+         delay();
+         boolean deleted = true;
+         try {
+            if (req.getParameter("recurse") != null) {
+               dao.deleteHierarchyAt(key(req));
+            } else {
+               dao.deleteKey(key(req));
+            }
+         } catch (KVStoreException e) {
+            deleted = false;
+         }
+         writeJson(req, resp, HttpServletResponse.SC_OK, dao.index(), MAPPER.getNodeFactory().booleanNode(deleted));
+      }
+   }
+
+   private class TxnServlet extends HttpServlet {
+      @Override
+      protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+         delay();
+         JsonNode operations = MAPPER.readTree(req.getInputStream());
+         if (operations.size() > InMemoryKVDao.MAX_ATOMIC_PUTS) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Transaction contains too many operations");
+            return;
+         }
+         List<KeyValue> keyValues = new ArrayList<>();
+         Map<String, Long> expectedIndexes = new HashMap<>();
+         for (JsonNode operation : operations) {
+            JsonNode kv = operation.path("KV");
+            String verb = kv.path("Verb").asText();
+            String key = kv.path("Key").asText();
+            if ("cas".equals(verb)) {
+               expectedIndexes.put(key, kv.path("Index").asLong());
+            } else if (!"set".equals(verb)) {
+               resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported verb " + verb);
+               return;
+            }
+            keyValues.add(KeyValue.from(key, new String(BASE64.decode(kv.path("Value").asText()), StandardCharsets.UTF_8)));
+         }
+
+         boolean written;
+         try {
+            written = dao.putAll(keyValues, expectedIndexes);
+         } catch (KVStoreException e) {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+         }
+         ObjectNode body = MAPPER.createObjectNode();
+         if (written) {
+            ArrayNode results = body.putArray("Results");
+            for (KeyValue keyValue : keyValues) {
+               results.addObject().set("KV", kvNode(keyValue.key(), keyValue.value(), dao.index()));
+            }
+            body.putNull("Errors");
+            writeJson(req, resp, HttpServletResponse.SC_OK, dao.index(), body);
+         } else {
+            body.putNull("Results");
+            body.putArray("Errors").addObject().put("OpIndex", 0).put("What", "failed to set key: index is stale");
+            writeJson(req, resp, HttpServletResponse.SC_CONFLICT, dao.index(), body);
+         }
+      }
+   }
+}
@@ -0,0 +1,264 @@
+package com.cvent.kvstore.consul;
+
+import com.cvent.kvstore.AsyncKVSStoreDao;
+import com.cvent.kvstore.KVScan;
+import com.cvent.kvstore.KVSStoreDao;
+import com.cvent.kvstore.KeyValue;
+import com.cvent.kvstore.ReadConsistency;
+import com.cvent.kvstore.VersionedHierarchy;
+import com.cvent.kvstore.VersionedValue;
+import com.cvent.kvstore.dw.ConsulKVStoreConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Runs the Consul DAOs against FakeConsulServer, which checks both that the fake speaks the protocol the way the
+ * clients expect and that the DAOs work over HTTP
+ */
+public class FakeConsulServerTest {
+   private FakeConsulServer server;
+   private ConsulKVDaoAsync dao;
+
+   @Before
+   public void setUp() throws Exception {
+      server = new FakeConsulServer(0, 0, 0).start();
+      ConsulKVStoreConfig config = new ConsulKVStoreConfig();
+      config.setConsulEndpoint(server.endpoint());
+      config.setReadTimeoutMillis(5000);
+      dao = new ConsulKVDaoAsync(config);
+      dao.start();
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      dao.stop();
+      server.close();
+   }
+
+   @Test
+   public void testReadsAndWrites() throws Exception {
+      dao.put("doc/default/a", "\"1\"");
+      dao.put("doc/default/b", "\"two words\"");
+      dao.put("doc/region/a", "\"2\"");
+
+      assertEquals("\"1\"", dao.getValueAt("doc/default/a").get());
+      assertEquals("\"two words\"", dao.getValueAt("doc/default/b").get());
+      assertFalse(dao.getValueAt("doc/default/missing").isPresent());
+
+      Map<String, String> expected = new HashMap<>();
+      expected.put("doc/default/a", "\"1\"");
+      expected.put("doc/default/b", "\"two words\"");
+      assertEquals(expected, dao.getHierarchyAsMap("doc/default", null));
+      assertEquals(expected, dao.getHierarchyAsMapAsync("doc/default", null).get(5, TimeUnit.SECONDS));
+      assertEquals("\"2\"", dao.getValueAtAsync("doc/region/a").get(5, TimeUnit.SECONDS).get());
+      assertEquals(3, dao.getKeysAt("doc").get().size());
+
+      dao.deleteKey("doc/region/a");
+      assertFalse(dao.getValueAt("doc/region/a").isPresent());
+      dao.deleteHierarchyAt("doc/default");
+      assertTrue(dao.getHierarchyAsMap("doc", null).isEmpty());
+      assertFalse(dao.getKeysAt("doc").isPresent());
+   }
+
+   @Test
+   public void testScan() throws Exception {
+      dao.put("doc/default/b", "\"2\"");
+      dao.put("doc/default/a", "\"1\"");
+      dao.put("doc/default/a/c", "\"3\"");
+      dao.put("doc/region/a", "\"4\"");
+
+      Map<String, String> expected = new LinkedHashMap<>();
+      expected.put("doc/default/a", "\"1\"");
+      expected.put("doc/default/a/c", "\"3\"");
+      expected.put("doc/default/b", "\"2\"");
+      ConsulKVStoreConfig config = new ConsulKVStoreConfig();
+      config.setConsulEndpoint(server.endpoint());
+      ConsulKVDaoEcwid ecwid = new ConsulKVDaoEcwid(config);
+      for (KVSStoreDao scanned : Arrays.asList(dao, ecwid)) {
+         // In key order
+         try (KVScan scan = scanned.scan("doc/default/")) {
+            assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(toMap(scan).entrySet()));
+         }
+         try (KVScan scan = scanned.scan("doc/missing/")) {
+            assertFalse(scan.hasNext());
+         }
+         // Closed part way through
+         try (KVScan scan = scanned.scan("doc/")) {
+            assertEquals("doc/default/a", scan.next().key());
+         }
+      }
+      // The connections given up on by the early closes are not needed for the next reads
+      assertEquals("\"4\"", dao.getValueAt("doc/region/a").get());
+      assertEquals("\"4\"", ecwid.getValueAt("doc/region/a").get());
+   }
+
+   private static Map<String, String> toMap(KVScan scan) {
+      Map<String, String> values = new LinkedHashMap<>();
+      scan.forEachRemaining(keyValue -> values.put(keyValue.key(), keyValue.value()));
+      return values;
+   }
+
+   @Test
+   public void testCheckAndSet() throws Exception {
+      assertTrue(dao.putIfIndex("k", "\"1\"", 0));
+      VersionedValue value = dao.getVersionedValueAt("k").get();
+      assertFalse(dao.putIfIndex("k", "\"2\"", value.index() - 1));
+      assertTrue(dao.putIfIndex("k", "\"2\"", value.index()));
+
+      long index = dao.getVersionedValueAt("k").get().index();
+      assertFalse(dao.putAll(Arrays.asList(KeyValue.from("k", "\"3\""), KeyValue.from("l", "\"3\"")),
+            Collections.singletonMap("k", index - 1)));
+      // Rolled back whole
+      assertFalse(dao.getValueAt("l").isPresent());
+      assertTrue(dao.putAll(Arrays.asList(KeyValue.from("k", "\"3\""), KeyValue.from("l", "\"3\"")),
+            Collections.singletonMap("k", index)));
+      assertEquals("\"3\"", dao.getValueAt("k").get());
+      assertEquals("\"3\"", dao.getValueAt("l").get());
+   }
+
+   @Test
+   public void testBlockingRead() throws Exception {
+      dao.put("doc/default/a", "\"1\"");
+      long index = dao.modifyIndexAt("doc/default");
+      CompletableFuture<VersionedHierarchy> change =
+            CompletableFuture.supplyAsync(() -> dao.getHierarchyAfter("doc/default", index, 2));
+      Thread.sleep(100);
+      assertFalse(change.isDone());
+      dao.put("doc/default/a", "\"2\"");
+      VersionedHierarchy hierarchy = change.get(5, TimeUnit.SECONDS);
+      assertTrue(hierarchy.index() > index);
+      assertEquals("\"2\"", hierarchy.values().get("doc/default/a"));
+   }
+
+   @Test
+   public void testConsistencyModes() throws Exception {
+      dao.put("doc/default/a", "\"1\"");
+      KVSStoreDao stale = dao.withConsistency(ReadConsistency.STALE);
+      KVSStoreDao consistent = dao.withConsistency(ReadConsistency.CONSISTENT);
+      assertTrue(stale instanceof AsyncKVSStoreDao);
+
+      assertEquals("\"1\"", stale.getValueAt("doc/default/a").get());
+      assertEquals("\"1\"", ((AsyncKVSStoreDao) stale).getValueAtAsync("doc/default/a").get(5, TimeUnit.SECONDS).get());
+      assertEquals(1, stale.getHierarchyAfter("doc/default", dao.modifyIndexAt("doc/default") - 1, 1).values().size());
+      assertEquals(3, server.staleReads());
+      assertEquals("\"1\"", consistent.getValueAt("doc/default/a").get());
+      assertEquals(1, server.consistentReads());
+      dao.getValueAt("doc/default/a");
+      assertEquals(3, server.staleReads());
+      assertEquals(1, server.consistentReads());
+   }
+
+   @Test
+   public void testTooStaleReadsAreReadAgain() throws Exception {
+      dao.put("doc/default/a", "\"1\"");
+      // Further behind than the default bound of 2s
+      server.setLastContactMillis(10000);
+      KVSStoreDao stale = dao.withConsistency(ReadConsistency.STALE);
+      assertEquals("\"1\"", stale.getValueAt("doc/default/a").get());
+      assertEquals("\"1\"", ((AsyncKVSStoreDao) stale).getValueAtAsync("doc/default/a").get(5, TimeUnit.SECONDS).get());
+      assertEquals("\"1\"", stale.getHierarchyAfter("doc/default", 1, 1).values().get("doc/default/a"));
+      // Each was read stale once, found too stale and read again
+      assertEquals(3, server.staleReads());
+   }
+
+   @Test
+   public void testLatency() throws Exception {
+      server.setLatency(TimeUnit.MILLISECONDS.toMicros(50), 0);
+      long start = System.nanoTime();
+      dao.getValueAt("k");
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+   }
+
+   @Test
+   public void testSlowReadsAreHedged() throws Exception {
+      dao.put("doc/default/a", "\"1\"");
+      // A second agent of the same cluster, listed after a slow one
+      server.setLatency(TimeUnit.SECONDS.toMicros(2), 0);
+      try (FakeConsulServer fast = new FakeConsulServer(server.dao(), 0, 0, 0).start()) {
+         ConsulKVStoreConfig config = new ConsulKVStoreConfig();
+         config.setConsulEndpoints(Arrays.asList(server.endpoint(), fast.endpoint()));
+         config.setReadTimeoutMillis(5000);
+         config.setHedgeMaxDelayMillis(50);
+         ConsulKVDaoAsync hedged = new ConsulKVDaoAsync(config);
+         hedged.start();
+         try {
+            long start = System.nanoTime();
+            assertEquals("\"1\"", hedged.getValueAt("doc/default/a").get());
+            assertEquals(1, hedged.getHierarchyAsMap("doc/default", null).size());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+         } finally {
+            hedged.stop();
+         }
+      }
+   }
+
+   @Test
+   public void testFailedReadsGoToTheNextEndpoint() throws Exception {
+      dao.put("doc/default/a", "\"1\"");
+      FakeConsulServer down = new FakeConsulServer(0, 0, 0).start();
+      String downEndpoint = down.endpoint();
+      down.close();
+      ConsulKVStoreConfig config = new ConsulKVStoreConfig();
+      config.setConsulEndpoints(Arrays.asList(downEndpoint, server.endpoint()));
+      config.setReadTimeoutMillis(5000);
+      ConsulKVDaoAsync failover = new ConsulKVDaoAsync(config);
+      failover.start();
+      try {
+         for (int i = 0; i < 10; i++) {
+            assertEquals("\"1\"", failover.getValueAtAsync("doc/default/a").get(5, TimeUnit.SECONDS).get());
+         }
+      } finally {
+         failover.stop();
+      }
+   }
+
+   @Test
+   public void testEveryRequestGoesToTheNextEndpointWhenOneIsDown() throws Exception {
+      FakeConsulServer down = new FakeConsulServer(0, 0, 0).start();
+      String downEndpoint = down.endpoint();
+      down.close();
+      ConsulKVStoreConfig config = new ConsulKVStoreConfig();
+      config.setConsulEndpoints(Arrays.asList(downEndpoint, server.endpoint()));
+      config.setReadTimeoutMillis(5000);
+      // Never ejected, so that every request meets the endpoint that is down first
+      config.setOutlierConsecutiveFailures(Integer.MAX_VALUE);
+      for (ConsulKVDaoEcwid failover : Arrays.asList(new ConsulKVDaoEcwid(config), new ConsulKVDaoAsync(config))) {
+         failover.start();
+         try {
+            failover.put("doc/default/a", "\"1\"");
+            assertTrue(failover.putIfIndex("doc/default/b", "\"2\"", 0));
+            assertTrue(failover.putAll(Collections.singletonList(KeyValue.from("doc/region/a", "\"3\"")),
+                  Collections.emptyMap()));
+            assertEquals(3, failover.getKeysAt("doc").get().size());
+            assertEquals(Collections.singletonList("doc/default/"), failover.getChildKeysAt("doc/d"));
+            long index = failover.modifyIndexAt("doc/default");
+            assertTrue(index > 0);
+            assertEquals(2, failover.getHierarchyAfter("doc/default", 0, 1).values().size());
+            assertEquals(2, failover.getHierarchyAfter("doc/default", index - 1, 1).values().size());
+            try (KVScan scan = failover.scan("doc/default/")) {
+               assertEquals(2, toMap(scan).size());
+            }
+
+            failover.deleteKey("doc/region/a");
+            failover.deleteHierarchyAt("doc/default");
+            assertFalse(failover.getKeysAt("doc").isPresent());
+         } finally {
+            failover.stop();
+         }
+      }
+   }
+}
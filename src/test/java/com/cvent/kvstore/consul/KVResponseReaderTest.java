@@ -0,0 +1,59 @@
+package com.cvent.kvstore.consul;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class KVResponseReaderTest {
+   private static String base64(String value) {
+      return BaseEncoding.base64().encode(value.getBytes(StandardCharsets.UTF_8));
+   }
+
+   @Test
+   public void testEntries() throws IOException {
+      String body = "[{\"LockIndex\":0,\"Key\":\"doc/\",\"Flags\":0,\"Value\":null,\"CreateIndex\":1,\"ModifyIndex\":1},"
+            + "{\"Key\":\"doc/a\",\"Value\":\"" + base64("\"café ☃\"") + "\",\"ModifyIndex\":7},"
+            + "{\"Value\":\"" + base64("42") + "\",\"Session\":{\"ID\":[1,2]},\"ModifyIndex\":9,\"Key\":\"doc/b\"}]";
+      Map<String, String> values = new HashMap<>();
+      Map<String, Long> indexes = new HashMap<>();
+      KVResponseReader.read(body.getBytes(StandardCharsets.UTF_8), (key, index, value) -> {
+         values.put(key, value);
+         indexes.put(key, index);
+      });
+      // The folder has no value
+      assertEquals(2, values.size());
+      assertEquals("\"café ☃\"", values.get("doc/a"));
+      assertEquals("42", values.get("doc/b"));
+      assertEquals(7L, (long) indexes.get("doc/a"));
+      assertEquals(9L, (long) indexes.get("doc/b"));
+
+      Map<String, String> fromString = new HashMap<>();
+      KVResponseReader.read(body, (key, index, value) -> fromString.put(key, value));
+      assertEquals(values, fromString);
+   }
+
+   @Test
+   public void testEmptyValue() throws IOException {
+      Map<String, String> values = new HashMap<>();
+      KVResponseReader.read("[{\"Key\":\"k\",\"Value\":\"\"}]", (key, index, value) -> values.put(key, value));
+      assertTrue(values.get("k").isEmpty());
+   }
+
+   @Test
+   public void testNotEntries() {
+      try {
+         KVResponseReader.read("{\"Key\":\"k\"}", (key, index, value) -> fail());
+         fail();
+      } catch (IOException e) {
+         // Expected
+      }
+   }
+}
@@ -0,0 +1,171 @@
+package com.cvent.kvstore.embedded;
+
+import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.KeyValue;
+import com.cvent.kvstore.dw.EmbeddedKVStoreConfig;
+import junit.framework.TestCase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests FileKVDao
+ */
+public class FileKVDaoTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private EmbeddedKVStoreConfig config(long flushThresholdBytes) {
+      EmbeddedKVStoreConfig config = new EmbeddedKVStoreConfig();
+      config.setDirectory(folder.getRoot().getPath());
+      config.setFlushThresholdBytes(flushThresholdBytes);
+      config.setMaxSegments(3);
+      config.setSyncWrites(false);
+      return config;
+   }
+
+   @Test
+   public void testReadsAndWritesSurviveRestarts() throws Exception {
+      // Small enough that most writes flush a segment and segments are merged often
+      FileKVDao dao = new FileKVDao(config(200));
+      for (int n = 0; n < 100; n++) {
+         dao.put(String.format("auth/alpha/key%03d", n), Integer.toString(n));
+      }
+      dao.put("auth/beta/key", "\"b\"");
+      dao.deleteHierarchyAt("auth/alpha/key05");
+      dao.deleteKey("auth/alpha/key099");
+      long index = dao.modifyIndexAt("auth/alpha/");
+      dao.stop();
+
+      dao = new FileKVDao(config(200));
+      TestCase.assertEquals(89, dao.getHierarchyAsMap("auth/alpha/", null).size());
+      TestCase.assertEquals("42", dao.getValueAt("auth/alpha/key042").get());
+      TestCase.assertFalse(dao.getValueAt("auth/alpha/key055").isPresent());
+      TestCase.assertFalse(dao.getValueAt("auth/alpha/key099").isPresent());
+      TestCase.assertEquals(Collections.singletonList("auth/beta/key"), new ArrayList<>(dao.getKeysAt("auth/beta/").get()));
+      TestCase.assertEquals(index, dao.modifyIndexAt("auth/alpha/"));
+
+      // Keys come back in order
+      List<String> keys = new ArrayList<>(dao.getKeysAt("auth/").get());
+      List<String> sorted = new ArrayList<>(keys);
+      Collections.sort(sorted);
+      TestCase.assertEquals(sorted, keys);
+      dao.stop();
+   }
+
+   @Test
+   public void testCheckAndSet() throws Exception {
+      FileKVDao dao = new FileKVDao(config(1 << 20));
+      TestCase.assertTrue(dao.putIfIndex("a", "1", 0));
+      TestCase.assertFalse(dao.putIfIndex("a", "2", 0));
+      long index = dao.getVersionedValueAt("a").get().index();
+      TestCase.assertTrue(dao.putIfIndex("a", "3", index));
+      TestCase.assertFalse(dao.putIfIndex("a", "4", index));
+
+      long current = dao.getVersionedValueAt("a").get().index();
+      TestCase.assertFalse(dao.putAll(Arrays.asList(KeyValue.from("b", "1"), KeyValue.from("a", "5")),
+            Collections.singletonMap("a", index)));
+      TestCase.assertFalse(dao.getValueAt("b").isPresent());
+      TestCase.assertTrue(dao.putAll(Arrays.asList(KeyValue.from("b", "1"), KeyValue.from("a", "5")),
+            Collections.singletonMap("a", current)));
+      // A transaction is written at one index
+      TestCase.assertEquals(dao.getVersionedValueAt("a").get().index(), dao.getVersionedValueAt("b").get().index());
+      dao.stop();
+   }
+
+   @Test
+   public void testTornWriteIsDropped() throws Exception {
+      FileKVDao dao = new FileKVDao(config(1 << 20));
+      dao.put("a", "1");
+      dao.put("b", "2");
+      dao.stop();
+
+      try (RandomAccessFile log = new RandomAccessFile(folder.getRoot().toPath().resolve("write.log").toFile(), "rw")) {
+         log.setLength(log.length() - 3);
+      }
+      dao = new FileKVDao(config(1 << 20));
+      TestCase.assertEquals("1", dao.getValueAt("a").get());
+      TestCase.assertFalse(dao.getValueAt("b").isPresent());
+      dao.put("b", "3");
+      dao.stop();
+
+      dao = new FileKVDao(config(1 << 20));
+      TestCase.assertEquals("3", dao.getValueAt("b").get());
+      dao.stop();
+   }
+
+   @Test
+   public void testBlockingReadWakesOnWrite() throws Exception {
+      FileKVDao dao = new FileKVDao(config(1 << 20));
+      dao.put("auth/alpha/a", "1");
+      long index = dao.modifyIndexAt("auth/alpha/");
+      Thread writer = new Thread(() -> {
+         try {
+            Thread.sleep(100);
+            dao.put("auth/alpha/b", "2");
+         } catch (Exception e) {
+            throw new IllegalStateException(e);
+         }
+      });
+      writer.start();
+      long start = System.currentTimeMillis();
+      TestCase.assertEquals(2, dao.getHierarchyAfter("auth/alpha/", index, 10).values().size());
+      TestCase.assertTrue(System.currentTimeMillis() - start < 5000);
+      writer.join();
+      dao.stop();
+   }
+
+   @Test
+   public void testBlockingReadSleepsThroughWritesElsewhere() throws Exception {
+      FileKVDao dao = new FileKVDao(config(1 << 20));
+      dao.put("auth/alpha/a", "1");
+      long index = dao.modifyIndexAt("auth/alpha/");
+      CompletableFuture<Integer> change =
+            CompletableFuture.supplyAsync(() -> dao.getHierarchyAfter("auth/alpha/", index, 10).values().size());
+      Thread.sleep(100);
+      dao.put("auth/beta/a", "1");
+      dao.put("auth/alphabet", "1");
+      Thread.sleep(100);
+      TestCase.assertFalse(change.isDone());
+
+      dao.deleteKey("auth/alpha/a");
+      TestCase.assertEquals(Integer.valueOf(0), change.get(5, TimeUnit.SECONDS));
+      dao.stop();
+   }
+
+   @Test
+   public void testFailedWritesAreWriteFailures() throws Exception {
+      FileKVDao dao = new FileKVDao(config(1 << 20));
+      dao.put("a", "1");
+      dao.stop();
+
+      expectWriteFailed(() -> dao.put("a", "2"));
+      expectWriteFailed(() -> dao.putIfIndex("a", "2", dao.modifyIndexAt("a")));
+      expectWriteFailed(() -> dao.putAll(Collections.singletonList(KeyValue.from("a", "2")), Collections.emptyMap()));
+      expectWriteFailed(() -> dao.deleteKey("a"));
+      expectWriteFailed(() -> dao.deleteHierarchyAt(""));
+      TestCase.assertEquals("1", dao.getValueAt("a").get());
+   }
+
+   private interface Write {
+      void run() throws KVStoreException;
+   }
+
+   private static void expectWriteFailed(Write write) {
+      try {
+         write.run();
+         TestCase.fail("The write should have failed");
+      } catch (KVStoreException e) {
+         TestCase.assertEquals(KVStoreException.Reason.WRITE_FAILED, e.reason);
+      }
+   }
+}
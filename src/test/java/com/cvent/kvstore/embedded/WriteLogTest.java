@@ -0,0 +1,210 @@
+package com.cvent.kvstore.embedded;
+
+import com.cvent.kvstore.SortedKVSStoreDao.Entry;
+import junit.framework.TestCase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tests WriteLog over a disk that fills up
+ */
+public class WriteLogTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static SortedMap<String, Entry> write(String key, long index) {
+      SortedMap<String, Entry> entries = new TreeMap<>();
+      entries.put(key, new Entry("\"" + key + "\"", index));
+      return entries;
+   }
+
+   private List<String> replay(Path path) throws IOException {
+      List<String> keys = new ArrayList<>();
+      WriteLog.open(path, false, entries -> keys.addAll(entries.keySet())).close();
+      return keys;
+   }
+
+   @Test
+   public void testFailedWritesAreCutOff() throws Exception {
+      Path path = folder.getRoot().toPath().resolve("write.log");
+      FailingChannel channel = new FailingChannel(FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE));
+      WriteLog log = new WriteLog(channel, false);
+      log.append(write("a", 1));
+      long size = log.size();
+
+      channel.failWrites = true;
+      try {
+         log.append(write("b", 2));
+         TestCase.fail("The disk is full");
+      } catch (IOException e) {
+         // Expected
+      }
+      TestCase.assertEquals(size, log.size());
+      TestCase.assertEquals(size, channel.size());
+
+      // Writes after the failed one are kept
+      channel.failWrites = false;
+      log.append(write("c", 3));
+      log.close();
+      List<String> expected = new ArrayList<>();
+      expected.add("a");
+      expected.add("c");
+      TestCase.assertEquals(expected, replay(path));
+   }
+
+   @Test
+   public void testLogThatCannotBeCutOffTakesNoMoreWrites() throws Exception {
+      Path path = folder.getRoot().toPath().resolve("write.log");
+      FailingChannel channel = new FailingChannel(FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE));
+      WriteLog log = new WriteLog(channel, false);
+      log.append(write("a", 1));
+
+      channel.failWrites = true;
+      channel.failTruncates = true;
+      try {
+         log.append(write("b", 2));
+         TestCase.fail("The disk is full");
+      } catch (IOException e) {
+         // Expected
+      }
+      channel.failWrites = false;
+      channel.failTruncates = false;
+      try {
+         log.append(write("c", 3));
+         TestCase.fail("The log should take no more writes");
+      } catch (IOException e) {
+         // Expected
+      }
+      log.close();
+      List<String> expected = new ArrayList<>();
+      expected.add("a");
+      TestCase.assertEquals(expected, replay(path));
+   }
+
+   /**
+    * A file channel that, when told to, writes half of what it is given and then fails like a full disk
+    */
+   private static class FailingChannel extends FileChannel {
+      private final FileChannel channel;
+      private volatile boolean failWrites;
+      private volatile boolean failTruncates;
+
+      private FailingChannel(FileChannel channel) {
+         this.channel = channel;
+      }
+
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+         if (failWrites) {
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            src.position(src.position() + channel.write(half));
+            throw new IOException("No space left on device");
+         }
+         return channel.write(src);
+      }
+
+      @Override
+      public FileChannel truncate(long size) throws IOException {
+         if (failTruncates) {
+            throw new IOException("Input/output error");
+         }
+         channel.truncate(size);
+         return this;
+      }
+
+      @Override
+      public int read(ByteBuffer dst) throws IOException {
+         return channel.read(dst);
+      }
+
+      @Override
+      public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+         return channel.read(dsts, offset, length);
+      }
+
+      @Override
+      public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+         return channel.write(srcs, offset, length);
+      }
+
+      @Override
+      public long position() throws IOException {
+         return channel.position();
+      }
+
+      @Override
+      public FileChannel position(long newPosition) throws IOException {
+         channel.position(newPosition);
+         return this;
+      }
+
+      @Override
+      public long size() throws IOException {
+         return channel.size();
+      }
+
+      @Override
+      public void force(boolean metaData) throws IOException {
+         channel.force(metaData);
+      }
+
+      @Override
+      public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+         return channel.transferTo(position, count, target);
+      }
+
+      @Override
+      public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+         return channel.transferFrom(src, position, count);
+      }
+
+      @Override
+      public int read(ByteBuffer dst, long position) throws IOException {
+         return channel.read(dst, position);
+      }
+
+      @Override
+      public int write(ByteBuffer src, long position) throws IOException {
+         return channel.write(src, position);
+      }
+
+      @Override
+      public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+         return channel.map(mode, position, size);
+      }
+
+      @Override
+      public FileLock lock(long position, long size, boolean shared) throws IOException {
+         return channel.lock(position, size, shared);
+      }
+
+      @Override
+      public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+         return channel.tryLock(position, size, shared);
+      }
+
+      @Override
+      protected void implCloseChannel() throws IOException {
+         channel.close();
+      }
+   }
+}
@@ -0,0 +1,345 @@
+package com.cvent.kvstore.load;
+
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.Document;
+import com.cvent.kvstore.KVStore;
+import com.cvent.kvstore.KVStoreException;
+import com.cvent.kvstore.KeyValue;
+import com.cvent.kvstore.SimpleKVStore;
+import com.cvent.kvstore.consul.FakeConsulServer;
+import com.cvent.kvstore.dw.CentralConfigApplication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load-tests the service on one machine: starts a FakeConsulServer, seeds it with documents and regions, boots
+ * CentralConfigApplication against it and drives it from closed-loop client threads with a mix of
+ *    80% GET /config-gen/{document}/{region}?format=json
+ *    10% GET /document/{name}
+ *    10% GET /audit-trail?document=&region=&key=
+ * then prints the throughput and latency percentiles of each.
+ *
+ *    java -cp <test classpath> com.cvent.kvstore.load.LoadHarness --threads 32 --duration 60
+ *
+ * Options, with their defaults:
+ *    --threads 16           client threads, each sending its next request as soon as it has the last response
+ *    --duration 60          seconds measured
+ *    --warmup 15            seconds run before measuring
+ *    --documents 4          documents seeded
+ *    --regions 8            regions of each document, other than the default region
+ *    --keys 1000            keys of each document
+ *    --overrides 0.1        share of the keys each region overrides
+ *    --latency-micros 500   Consul latency, and
+ *    --jitter-micros 500    up to how much more
+ *    --config <file>        the service configuration to boot with, instead of a minimal generated one. The
+ *                           Consul endpoint is pointed at the fake with a dw.* system property.
+ *    --port <port>          the service's application port, when --config is given
+ */
+public final class LoadHarness {
+   private static final String AUTHOR = "load-harness";
+   private static final int FIELDS_PER_SECTION = 50;
+   private static final String[] ENDPOINTS = {"config-gen", "document", "audit-trail"};
+
+   private final Map<String, String> options;
+   private final List<String> documents = new ArrayList<>();
+   private final List<String> regions = new ArrayList<>();
+   // Keys that have audit records in every region, by document
+   private final Map<String, List<String>> auditedKeys = new HashMap<>();
+
+   private LoadHarness(Map<String, String> options) {
+      this.options = options;
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = new HashMap<>();
+      for (int n = 0; n + 1 < args.length; n += 2) {
+         if (!args[n].startsWith("--")) {
+            throw new IllegalArgumentException("Expected an option, got " + args[n]);
+         }
+         options.put(args[n].substring(2), args[n + 1]);
+      }
+      new LoadHarness(options).run();
+      // The application has no way to be stopped from here
+      System.exit(0);
+   }
+
+   private String option(String name, String defaultValue) {
+      return options.getOrDefault(name, defaultValue);
+   }
+
+   private int intOption(String name, int defaultValue) {
+      return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+   }
+
+   private void run() throws Exception {
+      FakeConsulServer consul = new FakeConsulServer(0, intOption("latency-micros", 500),
+            intOption("jitter-micros", 500)).start();
+      try {
+         seed(consul);
+
+         int port;
+         String config = options.get("config");
+         if (config != null) {
+            port = intOption("port", 8080);
+            System.setProperty("dw.consulKVStoreConfig.consulEndpoint", consul.endpoint());
+         } else {
+            port = freePort();
+            config = writeConfig(consul.endpoint(), port, freePort()).toString();
+         }
+         // Returns once the server has started
+         new CentralConfigApplication().run(new String[]{"server", config});
+
+         String base = "http://localhost:" + port;
+         long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 15));
+         long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 60));
+         long start = System.nanoTime();
+         long measureFrom = start + warmupNanos;
+         long end = measureFrom + durationNanos;
+
+         List<Client> clients = new ArrayList<>();
+         for (int n = 0; n < intOption("threads", 16); n++) {
+            Client client = new Client(base, measureFrom, end);
+            client.setName("load-client-" + n);
+            client.start();
+            clients.add(client);
+         }
+         for (Client client : clients) {
+            client.join();
+         }
+         report(clients, durationNanos);
+      } finally {
+         consul.close();
+      }
+   }
+
+   // Writes the documents and regions straight into the fake, the way the service would have
+   private void seed(FakeConsulServer consul) throws KVStoreException {
+      int keys = intOption("keys", 1000);
+      double overrides = Double.parseDouble(option("overrides", "0.1"));
+      int every = Math.max(1, (int) Math.round(1 / overrides));
+      for (int n = 0; n < intOption("regions", 8); n++) {
+         regions.add("region" + n);
+      }
+      // Seeding is not the service's work, so its metrics are not reported
+      MetricRegistry metrics = new MetricRegistry();
+      KVStore documentStore = SimpleKVStore.documentStoreFor(consul.dao(), metrics);
+      for (int d = 0; d < intOption("documents", 4); d++) {
+         String name = "document" + d;
+         Set<String> sections = new HashSet<>();
+         List<KeyValue> defaults = new ArrayList<>();
+         List<KeyValue> regionValues = new ArrayList<>();
+         for (int n = 0; n < keys; n++) {
+            String section = "section" + n / FIELDS_PER_SECTION;
+            sections.add(section);
+            String key = section + KVStore.HIERARCHY_SEPARATOR + "field" + n;
+            defaults.add(KeyValue.from(key, n % 2 == 0 ? Integer.toString(n) : "\"value-" + n + "\""));
+            if (n % every == 0) {
+               regionValues.add(KeyValue.from(key, "\"region-" + n + "\""));
+            }
+         }
+         documentStore.put(name, Document.from(sections).serialize(), AUTHOR, true);
+         SimpleKVStore.forDefaultRegion(name, consul.dao(), metrics).putAll(defaults, AUTHOR, true);
+         for (String region : regions) {
+            SimpleKVStore.forRegion(name, region, consul.dao(), metrics).putAll(regionValues, AUTHOR, true);
+         }
+         documents.add(name);
+         List<String> audited = new ArrayList<>();
+         regionValues.forEach(keyValue -> audited.add(keyValue.key()));
+         auditedKeys.put(name, audited);
+      }
+      System.out.printf("Seeded %d documents of %d keys in %d regions%n", documents.size(), keys, regions.size());
+   }
+
+   private static Path writeConfig(String consulEndpoint, int port, int adminPort) throws IOException {
+      Path config = Files.createTempFile("load-harness", ".yml");
+      config.toFile().deleteOnExit();
+      String yaml = String.join("\n",
+            "server:",
+            "  applicationConnectors:",
+            "    - type: http",
+            "      port: " + port,
+            "  adminConnectors:",
+            "    - type: http",
+            "      port: " + adminPort,
+            "logging:",
+            "  level: WARN",
+            "consulKVStoreConfig:",
+            "  consulEndpoint: " + consulEndpoint,
+            "auditCompactionConfig:",
+            "  intervalMinutes: 0",
+            "");
+      Files.write(config, yaml.getBytes(StandardCharsets.UTF_8));
+      return config;
+   }
+
+   private static int freePort() throws IOException {
+      try (ServerSocket socket = new ServerSocket(0)) {
+         return socket.getLocalPort();
+      }
+   }
+
+   private void report(List<Client> clients, long durationNanos) {
+      double seconds = durationNanos / 1e9;
+      System.out.printf("%-12s %10s %10s %8s %10s %10s %10s %10s%n",
+            "endpoint", "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+      Samples all = new Samples();
+      int allErrors = 0;
+      for (int e = 0; e < ENDPOINTS.length; e++) {
+         Samples samples = new Samples();
+         int errors = 0;
+         for (Client client : clients) {
+            samples.addAll(client.samples[e]);
+            errors += client.errors[e];
+         }
+         all.addAll(samples);
+         allErrors += errors;
+         print(ENDPOINTS[e], samples, errors, seconds);
+      }
+      print("all", all, allErrors, seconds);
+   }
+
+   private static void print(String endpoint, Samples samples, int errors, double seconds) {
+      long[] sorted = samples.sorted();
+      System.out.printf("%-12s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f%n", endpoint, sorted.length,
+            sorted.length / seconds, errors, percentile(sorted, 0.5), percentile(sorted, 0.99),
+            percentile(sorted, 0.999), percentile(sorted, 1));
+   }
+
+   // Nearest rank, in milliseconds
+   private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0) {
+         return 0;
+      }
+      int rank = (int) Math.ceil(p * sorted.length);
+      return sorted[Math.max(0, rank - 1)] / 1e6;
+   }
+
+   private class Client extends Thread {
+      private final String base;
+      private final long measureFrom;
+      private final long end;
+      private final Samples[] samples = new Samples[ENDPOINTS.length];
+      private final int[] errors = new int[ENDPOINTS.length];
+
+      private Client(String base, long measureFrom, long end) {
+         this.base = base;
+         this.measureFrom = measureFrom;
+         this.end = end;
+         for (int e = 0; e < ENDPOINTS.length; e++) {
+            samples[e] = new Samples();
+         }
+      }
+
+      @Override
+      public void run() {
+         ThreadLocalRandom random = ThreadLocalRandom.current();
+         byte[] buffer = new byte[8192];
+         while (true) {
+            String document = documents.get(random.nextInt(documents.size()));
+            String region = regions.get(random.nextInt(regions.size()));
+            int mix = random.nextInt(10);
+            int endpoint;
+            String path;
+            if (mix < 8) {
+               endpoint = 0;
+               path = "/config-gen/" + document + "/" + region + "?format=json";
+            } else if (mix < 9) {
+               endpoint = 1;
+               path = "/document/" + document;
+            } else {
+               endpoint = 2;
+               List<String> keys = auditedKeys.get(document);
+               path = "/audit-trail?document=" + document + "&region=" + region + "&key="
+                     + encode(keys.get(random.nextInt(keys.size())));
+            }
+
+            long sent = System.nanoTime();
+            if (sent >= end) {
+               return;
+            }
+            boolean ok = get(base + path, buffer);
+            long received = System.nanoTime();
+            if (sent >= measureFrom && received <= end) {
+               samples[endpoint].add(received - sent);
+               if (!ok) {
+                  errors[endpoint]++;
+               }
+            }
+         }
+      }
+
+      // Reads the whole response, so that the connection is kept alive for the next request
+      private boolean get(String url, byte[] buffer) {
+         HttpURLConnection connection = null;
+         try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestProperty("Accept", "application/json");
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+               try (InputStream body = in) {
+                  while (body.read(buffer) >= 0) {
+                     // Discarded
+                  }
+               }
+            }
+            return status < 400;
+         } catch (IOException e) {
+            if (connection != null) {
+               connection.disconnect();
+            }
+            return false;
+         }
+      }
+
+      private String encode(String s) {
+         try {
+            return URLEncoder.encode(s, StandardCharsets.UTF_8.name());
+         } catch (IOException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+   }
+
+   // A growable array of nanosecond latencies
+   private static final class Samples {
+      private long[] values = new long[1024];
+      private int size;
+
+      void add(long value) {
+         if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+         }
+         values[size++] = value;
+      }
+
+      void addAll(Samples samples) {
+         for (int n = 0; n < samples.size; n++) {
+            add(samples.values[n]);
+         }
+      }
+
+      long[] sorted() {
+         long[] sorted = Arrays.copyOf(values, size);
+         Arrays.sort(sorted);
+         return sorted;
+      }
+   }
+}
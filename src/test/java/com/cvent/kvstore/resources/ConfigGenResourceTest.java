@@ -0,0 +1,123 @@
+package com.cvent.kvstore.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.ConfigRenderer;
+import com.cvent.kvstore.ConfigWatchHub;
+import com.cvent.kvstore.Document;
+import com.cvent.kvstore.InMemoryKVDao;
+import com.cvent.kvstore.KVStore;
+import com.cvent.kvstore.RenderCache;
+import com.cvent.kvstore.SimpleKVStore;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.WebApplication;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Serves config renders with ETags, answering conditional requests for the current render with 304s
+ */
+public class ConfigGenResourceTest {
+   private static final String AUTHOR = "sabari";
+
+   private ConfigWatchHub hub;
+   private ConfigGenResource resource;
+   private KVStore alpha;
+
+   @Before
+   public void setUp() throws Exception {
+      InMemoryKVDao dao = new InMemoryKVDao();
+      MetricRegistry metrics = new MetricRegistry();
+      SimpleKVStore.documentStoreFor(dao, metrics)
+            .put("auth", Document.from(new HashSet<>(Arrays.asList("server"))).serialize(), AUTHOR, true);
+      SimpleKVStore.forDefaultRegion("auth", dao, metrics).put("server/port", "8080", AUTHOR, true);
+      alpha = SimpleKVStore.forRegion("auth", "alpha", dao, metrics);
+      hub = new ConfigWatchHub(dao, 30);
+      hub.start();
+      resource = new ConfigGenResource(new ConfigRenderer(dao, new RenderCache(1024 * 1024, metrics), hub, metrics));
+   }
+
+   @After
+   public void tearDown() {
+      hub.stop();
+   }
+
+   // A GET of /config-gen/auth/alpha?format=json
+   private Request request(String ifNoneMatch) {
+      InBoundHeaders headers = new InBoundHeaders();
+      if (ifNoneMatch != null) {
+         headers.add(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+      }
+      return new ContainerRequest(Mockito.mock(WebApplication.class), "GET", URI.create("http://localhost/"),
+            URI.create("http://localhost/config-gen/auth/alpha?format=json"), headers,
+            new ByteArrayInputStream(new byte[0]));
+   }
+
+   private Response get(String ifNoneMatch) throws Exception {
+      return resource.generateConfigFromDocument("auth", "alpha", "json", request(ifNoneMatch));
+   }
+
+   private static String header(Response response, String name) {
+      Object value = response.getMetadata().getFirst(name);
+      return value != null ? value.toString() : null;
+   }
+
+   @Test
+   public void testRendersCarryAnETagAndTheIndex() throws Exception {
+      Response response = get(null);
+      assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+      assertTrue(new String((byte[]) response.getEntity(), StandardCharsets.UTF_8).contains("8080"));
+      assertTrue(response.getMetadata().getFirst(HttpHeaders.ETAG) instanceof EntityTag);
+      assertTrue(Long.parseLong(header(response, ConfigGenResource.INDEX_HEADER)) > 0);
+   }
+
+   @Test
+   public void testMatchingETagsAreNotModified() throws Exception {
+      Response first = get(null);
+      EntityTag etag = (EntityTag) first.getMetadata().getFirst(HttpHeaders.ETAG);
+
+      Response second = get("\"" + etag.getValue() + "\"");
+      assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), second.getStatus());
+      assertNull(second.getEntity());
+      assertEquals(header(first, ConfigGenResource.INDEX_HEADER), header(second, ConfigGenResource.INDEX_HEADER));
+   }
+
+   @Test
+   public void testOtherETagsGetTheRender() throws Exception {
+      Response response = get("\"someone-elses\"");
+      assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+   }
+
+   @Test
+   public void testChangedConfigIsServedToHoldersOfTheOldETag() throws Exception {
+      EntityTag etag = (EntityTag) get(null).getMetadata().getFirst(HttpHeaders.ETAG);
+      alpha.put("server/port", "9090", AUTHOR, true);
+
+      long deadline = System.currentTimeMillis() + 5000;
+      Response response = get("\"" + etag.getValue() + "\"");
+      while (response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()
+            && System.currentTimeMillis() < deadline) {
+         // Until the watch hears of the change
+         Thread.sleep(5);
+         response = get("\"" + etag.getValue() + "\"");
+      }
+      assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+      assertTrue(new String((byte[]) response.getEntity(), StandardCharsets.UTF_8).contains("9090"));
+   }
+}
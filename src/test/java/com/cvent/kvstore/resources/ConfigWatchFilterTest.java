@@ -0,0 +1,233 @@
+package com.cvent.kvstore.resources;
+
+import com.codahale.metrics.MetricRegistry;
+import com.cvent.kvstore.ConfigRenderer;
+import com.cvent.kvstore.ConfigWatchHub;
+import com.cvent.kvstore.Document;
+import com.cvent.kvstore.DocumentType;
+import com.cvent.kvstore.InMemoryKVDao;
+import com.cvent.kvstore.KVStore;
+import com.cvent.kvstore.RenderCache;
+import com.cvent.kvstore.RenderedConfig;
+import com.cvent.kvstore.SimpleKVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Long-polls config renders from an in-memory store through the filter, with the servlet container mocked
+ */
+public class ConfigWatchFilterTest {
+   private static final String AUTHOR = "sabari";
+
+   private ConfigRenderer renderer;
+   private ConfigWatchHub hub;
+   private ConfigWatchFilter filter;
+   private KVStore documents;
+   private KVStore defaults;
+   private KVStore alpha;
+
+   @Before
+   public void setUp() throws Exception {
+      InMemoryKVDao dao = new InMemoryKVDao();
+      MetricRegistry metrics = new MetricRegistry();
+      documents = SimpleKVStore.documentStoreFor(dao, metrics);
+      defaults = SimpleKVStore.forDefaultRegion("auth", dao, metrics);
+      alpha = SimpleKVStore.forRegion("auth", "alpha", dao, metrics);
+      documents.put("auth", Document.from(new HashSet<>(Arrays.asList("server"))).serialize(), AUTHOR, true);
+      defaults.put("server/port", "8080", AUTHOR, true);
+      defaults.put("db/url", "\"jdbc:h2:mem\"", AUTHOR, true);
+      hub = new ConfigWatchHub(dao, 30);
+      hub.start();
+      // As the service renders without a replica
+      renderer = new ConfigRenderer(dao, new RenderCache(1024 * 1024, metrics), hub, metrics);
+      filter = new ConfigWatchFilter(renderer, hub);
+   }
+
+   @After
+   public void tearDown() {
+      hub.stop();
+   }
+
+   private RenderedConfig current() throws Exception {
+      return renderer.render("auth", "alpha", DocumentType.JSON).get();
+   }
+
+   @Test
+   public void testChangedSinceTheClientsIndexReturnsAtOnce() throws Exception {
+      Poll poll = new Poll("1", null);
+      assertTrue(poll.isDone());
+      assertEquals(HttpServletResponse.SC_OK, poll.status);
+      assertTrue(poll.body(), poll.body().contains("8080"));
+      assertEquals("\"" + current().etag() + "\"", poll.headers.get(HttpHeaders.ETAG));
+      assertEquals(String.valueOf(current().index()), poll.headers.get(ConfigGenResource.INDEX_HEADER));
+   }
+
+   @Test
+   public void testRegionChangesComplete() throws Exception {
+      Poll poll = new Poll(String.valueOf(current().index()), null);
+      assertFalse(poll.isDone());
+      alpha.put("server/port", "9090", AUTHOR, true);
+      assertTrue(poll.await());
+      assertEquals(HttpServletResponse.SC_OK, poll.status);
+      assertTrue(poll.body(), poll.body().contains("9090"));
+   }
+
+   @Test
+   public void testDefinitionChangesComplete() throws Exception {
+      Poll poll = new Poll(String.valueOf(current().index()), null);
+      assertFalse(poll.isDone());
+      // Only the definition changes: the region now renders a key the default region already had
+      documents.put("auth", Document.from(new HashSet<>(Arrays.asList("server", "db"))).serialize(), AUTHOR, true);
+      assertTrue(poll.await());
+      assertEquals(HttpServletResponse.SC_OK, poll.status);
+      assertTrue(poll.body(), poll.body().contains("jdbc:h2:mem"));
+   }
+
+   @Test
+   public void testOtherChangesKeepWaitingUntilTheWaitIsUp() throws Exception {
+      RenderedConfig before = current();
+      Poll poll = new Poll("0", "\"" + before.etag() + "\"");
+      assertFalse(poll.isDone());
+      // Outside the keys the document renders
+      defaults.put("cache/size", "64", AUTHOR, true);
+      assertFalse(poll.done.await(200, TimeUnit.MILLISECONDS));
+
+      poll.listener.onTimeout(null);
+      assertTrue(poll.isDone());
+      assertEquals(HttpServletResponse.SC_NOT_MODIFIED, poll.status);
+      assertEquals("\"" + before.etag() + "\"", poll.headers.get(HttpHeaders.ETAG));
+      assertEquals("", poll.body());
+   }
+
+   @Test
+   public void testWaitsOfZeroAreTheDefaultWait() throws Exception {
+      for (String wait : new String[] {"0", "0s", "0ms"}) {
+         Poll poll = new Poll(String.valueOf(current().index()), null, wait);
+         assertFalse(poll.isDone());
+         assertEquals(Long.valueOf(TimeUnit.MINUTES.toMillis(5)), poll.timeout);
+         poll.listener.onTimeout(null);
+      }
+      assertEquals(Long.valueOf(1500), new Poll(String.valueOf(current().index()), null, "1500ms").timeout);
+   }
+
+   @Test
+   public void testNegativeWaitsAreBadRequests() throws Exception {
+      for (String wait : new String[] {"-1", "-5s", "-1ms"}) {
+         Poll poll = new Poll(String.valueOf(current().index()), null, wait);
+         assertTrue(poll.isDone());
+         assertEquals(HttpServletResponse.SC_BAD_REQUEST, poll.status);
+         assertEquals(null, poll.timeout);
+      }
+   }
+
+   @Test
+   public void testRequestsWithoutAnIndexArePassedOn() throws Exception {
+      HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+      Mockito.when(request.getMethod()).thenReturn("GET");
+      Mockito.when(request.getRequestURI()).thenReturn("/config-gen/auth/alpha");
+      Mockito.when(request.getContextPath()).thenReturn("");
+      HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+      FilterChain chain = Mockito.mock(FilterChain.class);
+      filter.doFilter(request, response, chain);
+      Mockito.verify(chain).doFilter(request, response);
+   }
+
+   /**
+    * A long-poll of GET /config-gen/auth/alpha?format=json&index=...
+    */
+   private class Poll {
+      private final Map<String, String> headers = new ConcurrentHashMap<>();
+      private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      private final CountDownLatch done = new CountDownLatch(1);
+      private volatile int status;
+      private volatile AsyncListener listener;
+      private volatile boolean suspended;
+      private volatile Long timeout;
+
+      private Poll(String index, String ifNoneMatch) throws Exception {
+         this(index, ifNoneMatch, null);
+      }
+
+      private Poll(String index, String ifNoneMatch, String wait) throws Exception {
+         HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+         Mockito.when(request.getMethod()).thenReturn("GET");
+         Mockito.when(request.getRequestURI()).thenReturn("/config-gen/auth/alpha");
+         Mockito.when(request.getContextPath()).thenReturn("");
+         Mockito.when(request.getParameter("index")).thenReturn(index);
+         Mockito.when(request.getParameter("format")).thenReturn("json");
+         Mockito.when(request.getParameter("wait")).thenReturn(wait);
+         Mockito.when(request.getHeader(HttpHeaders.IF_NONE_MATCH)).thenReturn(ifNoneMatch);
+
+         HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+         Mockito.doAnswer(invocation -> status = (Integer) invocation.getArguments()[0])
+               .when(response).setStatus(Mockito.anyInt());
+         Mockito.doAnswer(invocation -> status = (Integer) invocation.getArguments()[0])
+               .when(response).sendError(Mockito.anyInt());
+         Mockito.doAnswer(invocation -> status = (Integer) invocation.getArguments()[0])
+               .when(response).sendError(Mockito.anyInt(), Mockito.anyString());
+         Mockito.doAnswer(invocation -> headers.put((String) invocation.getArguments()[0],
+               (String) invocation.getArguments()[1])).when(response).setHeader(Mockito.anyString(), Mockito.anyString());
+         Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+               body.write(b);
+            }
+         });
+
+         AsyncContext context = Mockito.mock(AsyncContext.class);
+         Mockito.when(request.startAsync()).thenAnswer(invocation -> {
+            suspended = true;
+            return context;
+         });
+         Mockito.when(context.getResponse()).thenReturn(response);
+         Mockito.doAnswer(invocation -> timeout = (Long) invocation.getArguments()[0])
+               .when(context).setTimeout(Mockito.anyLong());
+         Mockito.doAnswer(invocation -> listener = (AsyncListener) invocation.getArguments()[0])
+               .when(context).addListener(Mockito.any(AsyncListener.class));
+         Mockito.doAnswer(invocation -> {
+            done.countDown();
+            return null;
+         }).when(context).complete();
+
+         filter.doFilter(request, response, Mockito.mock(FilterChain.class));
+         if (!suspended) {
+            // Answered without suspending
+            done.countDown();
+         }
+      }
+
+      private boolean isDone() {
+         return done.getCount() == 0;
+      }
+
+      private boolean await() throws InterruptedException {
+         return done.await(5, TimeUnit.SECONDS);
+      }
+
+      private String body() {
+         return new String(body.toByteArray(), StandardCharsets.UTF_8);
+      }
+   }
+}